@@ -34,7 +34,10 @@ frisby.create('GET status and check structure')
     service: String,
     datasets: Number,
     activeEtlProcesses: Number,
-    version: String
+    queuedEtlProcesses: Number,
+    version: String,
+    caches: Object,
+    connectionPools: Object
   })
   .toss();
 
@@ -74,19 +77,41 @@ frisby.create('POST CSV file (UTF-8, comma-separated) to create new dataset1')
         rowcount: Number,
         created: String,
         columnnames: Array,
+        columns: Array,
         status: Number,
         "@id": String,
         "@context": String,
         aliases: Array,
+        indexes: Array,
         identifier: String
       })
       .expectJSON({
         rowcount: 5,
-        status: 3
+        status: 3,
+        columnnames: ["name", "telephone", "some other column", "comment"]
+      })
+      .expectJSON('columns.1', {
+        name: "telephone",
+        type: "text"
       })
       .waits(initialDelay)
       .retry(retryCount, retryDelay)
       .toss();
+    frisby.create('GET dataset1 indexing')
+      .get(json.url + '/indexing')
+      .expectStatus(200)
+      .expectHeaderContains('Content-Type', 'application/json')
+      .expectJSONTypes({
+        mode: String,
+        inherited: Boolean,
+        columns: Object,
+        usage: Array
+      })
+      .toss();
+    frisby.create('PUT dataset1 indexing with invalid mode')
+      .put(json.url + '/indexing', {mode: 'invalid'}, {json: true})
+      .expectStatus(400)
+      .toss();
     frisby.create('GET dataset1 aliases')
       .get(json.url + '/aliases')
       .expectStatus(200)
@@ -258,7 +283,8 @@ frisby.create('POST CSV file (UTF-8, comma-separated) to create new dataset1')
         results: Array,
         offset: Number,
         limit: Number,
-        resultCount: Number
+        resultCount: Number,
+        next: String
       })
       .expectJSON({
         offset: 0,
@@ -294,6 +320,45 @@ frisby.create('POST CSV file (UTF-8, comma-separated) to create new dataset1')
       .waits(initialDelay)
       .retry(retryCount, retryDelay)
       .toss();
+    frisby.create('GET dataset1 pagination test 3 (invalid cursor)')
+      .get(json.url + "?_limit=1&_after=invalid")
+      .expectStatus(400)
+      .waits(initialDelay)
+      .retry(retryCount, retryDelay)
+      .toss();
+    frisby.create('GET dataset1 estimated count')
+      .get(json.url + "?_limit=1&_count=estimate")
+      .expectStatus(200)
+      .expectJSONTypes({
+        resultCount: Number
+      })
+      .afterJSON(function (result) {
+        // the count is exact if the planner has no estimate, e.g. before the table has been analyzed
+        expect(result.resultCountEstimated === undefined || result.resultCountEstimated === true).toBe(true);
+      })
+      .waits(initialDelay)
+      .retry(retryCount, retryDelay)
+      .toss();
+    frisby.create('GET dataset1 invalid count mode')
+      .get(json.url + "?_count=invalid")
+      .expectStatus(400)
+      .waits(initialDelay)
+      .retry(retryCount, retryDelay)
+      .toss();
+    frisby.create('GET dataset1 export as Arrow stream')
+      .get(json.url + "/export?media=arrow")
+      .expectStatus(200)
+      .expectHeaderContains('Content-Type', 'application/vnd.apache.arrow.stream')
+      .waits(initialDelay)
+      .retry(retryCount, retryDelay)
+      .toss();
+    frisby.create('GET dataset1 export as Parquet')
+      .get(json.url + "/export?media=parquet")
+      .expectStatus(200)
+      .expectHeaderContains('Content-Type', 'application/vnd.apache.parquet')
+      .waits(initialDelay)
+      .retry(retryCount, retryDelay)
+      .toss();
   })
   .toss();
 
@@ -18,9 +18,11 @@ package org.entrystore.rowstore;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.config.Configurator;
+import org.entrystore.rowstore.filters.CompressionFilter;
 import org.entrystore.rowstore.filters.JSCallbackFilter;
 import org.entrystore.rowstore.filters.RateLimitFilter;
 import org.entrystore.rowstore.resources.AliasResource;
+import org.entrystore.rowstore.resources.DatasetIndexingResource;
 import org.entrystore.rowstore.resources.DatasetInfoResource;
 import org.entrystore.rowstore.resources.DatasetResource;
 import org.entrystore.rowstore.resources.DatasetsResource;
@@ -32,6 +34,8 @@ import org.entrystore.rowstore.resources.WebGuiResource;
 import org.entrystore.rowstore.store.RowStore;
 import org.entrystore.rowstore.store.RowStoreConfig;
 import org.entrystore.rowstore.store.impl.PgRowStore;
+import org.entrystore.rowstore.util.ArrowExport;
+import org.entrystore.rowstore.util.ParquetExport;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.restlet.Application;
@@ -84,6 +88,9 @@ public class RowStoreApplication extends Application {
 	public RowStoreApplication(Context parentContext, URI configURI) throws IOException, JSONException {
 		super(parentContext);
 		getContext().getAttributes().put(KEY, this);
+		// allows to request columnar exports with ?media=arrow or ?media=parquet
+		getMetadataService().addExtension("arrow", ArrowExport.APPLICATION_ARROW_STREAM);
+		getMetadataService().addExtension("parquet", ParquetExport.APPLICATION_PARQUET);
 		if (configURI == null) {
 			String envConfigURI = System.getenv(ENV_CONFIG_URI);
 			if (envConfigURI != null) {
@@ -136,6 +143,7 @@ public class RowStoreApplication extends Application {
 		router.attach("/dataset/{id}/aliases", AliasResource.class);
 		router.attach("/dataset/{id}/export", ExportResource.class);
 		router.attach("/dataset/{id}/html", WebGuiResource.class);
+		router.attach("/dataset/{id}/indexing", DatasetIndexingResource.class);
 		router.attach("/dataset/{id}/info", DatasetInfoResource.class);
 		router.attach("/dataset/{id}/json", DatasetResource.class);
 		router.attach("/dataset/{id}/swagger", SwaggerResource.class);
@@ -144,15 +152,24 @@ public class RowStoreApplication extends Application {
 
 		JSCallbackFilter jsCallback = new JSCallbackFilter();
 		jsCallback.setNext(router);
+		Restlet root = jsCallback;
+
+		// compresses the final entity, i.e. after JSONP wrapping
+		if (config.isCompressionEnabled()) {
+			log.info("Response compression enabled with " + config.getCompressionEncodings() + ", minimum size: " + config.getCompressionMinSize() + " bytes");
+			CompressionFilter compressionFilter = new CompressionFilter(config);
+			compressionFilter.setNext(root);
+			root = compressionFilter;
+		}
 
 		if (config.isRateLimitEnabled()) {
 			log.info("Request limit enabled. Time range: " + config.getRateLimitTimeRange() + " seconds. Limit globally: " + config.getRateLimitRequestsGlobal() + ", limit per dataset: " + config.getRateLimitRequestsDataset() + ", limit per client IP: " + config.getRateLimitRequestsClientIP());
 			RateLimitFilter rateLimitFilter = new RateLimitFilter(config);
-			rateLimitFilter.setNext(jsCallback);
+			rateLimitFilter.setNext(root);
 			return rateLimitFilter;
 		}
 
-		return jsCallback;
+		return root;
 	}
 
 	public RowStore getRowStore() {
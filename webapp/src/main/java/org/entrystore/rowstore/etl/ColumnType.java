@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.etl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Types of column values that are inferred while loading CSV data. All values are stored as strings,
+ * the types are informational only.
+ *
+ * <p>The types are bit flags so that the types of all values of a column can be combined with a bitwise
+ * OR and reduced to the most specific type that matches all values, see {@link #toString(int)}.</p>
+ *
+ * @author Hannes Ebner
+ */
+public class ColumnType {
+
+	public static final int EMPTY = 0;
+
+	public static final int INTEGER = 1;
+
+	public static final int NUMBER = 2;
+
+	public static final int BOOLEAN = 4;
+
+	public static final int TEXT = 8;
+
+	/**
+	 * @param types The combined types of all values of a column.
+	 * @return Returns the name of the most specific type that matches all values.
+	 */
+	public static String toString(int types) {
+		if (types == EMPTY) {
+			return "empty";
+		} else if (types == INTEGER) {
+			return "integer";
+		} else if ((types & ~(INTEGER | NUMBER)) == 0) {
+			return "number";
+		} else if (types == BOOLEAN) {
+			return "boolean";
+		}
+		return "text";
+	}
+
+	/**
+	 * @param name A type name as returned by {@link #toString(int)}.
+	 * @return Returns the type flags represented by the name.
+	 */
+	public static int fromString(String name) {
+		if (name == null) {
+			return TEXT;
+		}
+		switch (name) {
+			case "empty": return EMPTY;
+			case "integer": return INTEGER;
+			case "number": return NUMBER;
+			case "boolean": return BOOLEAN;
+			default: return TEXT;
+		}
+	}
+
+	/**
+	 * Infers the type of a UTF-8 encoded, non-empty value.
+	 *
+	 * <p>Integers with leading zeros (e.g. postal codes) and values with surrounding whitespace are
+	 * considered text, as they would not survive a conversion to a number.</p>
+	 */
+	static int classify(ByteBuffer src, int start, int length) {
+		int end = start + length;
+		int i = start;
+		int first = src.get(i) & 0xff;
+		if (first == 't' || first == 'T' || first == 'f' || first == 'F') {
+			return isBoolean(src, start, length) ? BOOLEAN : TEXT;
+		}
+		if (first == '-' || first == '+') {
+			i++;
+		}
+		int intStart = i;
+		while (i < end && isDigit(src.get(i))) {
+			i++;
+		}
+		int intDigits = i - intStart;
+		if (intDigits > 1 && src.get(intStart) == '0') {
+			return TEXT;
+		}
+		if (i == end) {
+			return intDigits > 0 ? INTEGER : TEXT;
+		}
+		int fractionDigits = 0;
+		if (src.get(i) == '.') {
+			i++;
+			int fractionStart = i;
+			while (i < end && isDigit(src.get(i))) {
+				i++;
+			}
+			fractionDigits = i - fractionStart;
+		}
+		if (intDigits + fractionDigits == 0) {
+			return TEXT;
+		}
+		if (i < end && (src.get(i) == 'e' || src.get(i) == 'E')) {
+			i++;
+			if (i < end && (src.get(i) == '-' || src.get(i) == '+')) {
+				i++;
+			}
+			int exponentStart = i;
+			while (i < end && isDigit(src.get(i))) {
+				i++;
+			}
+			if (i == exponentStart) {
+				return TEXT;
+			}
+		}
+		return i == end ? NUMBER : TEXT;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean isBoolean(ByteBuffer src, int start, int length) {
+		String expected = length == 4 ? "true" : length == 5 ? "false" : null;
+		if (expected == null) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (Character.toLowerCase((char) (src.get(start + i) & 0xff)) != expected.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.etl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A batch of consecutive CSV records as produced by {@link CsvTokenizer}.
+ *
+ * <p>Cells are slices of the tokenizer's (memory-mapped) input buffer. Only cells whose value differs
+ * from their raw bytes, e.g. because of escaped quotes, are copied into a scratch buffer. Instances
+ * are meant to be reused, see {@link #reset(ByteBuffer, long)}.</p>
+ *
+ * @author Hannes Ebner
+ */
+public class CsvRecords {
+
+	private ByteBuffer source;
+
+	private byte[] scratch = new byte[4096];
+
+	private ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+
+	private int scratchLength;
+
+	private int[] cellStarts = new int[4096];
+
+	private int[] cellEnds = new int[4096];
+
+	private boolean[] cellInScratch = new boolean[4096];
+
+	private int cellCount;
+
+	private int[] recordEnds = new int[256];
+
+	private int recordCount;
+
+	private long firstRecord;
+
+	// state of the cell currently being assembled
+
+	private int runStart;
+
+	private int runEnd;
+
+	private boolean copying;
+
+	private int cellScratchStart;
+
+	private boolean whitespaceOnly;
+
+	/**
+	 * Clears all records so that the instance can be reused.
+	 *
+	 * @param source The buffer the cells refer to.
+	 * @param firstRecord The number of the first record of the batch.
+	 */
+	void reset(ByteBuffer source, long firstRecord) {
+		this.source = source;
+		this.firstRecord = firstRecord;
+		this.scratchLength = 0;
+		this.cellCount = 0;
+		this.recordCount = 0;
+		beginCell();
+	}
+
+	/**
+	 * @return Returns the number of the first record of this batch within the CSV file, the header being record 0.
+	 */
+	public long getFirstRecord() {
+		return firstRecord;
+	}
+
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @return Returns the index of the first cell of a record.
+	 */
+	public int getFirstCell(int record) {
+		return record == 0 ? 0 : recordEnds[record - 1];
+	}
+
+	/**
+	 * @return Returns the index after the last cell of a record.
+	 */
+	public int getEndCell(int record) {
+		return recordEnds[record];
+	}
+
+	/**
+	 * @return Returns the buffer containing the value of a cell.
+	 */
+	public ByteBuffer getBuffer(int cell) {
+		return cellInScratch[cell] ? scratchBuffer : source;
+	}
+
+	/**
+	 * @return Returns the offset of a cell value within its buffer.
+	 */
+	public int getStart(int cell) {
+		return cellStarts[cell];
+	}
+
+	/**
+	 * @return Returns the length of a cell value in bytes.
+	 */
+	public int getLength(int cell) {
+		return cellEnds[cell] - cellStarts[cell];
+	}
+
+	/**
+	 * @return Returns the value of a cell as string, assuming UTF-8.
+	 */
+	public String getString(int cell) {
+		byte[] value = new byte[getLength(cell)];
+		getBuffer(cell).get(getStart(cell), value);
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	// methods used by the tokenizer
+
+	void beginCell() {
+		runStart = -1;
+		runEnd = -1;
+		copying = false;
+		whitespaceOnly = true;
+	}
+
+	/**
+	 * Appends the source bytes between from (inclusive) and to (exclusive) to the current cell.
+	 */
+	void appendInput(int from, int to) {
+		if (whitespaceOnly) {
+			for (int i = from; i < to && whitespaceOnly; i++) {
+				whitespaceOnly = isWhitespace(source.get(i));
+			}
+		}
+		if (!copying) {
+			if (runStart < 0) {
+				runStart = from;
+				runEnd = to;
+				return;
+			} else if (runEnd == from) {
+				runEnd = to;
+				return;
+			}
+			startCopying();
+		}
+		ensureScratchCapacity(to - from);
+		source.get(from, scratch, scratchLength, to - from);
+		scratchLength += to - from;
+	}
+
+	/**
+	 * Appends a byte that is not part of the source to the current cell.
+	 */
+	void appendLiteral(byte b) {
+		whitespaceOnly &= isWhitespace(b);
+		if (!copying) {
+			startCopying();
+		}
+		ensureScratchCapacity(1);
+		scratch[scratchLength++] = b;
+	}
+
+	boolean isCellEmpty() {
+		return copying ? scratchLength == cellScratchStart : runStart < 0;
+	}
+
+	/**
+	 * @return True if the current cell is not empty and consists of whitespace only.
+	 */
+	boolean isCellWhitespace() {
+		return whitespaceOnly && !isCellEmpty();
+	}
+
+	void clearCell() {
+		if (copying) {
+			scratchLength = cellScratchStart;
+		}
+		beginCell();
+	}
+
+	void endCell() {
+		if (cellCount == cellStarts.length) {
+			int size = cellCount * 2;
+			cellStarts = Arrays.copyOf(cellStarts, size);
+			cellEnds = Arrays.copyOf(cellEnds, size);
+			cellInScratch = Arrays.copyOf(cellInScratch, size);
+		}
+		if (copying) {
+			cellStarts[cellCount] = cellScratchStart;
+			cellEnds[cellCount] = scratchLength;
+		} else if (runStart < 0) {
+			cellStarts[cellCount] = 0;
+			cellEnds[cellCount] = 0;
+		} else {
+			cellStarts[cellCount] = runStart;
+			cellEnds[cellCount] = runEnd;
+		}
+		cellInScratch[cellCount] = copying;
+		cellCount++;
+		beginCell();
+	}
+
+	void endRecord() {
+		if (recordCount == recordEnds.length) {
+			recordEnds = Arrays.copyOf(recordEnds, recordCount * 2);
+		}
+		recordEnds[recordCount++] = cellCount;
+	}
+
+	/**
+	 * Discards the record that is currently being assembled.
+	 */
+	void discardRecord() {
+		cellCount = getRecordCount() == 0 ? 0 : recordEnds[recordCount - 1];
+		scratchLength = 0;
+		for (int i = 0; i < cellCount; i++) {
+			if (cellInScratch[i]) {
+				scratchLength = Math.max(scratchLength, cellEnds[i]);
+			}
+		}
+		beginCell();
+	}
+
+	private void startCopying() {
+		cellScratchStart = scratchLength;
+		copying = true;
+		if (runStart >= 0) {
+			appendInput(runStart, runEnd);
+		}
+	}
+
+	private void ensureScratchCapacity(int additional) {
+		if (scratchLength + additional > scratch.length) {
+			scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, scratchLength + additional));
+			scratchBuffer = ByteBuffer.wrap(scratch);
+		}
+	}
+
+	/**
+	 * Same as Character.isWhitespace() for ASCII characters. Bytes of multibyte characters are never
+	 * considered whitespace.
+	 */
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || (b >= 0x09 && b <= 0x0d) || (b >= 0x1c && b <= 0x1f);
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.etl;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+
+/**
+ * Converts a batch of CSV records to JSON. Instances are independent of each other,
+ * so that batches can be converted in parallel.
+ *
+ * @author Hannes Ebner
+ */
+public class CsvRowConverter implements Callable<RowBatch> {
+
+	private final JsonRowEncoder encoder;
+
+	private final CsvRecords records;
+
+	private final RowBatch batch;
+
+	private final Queue<CsvRecords> recycled;
+
+	/**
+	 * @param encoder The encoder for the rows of the dataset.
+	 * @param records The CSV records to be converted.
+	 * @param batch The (possibly recycled) batch to write the result to.
+	 * @param recycled Queue to which the records are handed back after conversion, may be null.
+	 */
+	public CsvRowConverter(JsonRowEncoder encoder, CsvRecords records, RowBatch batch, Queue<CsvRecords> recycled) {
+		this.encoder = encoder;
+		this.records = records;
+		this.batch = batch;
+		this.recycled = recycled;
+	}
+
+	@Override
+	public RowBatch call() {
+		long firstLine = records.getFirstRecord();
+		batch.reset(firstLine);
+		for (int i = 0; i < records.getRecordCount(); i++) {
+			try {
+				encoder.encode(records, i, batch);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Error occured when processing line " + (firstLine + i) + " of CSV: " + e.getMessage(), e);
+			}
+		}
+		if (recycled != null) {
+			recycled.offer(records);
+		}
+		return batch;
+	}
+
+}
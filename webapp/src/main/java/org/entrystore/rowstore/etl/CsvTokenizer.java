@@ -0,0 +1,496 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.etl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Splits a UTF-8 encoded CSV file into records and cells.
+ *
+ * <p>The file is memory-mapped in windows of up to 1 GB, records crossing the end of a window cause
+ * the next window to be mapped at the start of the record. A stream (e.g., the body of a request) is read
+ * into windows of 8 MB instead, where the incomplete record at the end of a window is copied to the start
+ * of the next window. Windows are never reused, because the records of a window may still be converted
+ * while the next window is read. The bytes are scanned eight at a time for
+ * the characters with a special meaning (separator, quote, backslash and line breaks), cells are handed
+ * out as slices of the mapped buffer.</p>
+ *
+ * <p>The parsing rules are the same as OpenCSV's CSVReader with <code>"</code> as quote character and
+ * <code>\</code> as escape character, which was used for parsing before: quotes are escaped by doubling
+ * them or with a backslash, a backslash that does not escape a quote or a backslash is dropped, quoted
+ * values may contain line breaks (which are normalized to <code>\n</code>), and an empty line results in
+ * a record with one empty cell.</p>
+ *
+ * @author Hannes Ebner
+ */
+public class CsvTokenizer implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(CsvTokenizer.class);
+
+	private static final int WINDOW_SIZE = 1 << 30;
+
+	private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE - 8;
+
+	private static final int STREAM_WINDOW_SIZE = 1 << 23;
+
+	private static final byte QUOTE = '"';
+
+	private static final byte ESCAPE = '\\';
+
+	private static final long ONES = 0x0101010101010101L;
+
+	private static final long HIGH_BITS = 0x8080808080808080L;
+
+	private static final long QUOTES = ONES * QUOTE;
+
+	private static final long ESCAPES = ONES * ESCAPE;
+
+	private static final long LFS = ONES * '\n';
+
+	private static final long CRS = ONES * '\r';
+
+	private static final int RECORD = 0;
+
+	private static final int END_OF_FILE = 1;
+
+	private static final int END_OF_WINDOW = 2;
+
+	private final FileChannel channel;
+
+	private final InputStream stream;
+
+	private long end;
+
+	private final byte separator;
+
+	private final long separators;
+
+	private final boolean[] special = new boolean[256];
+
+	private ByteBuffer buffer;
+
+	private long windowStart;
+
+	private int windowSize = WINDOW_SIZE;
+
+	private boolean lastWindow;
+
+	private int pos;
+
+	private long recordNumber;
+
+	/**
+	 * @param file The CSV file, must be UTF-8 encoded.
+	 * @param separator The separator, must be an ASCII character.
+	 */
+	public CsvTokenizer(Path file, char separator) throws IOException {
+		this(file, separator, 0, -1, 0);
+	}
+
+	/**
+	 * Creates a tokenizer for a part of a file.
+	 *
+	 * @param file The CSV file, must be UTF-8 encoded.
+	 * @param separator The separator, must be an ASCII character.
+	 * @param start The position in the file where to start, must be the start of a record.
+	 * @param end The position in the file where to stop, must be the end of a record. -1 for the end of the file.
+	 * @param firstRecord The number of the record at the start position, used for numbering records.
+	 */
+	public CsvTokenizer(Path file, char separator, long start, long end, long firstRecord) throws IOException {
+		this(separator, FileChannel.open(file, StandardOpenOption.READ), null, firstRecord);
+		this.end = end < 0 ? channel.size() : Math.min(end, channel.size());
+		map(Math.min(start, this.end));
+	}
+
+	/**
+	 * Creates a tokenizer that reads from a stream. The stream is closed when the tokenizer is closed.
+	 *
+	 * @param stream The CSV data, must be UTF-8 encoded.
+	 * @param separator The separator, must be an ASCII character.
+	 */
+	public CsvTokenizer(InputStream stream, char separator) throws IOException {
+		this(separator, null, stream, 0);
+		this.end = -1;
+		this.windowSize = STREAM_WINDOW_SIZE;
+		fill(0);
+	}
+
+	private CsvTokenizer(char separator, FileChannel channel, InputStream stream, long firstRecord) {
+		if (separator > 0x7f || separator == QUOTE || separator == ESCAPE || separator == '\n' || separator == '\r') {
+			throw new IllegalArgumentException("Unsupported separator: " + separator);
+		}
+		this.separator = (byte) separator;
+		this.separators = ONES * separator;
+		special[separator] = true;
+		special[QUOTE] = true;
+		special[ESCAPE] = true;
+		special['\n'] = true;
+		special['\r'] = true;
+		this.channel = channel;
+		this.stream = stream;
+		this.recordNumber = firstRecord;
+	}
+
+	/**
+	 * Reads the next records.
+	 *
+	 * @param records The batch to fill, previous content is discarded.
+	 * @param maxRecords The maximum amount of records to read.
+	 * @return True if at least one record has been read, false at the end of the file.
+	 * @throws IOException If the file cannot be read or if it ends within a quoted value.
+	 */
+	public boolean read(CsvRecords records, int maxRecords) throws IOException {
+		records.reset(buffer, recordNumber);
+		while (records.getRecordCount() < maxRecords) {
+			int result = parseRecord(records);
+			if (result == END_OF_FILE) {
+				break;
+			} else if (result == END_OF_WINDOW) {
+				if (records.getRecordCount() > 0) {
+					// the records of the batch refer to the current window,
+					// so the next window is mapped in the next call
+					break;
+				}
+				if (stream != null) {
+					fill(windowStart + pos);
+				} else {
+					map(windowStart + pos);
+				}
+				records.reset(buffer, recordNumber);
+			} else {
+				recordNumber++;
+			}
+		}
+		return records.getRecordCount() > 0;
+	}
+
+	/**
+	 * Skips records until the first record boundary at or after the given position.
+	 *
+	 * <p>Used to split a file into chunks that can be loaded in parallel. The records are parsed
+	 * with the same rules as when reading them, so quoted line breaks are taken into account.</p>
+	 *
+	 * @param position The position in the file.
+	 * @return Returns the amount of skipped records.
+	 */
+	public long skipTo(long position) throws IOException {
+		CsvRecords records = new CsvRecords();
+		long skipped = 0;
+		while (getPosition() < position && read(records, 1)) {
+			skipped++;
+		}
+		return skipped;
+	}
+
+	/**
+	 * @return Returns the position in the file or stream, which is always at the start of a record.
+	 */
+	public long getPosition() {
+		return windowStart + pos;
+	}
+
+	/**
+	 * @return Returns the number of the next record to be read.
+	 */
+	public long getRecordNumber() {
+		return recordNumber;
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer = null;
+		if (channel != null) {
+			channel.close();
+		} else {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Maps the window starting at the given position of the file. If the current window starts at the same
+	 * position the window size is doubled, i.e., the current record does not fit into the window.
+	 */
+	private void map(long start) throws IOException {
+		if (buffer != null && start == windowStart) {
+			if (windowSize == MAX_WINDOW_SIZE) {
+				throw new IOException("CSV record at byte " + start + " exceeds the maximum size of " + MAX_WINDOW_SIZE + " bytes");
+			}
+			windowSize = (int) Math.min((long) windowSize * 2, MAX_WINDOW_SIZE);
+		}
+		int length = (int) Math.min(end - start, windowSize);
+		log.debug("Mapping {} bytes of CSV file starting at byte {}", length, start);
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ByteOrder.LITTLE_ENDIAN);
+		windowStart = start;
+		lastWindow = start + length == end;
+		pos = 0;
+	}
+
+	/**
+	 * Reads the window starting at the given position of the stream, which must be the current position.
+	 * The unparsed bytes of the current window are copied to the new window. If the current window starts
+	 * at the same position the window size is doubled, i.e., the current record does not fit into the window.
+	 */
+	private void fill(long start) throws IOException {
+		int remaining = 0;
+		if (buffer != null) {
+			if (start == windowStart) {
+				if (windowSize == MAX_WINDOW_SIZE) {
+					throw new IOException("CSV record at byte " + start + " exceeds the maximum size of " + MAX_WINDOW_SIZE + " bytes");
+				}
+				windowSize = (int) Math.min((long) windowSize * 2, MAX_WINDOW_SIZE);
+			}
+			remaining = buffer.limit() - pos;
+		}
+		byte[] window = new byte[windowSize];
+		if (remaining > 0) {
+			buffer.get(pos, window, 0, remaining);
+		}
+		int length = remaining + stream.readNBytes(window, remaining, windowSize - remaining);
+		log.debug("Read {} bytes of CSV stream starting at byte {}", length - remaining, start + remaining);
+		buffer = ByteBuffer.wrap(window, 0, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+		windowStart = start;
+		lastWindow = length < windowSize;
+		pos = 0;
+	}
+
+	/**
+	 * Parses the record at the current position.
+	 *
+	 * @return RECORD if a record has been added, END_OF_FILE if there are no more records, or END_OF_WINDOW
+	 * if the record does not end within the current window.
+	 */
+	private int parseRecord(CsvRecords out) throws IOException {
+		int limit = buffer.limit();
+		int p = pos;
+		if (p >= limit) {
+			return lastWindow ? END_OF_FILE : END_OF_WINDOW;
+		}
+
+		// the variables mirror the state of OpenCSV's CSVParser
+		boolean inQuotes = false;
+		boolean inField = false;
+		int lineStart = p;
+		while (true) {
+			int next = nextSpecial(p, limit);
+			if (next > p) {
+				out.appendInput(p, next);
+				inField = true;
+				p = next;
+			}
+			if (p == limit) {
+				if (!lastWindow) {
+					out.discardRecord();
+					return END_OF_WINDOW;
+				}
+				if (inQuotes) {
+					throw new IOException("Unterminated quoted field at end of CSV file in record " + recordNumber);
+				}
+				out.endCell();
+				out.endRecord();
+				pos = p;
+				return RECORD;
+			}
+			if (p + 1 == limit && !lastWindow) {
+				// we need to be able to look at the next byte
+				out.discardRecord();
+				return END_OF_WINDOW;
+			}
+
+			byte b = buffer.get(p);
+			if (b == '\n' || b == '\r') {
+				int lineEnd = p + 1;
+				if (b == '\r' && lineEnd < limit && buffer.get(lineEnd) == '\n') {
+					lineEnd++;
+				}
+				if (!inQuotes) {
+					out.endCell();
+					out.endRecord();
+					pos = lineEnd;
+					return RECORD;
+				}
+				// the value continues on the next line
+				if (b == '\n') {
+					out.appendInput(p, p + 1);
+				} else {
+					out.appendLiteral((byte) '\n');
+				}
+				p = lineEnd;
+				lineStart = lineEnd;
+			} else if (b == ESCAPE) {
+				inField = true;
+				if (p + 1 < limit) {
+					byte c = buffer.get(p + 1);
+					if (c == QUOTE || c == ESCAPE) {
+						out.appendInput(p + 1, p + 2);
+						p++;
+					}
+				}
+				p++;
+			} else if (b == QUOTE) {
+				if ((inQuotes || inField) && p + 1 < limit && buffer.get(p + 1) == QUOTE) {
+					// escaped quote
+					out.appendInput(p + 1, p + 2);
+					p++;
+				} else {
+					inQuotes = !inQuotes;
+					// a quote in the middle of a value is kept, e.g. a,bc"d"ef,g
+					if (p > lineStart && buffer.get(p - 1) != separator &&
+							p + 1 < limit && !isLineBreak(buffer.get(p + 1)) && buffer.get(p + 1) != separator &&
+							isBeyondThirdChar(lineStart, p)) {
+						if (out.isCellWhitespace()) {
+							out.clearCell();
+						} else {
+							out.appendInput(p, p + 1);
+						}
+					}
+				}
+				inField = !inField;
+				p++;
+			} else {
+				// separator
+				if (inQuotes) {
+					out.appendInput(p, p + 1);
+					inField = true;
+				} else {
+					out.endCell();
+					inField = false;
+				}
+				p++;
+			}
+		}
+	}
+
+	/**
+	 * @return Returns the position of the next byte with a special meaning, or the limit.
+	 */
+	private int nextSpecial(int p, int limit) {
+		// SWAR: we check eight bytes at once whether any of them is a special character
+		while (p + 8 <= limit) {
+			long word = buffer.getLong(p);
+			if ((containsByte(word, separators) | containsByte(word, QUOTES) | containsByte(word, ESCAPES) |
+					containsByte(word, LFS) | containsByte(word, CRS)) != 0) {
+				break;
+			}
+			p += 8;
+		}
+		while (p < limit && !special[buffer.get(p) & 0xff]) {
+			p++;
+		}
+		return p;
+	}
+
+	/**
+	 * @return Non-zero if the word contains the byte of which the pattern consists.
+	 */
+	private static long containsByte(long word, long pattern) {
+		long x = word ^ pattern;
+		return (x - ONES) & ~x & HIGH_BITS;
+	}
+
+	private static boolean isLineBreak(byte b) {
+		return b == '\n' || b == '\r';
+	}
+
+	/**
+	 * OpenCSV only keeps quotes in the middle of a value if there are at least three (UTF-16) characters
+	 * before the quote on the same line.
+	 */
+	private boolean isBeyondThirdChar(int lineStart, int p) {
+		int chars = 0;
+		for (int i = lineStart; i < p && chars <= 2; i++) {
+			int b = buffer.get(i) & 0xff;
+			if ((b & 0xc0) != 0x80) {
+				// supplementary characters count as two UTF-16 characters
+				chars += b >= 0xf0 ? 2 : 1;
+			}
+		}
+		return chars > 2;
+	}
+
+	/**
+	 * Detects the separator by looking at the first two lines. Semicolon is used if both lines contain
+	 * the same (non-zero) amount of semicolons, otherwise comma.
+	 *
+	 * @param file The CSV file, must be in an ASCII-compatible encoding.
+	 * @return Returns the detected separator.
+	 */
+	public static char detectSeparator(Path file) {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+			return detectSeparator(in);
+		} catch (IOException e) {
+			log.info(e.getMessage());
+		}
+		return ',';
+	}
+
+	/**
+	 * Detects the separator by looking at the first two lines of a stream, without consuming the stream.
+	 *
+	 * @param stream The CSV data, must be in an ASCII-compatible encoding and support mark and reset.
+	 * @param readLimit The maximum amount of bytes to look at.
+	 * @return Returns the detected separator.
+	 * @see #detectSeparator(Path)
+	 */
+	public static char detectSeparator(InputStream stream, int readLimit) throws IOException {
+		stream.mark(readLimit);
+		byte[] prefix = stream.readNBytes(readLimit);
+		stream.reset();
+		return detectSeparator(new ByteArrayInputStream(prefix));
+	}
+
+	private static char detectSeparator(InputStream in) throws IOException {
+		char result = ',';
+		int[] semicolons = new int[2];
+		int line = 0;
+		int b = in.read();
+		while (b != -1 && line < 2) {
+			if (b == ';') {
+				semicolons[line]++;
+			} else if (b == '\n' || b == '\r') {
+				line++;
+				if (b == '\r') {
+					in.mark(1);
+					if (in.read() != '\n') {
+						in.reset();
+					}
+				}
+			}
+			b = in.read();
+		}
+		if (semicolons[0] > 0 && semicolons[0] == semicolons[1]) {
+			result = ';';
+			log.debug("Detected use of semicolon as CSV separator");
+		} else {
+			log.debug("No semicolon detected, defaulting to comma as CSV separator");
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.etl;
+
+/**
+ * A queued request to load data into a dataset, see {@link EtlJobQueue}.
+ *
+ * @author Hannes Ebner
+ */
+public class EtlJob {
+
+	private final long id;
+
+	private final String datasetId;
+
+	private final boolean append;
+
+	private final int attempt;
+
+	private Thread worker;
+
+	private volatile boolean lost;
+
+	/**
+	 * @param id The ID of the job.
+	 * @param datasetId The ID of the dataset to load data into.
+	 * @param append If true, the data is appended to existing data.
+	 * @param attempt The number of the current attempt to process the job, starting with 1.
+	 */
+	public EtlJob(long id, String datasetId, boolean append, int attempt) {
+		this.id = id;
+		this.datasetId = datasetId;
+		this.append = append;
+		this.attempt = attempt;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getDatasetId() {
+		return datasetId;
+	}
+
+	public boolean isAppending() {
+		return append;
+	}
+
+	public int getAttempt() {
+		return attempt;
+	}
+
+	/**
+	 * Sets the thread that processes the job, so that processing can be aborted if the job is lost.
+	 *
+	 * @param worker The processing thread, or null when processing has finished. The thread is not
+	 *               interrupted anymore once this method has returned with null.
+	 */
+	public synchronized void setWorker(Thread worker) {
+		this.worker = worker;
+	}
+
+	/**
+	 * Marks the job as lost, i.e. it has been taken over by another instance, and interrupts its processing.
+	 */
+	public synchronized void abort() {
+		lost = true;
+		if (worker != null) {
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * @return Returns true if the job has been taken over by another instance and must not be finished anymore.
+	 */
+	public boolean isLost() {
+		return lost;
+	}
+
+	@Override
+	public String toString() {
+		return "ETL job " + id + " of dataset " + datasetId;
+	}
+
+}
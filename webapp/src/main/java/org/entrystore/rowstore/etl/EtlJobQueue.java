@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.etl;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A durable queue of ETL jobs that may be shared by several RowStore instances.
+ *
+ * <p>The data of a job is stored together with the job, so that it survives restarts and can be
+ * processed by any instance. Jobs of the same dataset are handed out one at a time, in the order in
+ * which they were queued.</p>
+ *
+ * @author Hannes Ebner
+ */
+public interface EtlJobQueue {
+
+	/**
+	 * Queues a job. The data is copied, so the file may be deleted afterwards.
+	 *
+	 * @param datasetId The ID of the dataset to load data into.
+	 * @param data The CSV file.
+	 * @param append If true, the data is appended to existing data.
+	 * @return Returns the queued job.
+	 * @throws IOException If the job could not be stored.
+	 */
+	EtlJob enqueue(String datasetId, File data, boolean append) throws IOException;
+
+	/**
+	 * Registers a job whose data is not stored but streamed directly by the caller. The job is claimed by
+	 * the caller right away and must be finished with either complete() or fail(); it is never retried.
+	 *
+	 * @param datasetId The ID of the dataset to load data into.
+	 * @param append If true, the data is appended to existing data.
+	 * @return Returns the claimed job or null if the dataset has other pending jobs, which must be processed first.
+	 * @throws IOException If the job could not be stored.
+	 */
+	EtlJob begin(String datasetId, boolean append) throws IOException;
+
+	/**
+	 * Claims the next job that is due. The job must be finished with either complete() or fail().
+	 *
+	 * @return Returns the claimed job or null if no job is due.
+	 */
+	EtlJob claim();
+
+	/**
+	 * Writes the data of a claimed job to a temporary file which must be deleted by the caller.
+	 */
+	File fetchData(EtlJob job) throws IOException;
+
+	/**
+	 * Removes a successfully processed job together with its data. Has no effect if the job has been
+	 * taken over by another instance, see {@link EtlJob#isLost()}.
+	 */
+	void complete(EtlJob job);
+
+	/**
+	 * Marks a job as failed. Has no effect if the job has been taken over by another instance.
+	 *
+	 * @param job The failed job.
+	 * @param error A description of the error.
+	 * @param retry Whether the failure is temporary and the job should be retried later.
+	 * @return Returns true if the job will be retried, false if it has failed permanently.
+	 */
+	boolean fail(EtlJob job, String error, boolean retry);
+
+	/**
+	 * @return Returns the number of jobs that are queued or being processed by any instance.
+	 */
+	int getPendingJobs();
+
+}
@@ -16,6 +16,7 @@
 
 package org.entrystore.rowstore.etl;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.entrystore.rowstore.store.Dataset;
 import org.entrystore.rowstore.store.RowStore;
 import org.slf4j.Logger;
@@ -23,12 +24,28 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Manages the ETL-queue. Accepts and submits ETL-requests to the processing pipeline.
+ * Manages the ETL-queue. Accepts ETL-requests and processes the jobs of the persistent job queue.
  *
- * Uses one thread to manage the queue and one thread per running ETL-process.
+ * Submitted data is stored in the job queue in the database before the request is answered, so that
+ * accepted data is not lost if the application is stopped. A dispatcher claims due jobs from the queue
+ * whenever a load worker is free; it is woken up when a job is submitted to this instance and polls the
+ * queue periodically for jobs submitted to other instances and for retries. Every claimed job runs on its
+ * own virtual thread. Jobs of the same dataset are processed one after another in the order of submission,
+ * across all instances; jobs of different datasets run in parallel. The conversion of CSV to JSON is
+ * carried out by a pool of threads that is shared by all ETL-processes.
+ *
+ * The amount of load workers (i.e., threads writing to the database over their own connection) is
+ * limited by the maximum number of ETL-processes. Each ETL-process takes up one worker and may borrow
+ * additional workers for loading large files in chunks if they are not used by other processes.
  *
  * @author Hannes Ebner
  */
@@ -36,114 +53,252 @@ public class EtlProcessor {
 
 	private static Logger log = LoggerFactory.getLogger(EtlProcessor.class);
 
-	private int concurrentConversions = 5;
+	private final AtomicInteger runningConversions = new AtomicInteger();
 
-	private int runningConversions = 0;
+	private final RowStore rowstore;
 
-	private Object mutex = new Object();
+	private final EtlJobQueue jobQueue;
 
-	private Thread datasetSubmitter;
+	private final ExecutorService loaderExecutor;
 
-	private RowStore rowstore;
+	private final ExecutorService conversionExecutor;
 
-	private final ConcurrentLinkedQueue<EtlResource> postQueue = new ConcurrentLinkedQueue<>();
+	private final Semaphore loadWorkers;
 
-	public class DatasetSubmitter extends Thread {
+	/**
+	 * Released to wake up the dispatcher before the end of the poll interval.
+	 */
+	private final Semaphore wakeup = new Semaphore(0);
 
-		@Override
-		public void run() {
-			while (!interrupted()) {
-				if (!postQueue.isEmpty() && runningConversions <= concurrentConversions) {
-					EtlResource res = postQueue.poll();
-					if (res != null) {
-						new DatasetLoader(res).start();
-					}
-				} else {
-					try {
-						Thread.sleep(5000);
-					} catch (InterruptedException ie) {
-						log.info("Dataset submitter got interrupted, shutting down submitter thread");
-						return;
-					}
-				}
-			}
-		}
+	private final Thread dispatcher;
 
+	public EtlProcessor(RowStore rowstore) {
+		this.rowstore = rowstore;
+		this.jobQueue = rowstore.getEtlJobQueue();
+		this.loadWorkers = new Semaphore(Math.max(1, this.rowstore.getConfig().getMaxEtlProcesses()));
+		int converterThreads = Math.max(1, this.rowstore.getConfig().getEtlConverterThreads());
+		log.info("Using " + converterThreads + " threads for converting CSV to JSON");
+		conversionExecutor = Executors.newFixedThreadPool(converterThreads,
+				new ThreadFactoryBuilder().setNameFormat("rowstore-etl-converter-%d").setDaemon(true).build());
+		loaderExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("rowstore-etl-loader-", 0).factory());
+		dispatcher = Thread.ofVirtual().name("rowstore-etl-dispatcher").start(this::dispatch);
 	}
 
-	public class DatasetLoader extends Thread {
-
-		private EtlResource etlResource;
+	/**
+	 * Stores an ETL-request in the job queue. The data source of the request may be deleted afterwards.
+	 *
+	 * @throws IOException If the request could not be queued.
+	 */
+	public void submit(EtlResource etlResource) throws IOException {
+		String datasetId = etlResource.getDataset().getId();
+		log.info("Adding dataset " + datasetId + " to ETL processing queue");
+		jobQueue.enqueue(datasetId, etlResource.getDataSource(), etlResource.isAppending());
+		wakeup.release();
+	}
 
-		DatasetLoader(EtlResource etlResource) {
-			this.etlResource = etlResource;
+	/**
+	 * Loads data directly from a stream, e.g. the body of a request, in the calling thread. The data is
+	 * neither written to disk nor stored in the job queue, so the load is not retried if it fails.
+	 *
+	 * @param dataset The dataset to load data into.
+	 * @param data The CSV data.
+	 * @param append If true, the data is appended to existing data.
+	 * @return Returns true if the data has been loaded, false if the data has been rejected, or null if the dataset
+	 * has pending ETL-jobs which must be processed first; the stream has not been read in that case.
+	 * @throws RetryableEtlException If no load worker became free within the configured time.
+	 * @throws IOException If the stream could not be read, the data could not be stored or the job could not be registered.
+	 */
+	public Boolean populate(Dataset dataset, InputStream data, boolean append) throws IOException {
+		int wait = rowstore.getConfig().getEtlStreamingWait();
+		try {
+			if (!loadWorkers.tryAcquire(wait, TimeUnit.SECONDS)) {
+				// the request thread is not held indefinitely, the client may try again later
+				throw new RetryableEtlException("No free load worker for dataset " + dataset.getId() + " within " + wait + " seconds", null);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a free load worker");
 		}
-
-		@Override
-		public void run() {
-			notifyStarted(etlResource);
-			log.info("Started dataset loader for " + etlResource.getDataset().getId());
+		EtlJob job = null;
+		runningConversions.incrementAndGet();
+		try {
+			job = jobQueue.begin(dataset.getId(), append);
+			if (job == null) {
+				log.info("Dataset " + dataset.getId() + " has pending ETL jobs, data cannot be streamed");
+				return null;
+			}
+			log.info("Populating dataset " + dataset.getId() + " with streamed data");
+			job.setWorker(Thread.currentThread());
+			boolean result;
 			try {
-				File fileToLoad = etlResource.getDataSource();
-				Dataset dataset = etlResource.getDataset();
-				while (EtlStatus.PROCESSING == dataset.getStatus()) {
-					log.info("Dataset is already being processed, retrying in 5 seconds");
-					try {
-						Thread.sleep(5000);
-					} catch (InterruptedException ie) {
-						log.error("Dataset loader got interrupted, shutting down loader thread before loading data");
-						return;
-					}
-				}
-				log.info("Populating dataset " + dataset.getId() + " with data from file " + fileToLoad);
-				if (dataset.populate(fileToLoad, etlResource.isAppending())) {
-					log.info("Dataset " + dataset.getId() + " successfully populated");
-				} else {
-					log.info("An error occured while populating dataset " + dataset.getId());
-				}
-			} catch (IOException e) {
-				log.error(e.getMessage());
+				result = dataset.populate(data, append);
 			} finally {
-				notifyFinished(etlResource);
+				job.setWorker(null);
+				if (job.isLost()) {
+					// the request thread is reused, the interrupt was only meant for the load
+					Thread.interrupted();
+				}
+			}
+			if (job.isLost()) {
+				log.warn("Discarding the result of loading dataset " + dataset.getId() + ", " + job + " has been taken over by another instance");
+				job = null;
+				throw new IOException("Loading dataset " + dataset.getId() + " has been taken over by another instance");
+			}
+			if (result) {
+				log.info("Dataset " + dataset.getId() + " successfully populated");
+				jobQueue.complete(job);
+				rowstore.getExportSnapshots().build(dataset);
+			} else {
+				log.info("An error occured while populating dataset " + dataset.getId());
+				jobQueue.fail(job, "Unable to populate dataset", false);
 			}
+			job = null;
+			return result;
+		} finally {
+			if (job != null) {
+				jobQueue.fail(job, "Unable to read streamed data", false);
+				dataset.setStatus(EtlStatus.ERROR);
+			}
+			runningConversions.decrementAndGet();
+			loadWorkers.release();
+			// subsequent jobs of the dataset may be due now
+			wakeup.release();
 		}
-
 	}
 
-	public EtlProcessor(RowStore rowstore) {
-		this.rowstore = rowstore;
-		this.concurrentConversions = this.rowstore.getConfig().getMaxEtlProcesses();
-		datasetSubmitter = new DatasetSubmitter();
-		log.info("Starting dataset submitter");
-		datasetSubmitter.start();
+	private void dispatch() {
+		long pollInterval = TimeUnit.SECONDS.toMillis(Math.max(1, rowstore.getConfig().getEtlPollInterval()));
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				loadWorkers.acquire();
+				EtlJob job = jobQueue.claim();
+				if (job == null) {
+					loadWorkers.release();
+					wakeup.tryAcquire(pollInterval, TimeUnit.MILLISECONDS);
+					wakeup.drainPermits();
+					continue;
+				}
+				loaderExecutor.execute(() -> load(job));
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				log.error("Unexpected error in ETL dispatcher", e);
+			}
+		}
+		log.info("ETL dispatcher stopped");
 	}
 
-	public void submit(EtlResource etlResource) {
-		log.info("Adding dataset " + etlResource.getDataset().getId() + " to ETL processing queue");
-		postQueue.add(etlResource);
+	private void load(EtlJob job) {
+		runningConversions.incrementAndGet();
+		log.info("Started dataset loader for " + job);
+		job.setWorker(Thread.currentThread());
+		Dataset dataset = null;
+		File fileToLoad = null;
+		try {
+			dataset = rowstore.getDatasets().getDataset(job.getDatasetId());
+			if (dataset == null) {
+				log.info("Dataset " + job.getDatasetId() + " does not exist anymore, discarding " + job);
+				jobQueue.complete(job);
+				return;
+			}
+			fileToLoad = jobQueue.fetchData(job);
+			log.info("Populating dataset " + dataset.getId() + " with data from file " + fileToLoad);
+			boolean result = dataset.populate(fileToLoad, job.isAppending());
+			if (job.isLost()) {
+				log.warn("Discarding the result of loading dataset " + dataset.getId() + ", " + job + " has been taken over by another instance");
+			} else if (result) {
+				log.info("Dataset " + dataset.getId() + " successfully populated");
+				jobQueue.complete(job);
+				rowstore.getExportSnapshots().build(dataset);
+			} else {
+				log.info("An error occured while populating dataset " + dataset.getId());
+				jobQueue.fail(job, "Unable to populate dataset", false);
+			}
+		} catch (IOException | RuntimeException e) {
+			if (job.isLost()) {
+				log.warn("Aborted loading dataset " + job.getDatasetId() + ", " + job + " has been taken over by another instance");
+				return;
+			}
+			if (e instanceof RuntimeException) {
+				log.error("Unexpected error while populating dataset " + job.getDatasetId(), e);
+			} else {
+				log.error(e.getMessage());
+			}
+			boolean retried = jobQueue.fail(job, String.valueOf(e.getMessage()), true);
+			if (dataset != null) {
+				dataset.setStatus(retried ? EtlStatus.ACCEPTED_DATA : EtlStatus.ERROR);
+			}
+		} finally {
+			job.setWorker(null);
+			if (fileToLoad != null) {
+				try {
+					Files.deleteIfExists(fileToLoad.toPath());
+				} catch (IOException e) {
+					log.warn("Unable to delete temporary file " + fileToLoad + ": " + e.getMessage());
+				}
+			}
+			runningConversions.decrementAndGet();
+			loadWorkers.release();
+			// a finished job may unblock the next job of the same dataset
+			wakeup.release();
+		}
 	}
 
-	public void notifyStarted(EtlResource etlResource) {
-		synchronized (mutex) {
-			runningConversions++;
+	public void shutdown() {
+		log.info("Shutting down ETL processor");
+		dispatcher.interrupt();
+		loaderExecutor.shutdownNow();
+		conversionExecutor.shutdownNow();
+		try {
+			if (!loaderExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+				log.warn("ETL processes did not terminate within 10 seconds");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
-	public void notifyFinished(EtlResource etlResource) {
-		synchronized (mutex) {
-			runningConversions--;
+	/**
+	 * @return Returns the executor that is used for converting CSV to JSON.
+	 */
+	public ExecutorService getConversionExecutor() {
+		return conversionExecutor;
+	}
+
+	/**
+	 * Borrows load workers that are currently not in use. Does not block.
+	 *
+	 * @param max The maximum amount of workers to borrow.
+	 * @return Returns the amount of borrowed workers, which must be returned using releaseLoadWorkers().
+	 */
+	public int acquireLoadWorkers(int max) {
+		int acquired = 0;
+		while (acquired < max && loadWorkers.tryAcquire()) {
+			acquired++;
 		}
+		return acquired;
 	}
 
-	public void shutdown() {
-		log.info("Shutting down ETL processor");
-		if (datasetSubmitter != null) {
-			datasetSubmitter.interrupt();
+	/**
+	 * Returns borrowed load workers.
+	 *
+	 * @param count The amount of workers to return.
+	 */
+	public void releaseLoadWorkers(int count) {
+		if (count > 0) {
+			loadWorkers.release(count);
 		}
 	}
 
 	public int getActiveEtlProcesses() {
-		return runningConversions;
+		return runningConversions.get();
+	}
+
+	/**
+	 * @return Returns the amount of ETL-jobs that are queued or being processed by any instance.
+	 */
+	public int getQueuedEtlProcesses() {
+		return jobQueue.getPendingJobs();
 	}
 
 }
\ No newline at end of file
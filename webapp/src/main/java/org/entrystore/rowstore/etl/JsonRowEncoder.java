@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.etl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes CSV rows as UTF-8 JSON objects directly into a {@link RowBatch}.
+ *
+ * <p>The column labels are escaped once per dataset load, the cell values are escaped while they are
+ * copied from the tokenizer's buffer. No intermediate objects are created per row or cell. Instances
+ * are immutable and may be shared between threads.</p>
+ *
+ * @author Hannes Ebner
+ */
+public final class JsonRowEncoder {
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Per label the bytes <code>"label":</code> including the opening quote of the value,
+	 * or null if the column is to be skipped.
+	 */
+	private final byte[][] keys;
+
+	private final int columns;
+
+	/**
+	 * @param labels The column labels, in the same order as the cells of the rows to be encoded.
+	 */
+	public JsonRowEncoder(String[] labels) {
+		this.columns = labels.length;
+		this.keys = new byte[labels.length][];
+		for (int i = 0; i < labels.length; i++) {
+			// we skip empty strings as this would result in empty key names in the JSON result
+			if (labels[i].trim().isEmpty()) {
+				continue;
+			}
+			RowBatch tmp = new RowBatch(0, labels[i].length() * 6 + 4);
+			tmp.put((byte) '"');
+			appendEscaped(tmp, labels[i]);
+			tmp.put((byte) '"');
+			tmp.put((byte) ':');
+			tmp.put((byte) '"');
+			tmp.endRow();
+			keys[i] = Arrays.copyOf(tmp.getData(), tmp.getRowLength(0));
+		}
+	}
+
+	/**
+	 * @return Returns the amount of columns.
+	 */
+	public int getColumnCount() {
+		return columns;
+	}
+
+	/**
+	 * Appends a record as JSON object to the batch and updates the batch's column statistics.
+	 *
+	 * @param records The tokenized CSV records.
+	 * @param record The index of the record to encode.
+	 * @param batch The batch to append to.
+	 */
+	public void encode(CsvRecords records, int record, RowBatch batch) {
+		int firstCell = records.getFirstCell(record);
+		int cellCount = records.getEndCell(record) - firstCell;
+		if (cellCount > columns) {
+			throw new IllegalArgumentException("Amount of values per row must not be higher than amount of labels in first row of CSV file");
+		}
+
+		batch.ensureCapacity(2);
+		batch.put((byte) '{');
+		boolean first = true;
+		for (int i = 0; i < cellCount; i++) {
+			byte[] key = keys[i];
+			if (key == null) {
+				continue;
+			}
+			int cell = firstCell + i;
+			int length = records.getLength(cell);
+			// worst case: comma, key, every byte escaped as six character unicode escape, closing quote
+			batch.ensureCapacity(1 + key.length + length * 6 + 1);
+			if (!first) {
+				batch.put((byte) ',');
+			}
+			first = false;
+			batch.put(key);
+			int chars = appendEscaped(batch, records.getBuffer(cell), records.getStart(cell), length);
+			batch.put((byte) '"');
+			batch.updateColumnSize(i, chars);
+			if (length == 0) {
+				batch.countEmpty(i);
+			} else {
+				batch.addColumnType(i, ColumnType.classify(records.getBuffer(cell), records.getStart(cell), length));
+			}
+		}
+		// rows may be shorter than the header
+		for (int i = cellCount; i < columns; i++) {
+			if (keys[i] != null) {
+				batch.countEmpty(i);
+			}
+		}
+		batch.ensureCapacity(1);
+		batch.put((byte) '}');
+		batch.endRow();
+	}
+
+	/**
+	 * Appends UTF-8 encoded bytes with JSON string escaping. Runs of bytes that do not have to be escaped
+	 * are copied in bulk. The capacity must have been ensured before.
+	 *
+	 * @return Returns the length of the value in UTF-16 characters, i.e., the same as String.length().
+	 */
+	private static int appendEscaped(RowBatch out, ByteBuffer src, int start, int length) {
+		int chars = 0;
+		int end = start + length;
+		int run = start;
+		for (int i = start; i < end; i++) {
+			int b = src.get(i) & 0xff;
+			if ((b & 0xc0) != 0x80) {
+				// supplementary characters count as two UTF-16 characters
+				chars += b >= 0xf0 ? 2 : 1;
+			}
+			if (b == '"' || b == '\\' || b < 0x20) {
+				out.put(src, run, i - run);
+				if (b < 0x20) {
+					appendControl(out, (char) b);
+				} else {
+					out.put((byte) '\\');
+					out.put((byte) b);
+				}
+				run = i + 1;
+			}
+		}
+		out.put(src, run, end - run);
+		return chars;
+	}
+
+	/**
+	 * Appends a string as UTF-8 with JSON string escaping, used for the labels. The capacity must have
+	 * been ensured before.
+	 */
+	private static void appendEscaped(RowBatch out, String s) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (c == '"' || c == '\\') {
+					out.put((byte) '\\');
+					out.put((byte) c);
+				} else if (c < 0x20) {
+					appendControl(out, c);
+				} else {
+					out.put((byte) c);
+				}
+			} else if (c < 0x800) {
+				out.put((byte) (0xc0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xf0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				out.put((byte) (0x80 | (cp & 0x3f)));
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogates cannot be encoded, same replacement as in String.getBytes()
+				out.put((byte) '?');
+			} else {
+				out.put((byte) (0xe0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	private static void appendControl(RowBatch out, char c) {
+		out.put((byte) '\\');
+		switch (c) {
+			case '\b': out.put((byte) 'b'); break;
+			case '\f': out.put((byte) 'f'); break;
+			case '\n': out.put((byte) 'n'); break;
+			case '\r': out.put((byte) 'r'); break;
+			case '\t': out.put((byte) 't'); break;
+			default:
+				out.put((byte) 'u');
+				out.put((byte) '0');
+				out.put((byte) '0');
+				out.put(HEX[c >> 4]);
+				out.put(HEX[c & 0xf]);
+		}
+	}
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.etl;
+
+import java.io.IOException;
+
+/**
+ * Signals that loading data has failed for a reason that may be temporary, e.g. a lost database
+ * connection. The ETL job is retried later.
+ *
+ * @author Hannes Ebner
+ */
+public class RetryableEtlException extends IOException {
+
+	public RetryableEtlException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.etl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A batch of consecutive CSV lines that has been converted to JSON.
+ *
+ * <p>All rows of a batch are stored back to back as UTF-8 encoded JSON in one byte array. Batches are
+ * meant to be reused after they have been written to the database, see {@link #reset(long)}.</p>
+ *
+ * @author Hannes Ebner
+ */
+public class RowBatch {
+
+	private long firstLine;
+
+	private byte[] data;
+
+	private int length;
+
+	private int[] rowEnds;
+
+	private int rowCount;
+
+	private final int[] columnSizes;
+
+	private final long[] emptyCounts;
+
+	private final int[] columnTypes;
+
+	/**
+	 * @param columns The amount of columns.
+	 * @param initialCapacity The initial size of the buffer in bytes.
+	 */
+	public RowBatch(int columns, int initialCapacity) {
+		this.data = new byte[Math.max(initialCapacity, 1024)];
+		this.rowEnds = new int[256];
+		this.columnSizes = new int[columns];
+		this.emptyCounts = new long[columns];
+		this.columnTypes = new int[columns];
+	}
+
+	/**
+	 * Clears the batch so that it can be reused.
+	 *
+	 * @param firstLine The line number (within the CSV file) of the first row of the batch.
+	 */
+	public void reset(long firstLine) {
+		this.firstLine = firstLine;
+		this.length = 0;
+		this.rowCount = 0;
+		Arrays.fill(columnSizes, 0);
+		Arrays.fill(emptyCounts, 0);
+		Arrays.fill(columnTypes, ColumnType.EMPTY);
+	}
+
+	/**
+	 * @return Returns the line number (within the CSV file) of the first row of this batch.
+	 */
+	public long getFirstLine() {
+		return firstLine;
+	}
+
+	/**
+	 * @return Returns the amount of rows in this batch.
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @return Returns the buffer containing all rows of the batch. Use getRowStart() and getRowLength() to access a row.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getRowStart(int row) {
+		return row == 0 ? 0 : rowEnds[row - 1];
+	}
+
+	public int getRowLength(int row) {
+		return rowEnds[row] - getRowStart(row);
+	}
+
+	/**
+	 * @return Returns the maximum value length per column within this batch, in the order of the column labels.
+	 */
+	public int[] getColumnSizes() {
+		return columnSizes;
+	}
+
+	/**
+	 * @return Returns the amount of empty or missing values per column within this batch, in the order of the column labels.
+	 */
+	public long[] getEmptyCounts() {
+		return emptyCounts;
+	}
+
+	/**
+	 * @return Returns the combined {@link ColumnType} flags of the values per column within this batch, in the order of the column labels.
+	 */
+	public int[] getColumnTypes() {
+		return columnTypes;
+	}
+
+	void updateColumnSize(int column, int size) {
+		if (size > columnSizes[column]) {
+			columnSizes[column] = size;
+		}
+	}
+
+	void addColumnType(int column, int type) {
+		columnTypes[column] |= type;
+	}
+
+	void countEmpty(int column) {
+		emptyCounts[column]++;
+	}
+
+	/**
+	 * Makes sure that at least the given amount of bytes can be appended without growing the buffer.
+	 */
+	void ensureCapacity(int additional) {
+		if (length + additional > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, length + additional));
+		}
+	}
+
+	/**
+	 * Appends a byte, the capacity must have been ensured before.
+	 */
+	void put(byte b) {
+		data[length++] = b;
+	}
+
+	/**
+	 * Appends bytes, the capacity must have been ensured before.
+	 */
+	void put(byte[] bytes) {
+		System.arraycopy(bytes, 0, data, length, bytes.length);
+		length += bytes.length;
+	}
+
+	/**
+	 * Appends bytes from a buffer, the capacity must have been ensured before.
+	 */
+	void put(ByteBuffer src, int index, int count) {
+		src.get(index, data, length, count);
+		length += count;
+	}
+
+	/**
+	 * Marks the end of the current row.
+	 */
+	void endRow() {
+		if (rowCount == rowEnds.length) {
+			rowEnds = Arrays.copyOf(rowEnds, rowEnds.length * 2);
+		}
+		rowEnds[rowCount++] = length;
+	}
+
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.filters;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.entrystore.rowstore.store.RowStoreConfig;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.Dimension;
+import org.restlet.data.Encoding;
+import org.restlet.data.MediaType;
+import org.restlet.data.Preference;
+import org.restlet.data.Status;
+import org.restlet.data.Tag;
+import org.restlet.engine.io.IoUtils;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StreamRepresentation;
+import org.restlet.routing.Filter;
+import org.restlet.util.WrapperRepresentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses responses on the fly with the content coding preferred by the client among the configured ones.
+ *
+ * <p>Only textual representations of at least the configured minimum size are compressed. Representations that
+ * are encoded already, e.g. pre-compressed export snapshots, and partial content are passed through. The entity
+ * tag of a compressed representation gets the content coding as suffix, which is removed again from the
+ * <code>If-None-Match</code> header of subsequent requests.</p>
+ *
+ * <p>The representation is compressed by a separate thread into a bounded buffer of chunks that are sent to the
+ * client from the request thread. Data of slow clients is produced ahead by up to the size of the buffer, so that
+ * database cursors of exports that fit into the buffer are released before the client has received the data.</p>
+ *
+ * @author Hannes Ebner
+ */
+public class CompressionFilter extends Filter {
+
+	static private Logger log = LoggerFactory.getLogger(CompressionFilter.class);
+
+	private static final String TAG_SUFFIX_ATTRIBUTE = CompressionFilter.class.getName() + ".tagSuffix";
+
+	private static final int CHUNK_SIZE = 65536;
+
+	private static final ThreadFactory compressorThreads = Thread.ofVirtual().name("rowstore-compressor-", 0).factory();
+
+	enum Codec {
+
+		GZIP("gzip") {
+			@Override
+			OutputStream open(OutputStream out, RowStoreConfig config) throws IOException {
+				int level = config.getCompressionGzipLevel();
+				return new GZIPOutputStream(out, CHUNK_SIZE) {
+					{
+						def.setLevel(level);
+					}
+				};
+			}
+		},
+
+		DEFLATE("deflate") {
+			@Override
+			OutputStream open(OutputStream out, RowStoreConfig config) {
+				Deflater deflater = new Deflater(config.getCompressionGzipLevel());
+				return new DeflaterOutputStream(out, deflater, CHUNK_SIZE) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							deflater.end();
+						}
+					}
+				};
+			}
+		},
+
+		ZSTD("zstd") {
+			@Override
+			OutputStream open(OutputStream out, RowStoreConfig config) throws IOException {
+				return new ZstdOutputStream(out, config.getCompressionZstdLevel());
+			}
+		};
+
+		private final String coding;
+
+		private final Encoding encoding;
+
+		Codec(String coding) {
+			this.coding = coding;
+			this.encoding = Encoding.valueOf(coding);
+		}
+
+		abstract OutputStream open(OutputStream out, RowStoreConfig config) throws IOException;
+
+		/**
+		 * @return Returns the codec with the given (case-insensitive) name, or null if there is no such codec.
+		 */
+		static Codec fromName(String name) {
+			for (Codec codec : values()) {
+				if (codec.coding.equalsIgnoreCase(name)) {
+					return codec;
+				}
+			}
+			return null;
+		}
+
+	}
+
+	private final RowStoreConfig config;
+
+	private final List<Codec> codecs = new ArrayList<>();
+
+	public CompressionFilter(RowStoreConfig config) {
+		this.config = config;
+		for (String name : config.getCompressionEncodings()) {
+			Codec codec = Codec.fromName(name);
+			if (codec == null) {
+				log.warn("Ignoring unsupported content coding: " + name);
+			} else if (!codecs.contains(codec)) {
+				codecs.add(codec);
+			}
+		}
+	}
+
+	@Override
+	protected int beforeHandle(Request request, Response response) {
+		List<Tag> noneMatch = request.getConditions().getNoneMatch();
+		if (noneMatch != null && !noneMatch.isEmpty()) {
+			List<Tag> result = new ArrayList<>(noneMatch.size());
+			for (Tag tag : noneMatch) {
+				Codec codec = getTagCodec(tag);
+				if (codec != null) {
+					request.getAttributes().put(TAG_SUFFIX_ATTRIBUTE, codec);
+					result.add(new Tag(tag.getName().substring(0, tag.getName().length() - codec.coding.length() - 1), tag.isWeak()));
+				} else {
+					result.add(tag);
+				}
+			}
+			request.getConditions().setNoneMatch(result);
+		}
+		return CONTINUE;
+	}
+
+	@Override
+	protected void afterHandle(Request request, Response response) {
+		Representation entity = response.getEntity();
+		if (entity == null) {
+			return;
+		}
+
+		// the client's copy is the compressed representation it has validated
+		if (Status.REDIRECTION_NOT_MODIFIED.equals(response.getStatus())) {
+			Codec codec = (Codec) request.getAttributes().get(TAG_SUFFIX_ATTRIBUTE);
+			if (codec != null && entity.getTag() != null) {
+				entity.setTag(addTagSuffix(entity.getTag(), codec));
+			}
+			return;
+		}
+
+		if (!response.getStatus().isSuccess() ||
+				Status.SUCCESS_PARTIAL_CONTENT.equals(response.getStatus()) ||
+				!entity.isAvailable() ||
+				!isCompressible(entity.getMediaType())) {
+			return;
+		}
+		response.getDimensions().add(Dimension.ENCODING);
+
+		if ((request.getRanges() != null && !request.getRanges().isEmpty()) ||
+				(entity.getEncodings() != null && !entity.getEncodings().isEmpty())) {
+			return;
+		}
+		Codec codec = negotiate(request);
+		if (codec == null) {
+			return;
+		}
+		if (entity.getSize() == Representation.UNKNOWN_SIZE && !(entity instanceof StreamRepresentation) && !entity.isTransient()) {
+			// representations that are generated from data in memory, e.g. JSON query results, are serialized
+			// once to learn their size in bytes; the serialized bytes are sent instead of serializing them again
+			try {
+				entity = new BufferedRepresentation(entity);
+			} catch (IOException e) {
+				log.error(e.getMessage());
+				return;
+			}
+			response.setEntity(entity);
+		}
+		long size = entity.getSize();
+		if (size != Representation.UNKNOWN_SIZE && size < config.getCompressionMinSize()) {
+			return;
+		}
+		int bufferedChunks = (int) Math.max(2, (long) config.getCompressionBuffer() * 1024 * 1024 / CHUNK_SIZE);
+		response.setEntity(new CompressedRepresentation(entity, codec, config, bufferedChunks));
+	}
+
+	/**
+	 * @return Returns the configured codec with the highest quality in the client's Accept-Encoding header,
+	 * or null if the client does not accept any of the configured codecs.
+	 */
+	private Codec negotiate(Request request) {
+		List<Preference<Encoding>> accepted = request.getClientInfo().getAcceptedEncodings();
+		if (accepted == null || accepted.isEmpty()) {
+			return null;
+		}
+		Codec result = null;
+		float resultQuality = 0;
+		for (Codec codec : codecs) {
+			float quality = -1;
+			float anyQuality = 0;
+			for (Preference<Encoding> pref : accepted) {
+				String name = pref.getMetadata().getName();
+				if (codec.coding.equalsIgnoreCase(name)) {
+					quality = pref.getQuality();
+				} else if ("*".equals(name)) {
+					anyQuality = pref.getQuality();
+				}
+			}
+			if (quality < 0) {
+				quality = anyQuality;
+			}
+			if (quality > resultQuality) {
+				result = codec;
+				resultQuality = quality;
+			}
+		}
+		return result;
+	}
+
+	private boolean isCompressible(MediaType mediaType) {
+		if (mediaType == null) {
+			return false;
+		}
+		String mime = mediaType.getName();
+		return mime.startsWith("text/") ||
+				mime.endsWith("json") ||
+				mime.endsWith("xml") ||
+				"application/javascript".equals(mime);
+	}
+
+	private Codec getTagCodec(Tag tag) {
+		for (Codec codec : codecs) {
+			if (tag.getName() != null && tag.getName().endsWith("+" + codec.coding)) {
+				return codec;
+			}
+		}
+		return null;
+	}
+
+	private static Tag addTagSuffix(Tag tag, Codec codec) {
+		return new Tag(tag.getName() + "+" + codec.coding, tag.isWeak());
+	}
+
+	/**
+	 * Compresses a representation while it is written. The wrapped representation is written by a separate
+	 * thread into a bounded queue of compressed chunks.
+	 */
+	private static final class CompressedRepresentation extends WrapperRepresentation {
+
+		private static final byte[] END = new byte[0];
+
+		private final Codec codec;
+
+		private final RowStoreConfig config;
+
+		private final int bufferedChunks;
+
+		CompressedRepresentation(Representation wrapped, Codec codec, RowStoreConfig config, int bufferedChunks) {
+			super(wrapped);
+			this.codec = codec;
+			this.config = config;
+			this.bufferedChunks = bufferedChunks;
+		}
+
+		@Override
+		public List<Encoding> getEncodings() {
+			List<Encoding> result = new ArrayList<>();
+			if (getWrappedRepresentation().getEncodings() != null) {
+				result.addAll(getWrappedRepresentation().getEncodings());
+			}
+			result.add(codec.encoding);
+			return result;
+		}
+
+		@Override
+		public Tag getTag() {
+			Tag tag = getWrappedRepresentation().getTag();
+			return tag != null ? addTagSuffix(tag, codec) : null;
+		}
+
+		@Override
+		public long getSize() {
+			return UNKNOWN_SIZE;
+		}
+
+		@Override
+		public long getAvailableSize() {
+			return UNKNOWN_SIZE;
+		}
+
+		@Override
+		public InputStream getStream() {
+			return IoUtils.getStream(this);
+		}
+
+		@Override
+		public ReadableByteChannel getChannel() throws IOException {
+			return IoUtils.getChannel(this);
+		}
+
+		@Override
+		public void write(OutputStream outputStream) throws IOException {
+			BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(bufferedChunks);
+			IOException[] failure = new IOException[1];
+			Thread compressor = compressorThreads.newThread(() -> {
+				try (OutputStream out = codec.open(new ChunkOutputStream(chunks), config)) {
+					getWrappedRepresentation().write(out);
+				} catch (IOException e) {
+					failure[0] = e;
+				} catch (RuntimeException e) {
+					failure[0] = new IOException(e);
+				} finally {
+					try {
+						chunks.put(END);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			compressor.start();
+			try {
+				byte[] chunk;
+				while ((chunk = chunks.take()) != END) {
+					outputStream.write(chunk);
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for compressed data");
+			} finally {
+				// stops the compressor if the client is gone
+				compressor.interrupt();
+			}
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+
+	}
+
+	/**
+	 * Holds the serialized content of a representation, the metadata is taken from the wrapped representation.
+	 */
+	private static final class BufferedRepresentation extends WrapperRepresentation {
+
+		private final byte[] content;
+
+		BufferedRepresentation(Representation wrapped) throws IOException {
+			super(wrapped);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			wrapped.write(out);
+			content = out.toByteArray();
+		}
+
+		@Override
+		public long getSize() {
+			return content.length;
+		}
+
+		@Override
+		public long getAvailableSize() {
+			return content.length;
+		}
+
+		@Override
+		public InputStream getStream() {
+			return new ByteArrayInputStream(content);
+		}
+
+		@Override
+		public ReadableByteChannel getChannel() {
+			return Channels.newChannel(getStream());
+		}
+
+		@Override
+		public Reader getReader() {
+			return new StringReader(getText());
+		}
+
+		@Override
+		public String getText() {
+			CharacterSet characterSet = getCharacterSet();
+			return new String(content, characterSet != null ? characterSet.toCharset() : StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void write(OutputStream outputStream) throws IOException {
+			outputStream.write(content);
+		}
+
+		@Override
+		public void write(WritableByteChannel writableChannel) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			while (buffer.hasRemaining()) {
+				writableChannel.write(buffer);
+			}
+		}
+
+		@Override
+		public void write(Writer writer) throws IOException {
+			writer.write(getText());
+		}
+
+	}
+
+	/**
+	 * Splits written data into chunks and puts them into a queue, blocks while the queue is full.
+	 */
+	private static final class ChunkOutputStream extends OutputStream {
+
+		private final BlockingQueue<byte[]> chunks;
+
+		private byte[] buffer = new byte[CHUNK_SIZE];
+
+		private int count;
+
+		ChunkOutputStream(BlockingQueue<byte[]> chunks) {
+			this.chunks = chunks;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flush();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) {
+					flush();
+				}
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			byte[] chunk = count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+			try {
+				chunks.put(chunk);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Compressed response is not consumed anymore");
+			}
+			if (chunk == buffer) {
+				buffer = new byte[CHUNK_SIZE];
+			}
+			count = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+	}
+
+}
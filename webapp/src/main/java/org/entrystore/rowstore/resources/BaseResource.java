@@ -17,19 +17,27 @@
 package org.entrystore.rowstore.resources;
 
 import org.entrystore.rowstore.RowStoreApplication;
+import org.entrystore.rowstore.store.Dataset;
 import org.entrystore.rowstore.store.RowStore;
 import org.restlet.Context;
 import org.restlet.Request;
 import org.restlet.Response;
+import org.restlet.data.Conditions;
 import org.restlet.data.MediaType;
 import org.restlet.data.ServerInfo;
+import org.restlet.data.Status;
+import org.restlet.data.Tag;
+import org.restlet.representation.EmptyRepresentation;
+import org.restlet.representation.Representation;
 import org.restlet.resource.ServerResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Base resource from which all other REST resources are subclassed.
@@ -64,6 +72,96 @@ public class BaseResource extends ServerResource {
 
 		// we set a custom Server header in the HTTP response
 		setServerInfo(this.getServerInfo());
+
+		// conditional requests are evaluated by the resources before any data is
+		// fetched, see isModified(), instead of after the representation is created
+		setConditional(false);
+	}
+
+	/**
+	 * Evaluates the validators of a GET request. If-Modified-Since is only evaluated if
+	 * there is no If-None-Match, see RFC 9110, section 13.2.2.
+	 *
+	 * @param tag The current entity tag of the requested representation.
+	 * @param modificationDate The current modification date of the requested representation.
+	 * @return Returns false if the client's copy of the representation is still current.
+	 */
+	protected boolean isModified(Tag tag, Date modificationDate) {
+		Conditions conditions = getRequest().getConditions();
+		List<Tag> noneMatch = conditions.getNoneMatch();
+		if (noneMatch != null && !noneMatch.isEmpty()) {
+			for (Tag t : noneMatch) {
+				if ("*".equals(t.getName()) || (tag != null && tag.equals(t, false))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		Date modifiedSince = conditions.getModifiedSince();
+		if (modifiedSince != null && modificationDate != null) {
+			// HTTP dates have a precision of seconds
+			return modificationDate.getTime() / 1000 > modifiedSince.getTime() / 1000;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets status 304 and returns an empty representation with the validators.
+	 */
+	protected Representation notModified(Tag tag, Date modificationDate) {
+		getResponse().setStatus(Status.REDIRECTION_NOT_MODIFIED);
+		return setValidators(new EmptyRepresentation(), tag, modificationDate);
+	}
+
+	/**
+	 * Sets the ETag and Last-Modified of a representation.
+	 *
+	 * @return Returns the representation that was passed as parameter.
+	 */
+	protected <T extends Representation> T setValidators(T representation, Tag tag, Date modificationDate) {
+		if (representation != null) {
+			representation.setTag(tag);
+			representation.setModificationDate(modificationDate);
+		}
+		return representation;
+	}
+
+	/**
+	 * Creates a strong entity tag for a representation of a dataset's data. The tag changes
+	 * whenever data is loaded into the dataset.
+	 *
+	 * @param dataset The dataset.
+	 * @param variant Distinguishes different representations of the same dataset that are available
+	 *                under the same URL, e.g. the media type.
+	 */
+	protected Tag createDataTag(Dataset dataset, String variant) {
+		return createDataTag(dataset, variant, false);
+	}
+
+	/**
+	 * Creates an entity tag for a representation of a dataset's data. The tag changes
+	 * whenever data is loaded into the dataset.
+	 *
+	 * @param dataset The dataset.
+	 * @param variant Distinguishes different representations of the same dataset that are available
+	 *                under the same URL, e.g. the media type.
+	 * @param weak True for representations that are semantically, but not byte-for-byte equivalent
+	 *             as long as the data does not change, e.g. because they contain timings.
+	 */
+	protected Tag createDataTag(Dataset dataset, String variant, boolean weak) {
+		return new Tag(dataset.getId() + "-" + dataset.getDataVersion() + "-" + variant, weak);
+	}
+
+	/**
+	 * @return Returns true if uploaded data is to be loaded while it is received, i.e., if streaming ingest
+	 * is enabled and the client has not asked for asynchronous processing with <code>Prefer: respond-async</code>.
+	 */
+	protected boolean isStreamingIngest() {
+		if (!getRowStore().getConfig().isEtlStreaming()) {
+			return false;
+		}
+		String prefer = getRequest().getHeaders().getFirstValue("Prefer", true);
+		return prefer == null || !prefer.toLowerCase().contains("respond-async");
 	}
 
 	@Override
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.resources;
+
+import org.entrystore.rowstore.store.Dataset;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.data.Status;
+import org.restlet.ext.json.JsonRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.Put;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Returns and sets the indexing settings of a dataset.
+ *
+ * @author Hannes Ebner
+ */
+public class DatasetIndexingResource extends BaseResource {
+
+	static Logger log = LoggerFactory.getLogger(DatasetIndexingResource.class);
+
+	private Dataset dataset;
+
+	@Override
+	public void doInit() {
+		String datasetId = (String) getRequest().getAttributes().get("id");
+		if (datasetId != null) {
+			dataset = getRowStore().getDatasets().getDataset(datasetId);
+		}
+	}
+
+	@Get("application/json")
+	public Representation represent() {
+		if (dataset == null) {
+			setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+			return null;
+		}
+
+		return new JsonRepresentation(dataset.getIndexing());
+	}
+
+	@Put("application/json")
+	public void setIndexing(Representation r) {
+		if (dataset == null) {
+			setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+			return;
+		}
+
+		try {
+			if (!dataset.setIndexing(new JSONObject(r.getText()))) {
+				setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+				return;
+			}
+		} catch (JSONException | IOException e) {
+			log.info(e.getMessage());
+			setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return;
+		}
+		setStatus(Status.SUCCESS_NO_CONTENT);
+	}
+
+}
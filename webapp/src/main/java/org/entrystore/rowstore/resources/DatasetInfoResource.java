@@ -16,17 +16,21 @@
 
 package org.entrystore.rowstore.resources;
 
+import com.google.common.hash.Hashing;
 import org.entrystore.rowstore.store.Dataset;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.ext.json.JsonRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.Get;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.Date;
 
 /**
  * Returns information about a dataset.
@@ -54,18 +58,33 @@ public class DatasetInfoResource extends BaseResource {
 			return null;
 		}
 
-		return new JsonRepresentation(constructInfo());
+		// The metadata is cheap to fetch and may change without a change of the data,
+		// so it is part of the tag. Column names and row count are only fetched if needed.
+		JSONObject result = constructMetadata();
+		Tag tag = createDataTag(dataset, "info-" + Hashing.murmur3_128().hashString(result.toString(), StandardCharsets.UTF_8));
+		Date modificationDate = dataset.getModificationDate();
+		if (!isModified(tag, modificationDate)) {
+			return notModified(tag, modificationDate);
+		}
+
+		try {
+			result.put("columnnames", dataset.getColumnNames());
+			result.put("columns", dataset.getColumns());
+			result.put("rowcount", dataset.getRowCount());
+		} catch (JSONException e) {
+			log.error(e.getMessage());
+		}
+		return setValidators(new JsonRepresentation(result), tag, modificationDate);
 	}
 
-	private JSONObject constructInfo() {
+	private JSONObject constructMetadata() {
 		JSONObject result = new JSONObject();
 		try {
 			result.put("status", dataset.getStatus());
 			result.put("created", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(dataset.getCreationDate()));
-			result.put("columnnames", dataset.getColumnNames());
-			result.put("rowcount", dataset.getRowCount());
 			result.put("identifier", dataset.getId());
 			result.put("aliases", dataset.getAliases());
+			result.put("indexes", dataset.getIndexStatus());
 
 			// we add JSON-LD stuff
 			String baseURL = getRowStore().getConfig().getBaseURL();
@@ -18,7 +18,9 @@ package org.entrystore.rowstore.resources;
 
 import org.entrystore.rowstore.etl.EtlResource;
 import org.entrystore.rowstore.etl.EtlStatus;
+import org.entrystore.rowstore.etl.RetryableEtlException;
 import org.entrystore.rowstore.store.Dataset;
+import org.entrystore.rowstore.store.QueryParameters;
 import org.entrystore.rowstore.store.QueryResult;
 import org.entrystore.rowstore.util.DatasetUtil;
 import org.json.JSONArray;
@@ -27,6 +29,7 @@ import org.json.JSONObject;
 import org.restlet.data.MediaType;
 import org.restlet.data.Method;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.ext.json.JsonRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
@@ -41,6 +44,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -115,12 +119,12 @@ public class DatasetResource extends BaseResource {
 		*/
 
 		// We only pass on the parameters that match column names of the dataset's JSON
-		// We also skip parameters _limit, _offset and _sort as they are needed for advanced functionality
+		// We also skip parameters _limit, _offset, _after, _before, _count and _sort as they are needed for advanced functionality
 		Set<String> columns = dataset.getColumnNames();
 		Map<String, String> tuples = new HashMap<>();
 		int specialParamCount = 0;
 		for (String k : parameters.keySet()) {
-			if ("_limit".equals(k) || "_offset".equals(k) || "_sort".equals(k) || "_callback".equals(k)) {
+			if ("_limit".equals(k) || "_offset".equals(k) || "_after".equals(k) || "_before".equals(k) || "_count".equals(k) || "_sort".equals(k) || "_callback".equals(k)) {
 				specialParamCount++;
 				continue;
 			}
@@ -162,12 +166,47 @@ public class DatasetResource extends BaseResource {
 			}
 		}
 
+		QueryParameters.Count count = QueryParameters.Count.fromString(parameters.getOrDefault("_count", getRowStore().getConfig().getQueryCount()));
+		if (count == null) {
+			getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return null;
+		}
+
+		QueryParameters queryParameters = new QueryParameters(tuples, limit);
+		queryParameters.setOffset(offset);
+		queryParameters.setCount(count);
+
+		// the cursors are mutually exclusive and cannot be combined with an offset
+		int cursorParamCount = (parameters.containsKey("_after") ? 1 : 0) + (parameters.containsKey("_before") ? 1 : 0);
+		if (cursorParamCount > 1 || (cursorParamCount == 1 && parameters.containsKey("_offset"))) {
+			getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return null;
+		}
+		try {
+			if (parameters.containsKey("_after")) {
+				queryParameters.setAfter(QueryParameters.decodeCursor(parameters.get("_after")));
+			} else if (parameters.containsKey("_before")) {
+				queryParameters.setBefore(QueryParameters.decodeCursor(parameters.get("_before")));
+			}
+		} catch (IllegalArgumentException iae) {
+			getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return null;
+		}
+
+		// the data version has been loaded together with the status above, before the query runs;
+		// the tag is weak because the result contains the query time and possibly estimated counts
+		Tag tag = createDataTag(dataset, "json", true);
+		Date modificationDate = dataset.getModificationDate();
+		if (!isModified(tag, modificationDate)) {
+			return notModified(tag, modificationDate);
+		}
+
 		JSONArray rows = new JSONArray();
 		long elapsedTime = System.currentTimeMillis();
 
 		// TODO support _sort=First%20name,asc
 
-		QueryResult qResult = dataset.query(tuples, limit, offset);
+		QueryResult qResult = dataset.query(queryParameters);
 
 		elapsedTime = System.currentTimeMillis() - elapsedTime;
 		log.debug("Request took {} ms to process", elapsedTime);
@@ -191,19 +230,24 @@ public class DatasetResource extends BaseResource {
 		result.put("results", rows);
 		result.put("limit", qResult.getLimit());
 		result.put("offset", qResult.getOffset());
-		result.put("resultCount", qResult.getResultCount());
+		if (qResult.getResultCount() > -1) {
+			result.put("resultCount", qResult.getResultCount());
+			if (qResult.isResultCountEstimated()) {
+				result.put("resultCountEstimated", true);
+			}
+		}
 		result.put("queryTime", qResult.getQueryTime());
 
-		if ((qResult.getOffset() - qResult.getLimit()) >= 0) {
+		if (qResult.hasPrevious()) {
 			result.put("prev", constructPrevPageUrl(qResult));
 		}
 
-		if (qResult.getResultCount() >= (qResult.getLimit() + qResult.getOffset())) {
+		if (qResult.hasNext()) {
 			result.put("next", constructNextPageUrl(qResult));
 		}
 
 		getResponse().setStatus(Status.SUCCESS_OK);
-		return new JsonRepresentation(result);
+		return setValidators(new JsonRepresentation(result), tag, modificationDate);
 	}
 
 	@Post("csv")
@@ -219,6 +263,13 @@ public class DatasetResource extends BaseResource {
 			return;
 		}
 
+		boolean appendData = Method.POST.equals(getRequest().getMethod());
+
+		// if the dataset has pending ETL jobs the data is queued after them
+		if (isStreamingIngest() && streamCSV(entity, appendData)) {
+			return;
+		}
+
 		File tmpFile = null;
 		try {
 			try {
@@ -229,13 +280,18 @@ public class DatasetResource extends BaseResource {
 				return;
 			}
 
-			boolean appendData = Method.POST.equals(getRequest().getMethod());
-
 			if (dataset.getStatus() != EtlStatus.PROCESSING) {
 				dataset.setStatus(EtlStatus.ACCEPTED_DATA);
 			}
 			EtlResource etlResource = new EtlResource(dataset, tmpFile, MediaType.TEXT_CSV, appendData);
-			getRowStore().getEtlProcessor().submit(etlResource);
+			try {
+				getRowStore().getEtlProcessor().submit(etlResource);
+			} catch (IOException ioe) {
+				log.error(ioe.getMessage());
+				dataset.setStatus(EtlStatus.ERROR);
+				getResponse().setStatus(Status.SERVER_ERROR_INTERNAL);
+				return;
+			}
 
 			String datasetURL = DatasetUtil.buildDatasetURL(getRowStore().getConfig().getBaseURL(), dataset.getId());
 
@@ -253,15 +309,54 @@ public class DatasetResource extends BaseResource {
 			getResponse().setEntity(new JsonRepresentation(result));
 			getResponse().setStatus(Status.SUCCESS_ACCEPTED);
 		} finally {
-			// we delete the temporary file if something has gone wrong
-			// and the conversion process does not continue
-			if (tmpFile != null && !Status.SUCCESS_ACCEPTED.equals(getResponse().getStatus())) {
+			// the data has been copied to the job queue or something has gone wrong
+			if (tmpFile != null) {
 				log.info("Deleting temporary file " + tmpFile);
 				tmpFile.delete();
 			}
 		}
 	}
 
+	/**
+	 * Loads the request body into the dataset while it is received, and responds when loading has finished.
+	 *
+	 * @return Returns false if the data cannot be streamed because the dataset has pending ETL jobs.
+	 */
+	private boolean streamCSV(Representation entity, boolean appendData) {
+		Boolean loaded;
+		try {
+			loaded = getRowStore().getEtlProcessor().populate(dataset, entity.getStream(), appendData);
+		} catch (RetryableEtlException ree) {
+			log.error(ree.getMessage());
+			getResponse().setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+			return true;
+		} catch (IOException ioe) {
+			log.error(ioe.getMessage());
+			getResponse().setStatus(Status.SERVER_ERROR_INTERNAL);
+			return true;
+		}
+		if (loaded == null) {
+			return false;
+		}
+
+		String datasetURL = DatasetUtil.buildDatasetURL(getRowStore().getConfig().getBaseURL(), dataset.getId());
+
+		JSONObject result = new JSONObject();
+		try {
+			result.put("id", dataset.getId());
+			result.put("url", datasetURL);
+			result.put("status", dataset.getStatus());
+			result.put("info", datasetURL + "/info");
+		} catch (JSONException e) {
+			log.error(e.getMessage());
+		}
+
+		getResponse().setLocationRef(datasetURL);
+		getResponse().setEntity(new JsonRepresentation(result));
+		getResponse().setStatus(loaded ? Status.SUCCESS_OK : Status.CLIENT_ERROR_BAD_REQUEST);
+		return true;
+	}
+
 	@Delete
 	public void purgeDataset() {
 		if (dataset == null) {
@@ -288,8 +383,8 @@ public class DatasetResource extends BaseResource {
 
 	private String constructNextPageUrl(QueryResult qr) {
 		StringBuilder nextPageUrl = getDatasetBaseURL();
-		nextPageUrl.append("/json?_offset=");
-		nextPageUrl.append(qr.getOffset() + qr.getLimit());
+		nextPageUrl.append("/json?_after=");
+		nextPageUrl.append(QueryParameters.encodeCursor(qr.getLastRowNr()));
 		nextPageUrl.append("&_limit=");
 		nextPageUrl.append(qr.getLimit());
 
@@ -300,8 +395,8 @@ public class DatasetResource extends BaseResource {
 
 	private String constructPrevPageUrl(QueryResult qr) {
 		StringBuilder prevPageUrl = getDatasetBaseURL();
-		prevPageUrl.append("/json?_offset=");
-		prevPageUrl.append(qr.getOffset() - qr.getLimit());
+		prevPageUrl.append("/json?_before=");
+		prevPageUrl.append(QueryParameters.encodeCursor(qr.getFirstRowNr()));
 		prevPageUrl.append("&_limit=");
 		prevPageUrl.append(qr.getLimit());
 
@@ -318,7 +413,7 @@ public class DatasetResource extends BaseResource {
 		for (Map.Entry<String, String> entry : parameters.entrySet()) {
 			String k = entry.getKey();
 			String v = entry.getValue();
-			if ("_offset".equals(k) || "_limit".equals(k)) {
+			if ("_offset".equals(k) || "_limit".equals(k) || "_after".equals(k) || "_before".equals(k)) {
 				continue;
 			}
 			builder.append("&");
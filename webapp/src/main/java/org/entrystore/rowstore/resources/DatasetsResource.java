@@ -18,6 +18,7 @@ package org.entrystore.rowstore.resources;
 
 import org.entrystore.rowstore.etl.EtlResource;
 import org.entrystore.rowstore.etl.EtlStatus;
+import org.entrystore.rowstore.etl.RetryableEtlException;
 import org.entrystore.rowstore.store.Dataset;
 import org.entrystore.rowstore.util.DatasetUtil;
 import org.json.JSONArray;
@@ -68,6 +69,16 @@ public class DatasetsResource extends BaseResource {
 			return;
 		}
 
+		if (isStreamingIngest()) {
+			Dataset newDataset = getRowStore().getDatasets().createDataset();
+			if (newDataset == null) {
+				getResponse().setStatus(Status.SERVER_ERROR_INTERNAL);
+				return;
+			}
+			streamCSV(newDataset, entity);
+			return;
+		}
+
 		File tmpFile = null;
 		try {
 			try {
@@ -85,7 +96,14 @@ public class DatasetsResource extends BaseResource {
 			}
 			newDataset.setStatus(EtlStatus.ACCEPTED_DATA);
 			EtlResource etlResource = new EtlResource(newDataset, tmpFile, MediaType.TEXT_CSV, true);
-			getRowStore().getEtlProcessor().submit(etlResource);
+			try {
+				getRowStore().getEtlProcessor().submit(etlResource);
+			} catch (IOException ioe) {
+				log.error(ioe.getMessage());
+				newDataset.setStatus(EtlStatus.ERROR);
+				getResponse().setStatus(Status.SERVER_ERROR_INTERNAL);
+				return;
+			}
 
 			String datasetURL = DatasetUtil.buildDatasetURL(getRowStore().getConfig().getBaseURL(), newDataset.getId());
 
@@ -103,13 +121,56 @@ public class DatasetsResource extends BaseResource {
 			getResponse().setEntity(new JsonRepresentation(result));
 			getResponse().setStatus(Status.SUCCESS_ACCEPTED);
 		} finally {
-			// Delete the temporary file if something has gone wrong
-			// and the conversion process does not continue
-			if (tmpFile != null && !Status.SUCCESS_ACCEPTED.equals(getResponse().getStatus())) {
+			// the data has been copied to the job queue or something has gone wrong
+			if (tmpFile != null) {
 				log.info("Deleting temporary file " + tmpFile);
 				tmpFile.delete();
 			}
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Loads the request body into a new dataset while it is received, and responds when loading has finished.
+	 */
+	private void streamCSV(Dataset newDataset, Representation entity) {
+		Boolean loaded;
+		try {
+			// a new dataset has no pending ETL jobs, so the data is always loaded
+			loaded = getRowStore().getEtlProcessor().populate(newDataset, entity.getStream(), true);
+		} catch (RetryableEtlException ree) {
+			log.error(ree.getMessage());
+			// the client is not told about the dataset, so it would be left behind with every retry
+			purge(newDataset);
+			getResponse().setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+			return;
+		} catch (IOException ioe) {
+			log.error(ioe.getMessage());
+			purge(newDataset);
+			getResponse().setStatus(Status.SERVER_ERROR_INTERNAL);
+			return;
+		}
+
+		String datasetURL = DatasetUtil.buildDatasetURL(getRowStore().getConfig().getBaseURL(), newDataset.getId());
+
+		JSONObject result = new JSONObject();
+		try {
+			result.put("id", newDataset.getId());
+			result.put("url", datasetURL);
+			result.put("status", newDataset.getStatus());
+			result.put("info", datasetURL + "/info");
+		} catch (JSONException e) {
+			log.error(e.getMessage());
+		}
+
+		getResponse().setLocationRef(datasetURL);
+		getResponse().setEntity(new JsonRepresentation(result));
+		getResponse().setStatus(Boolean.TRUE.equals(loaded) ? Status.SUCCESS_CREATED : Status.CLIENT_ERROR_BAD_REQUEST);
+	}
+
+	private void purge(Dataset dataset) {
+		if (!getRowStore().getDatasets().purgeDataset(dataset.getId())) {
+			log.warn("Unable to remove dataset " + dataset.getId() + " after failed upload");
+		}
+	}
+
+}
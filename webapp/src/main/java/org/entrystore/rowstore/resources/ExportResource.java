@@ -16,43 +16,56 @@
 
 package org.entrystore.rowstore.resources;
 
-import com.opencsv.CSVWriter;
 import org.entrystore.rowstore.etl.EtlStatus;
 import org.entrystore.rowstore.store.Dataset;
-import org.json.JSONObject;
+import org.entrystore.rowstore.store.ExportSnapshots;
+import org.entrystore.rowstore.util.ArrowExport;
+import org.entrystore.rowstore.util.ParquetExport;
+import org.restlet.data.Conditions;
+import org.restlet.data.Dimension;
 import org.restlet.data.Disposition;
+import org.restlet.data.Encoding;
 import org.restlet.data.MediaType;
+import org.restlet.data.Preference;
+import org.restlet.data.Range;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
+import org.restlet.engine.adapter.HttpResponse;
+import org.restlet.engine.header.HeaderConstants;
+import org.restlet.representation.OutputRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.representation.StreamRepresentation;
 import org.restlet.resource.Get;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.ArrayList;
-import java.util.LinkedHashSet;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Resource for dataset export/download.
  *
- * <p>The JSON (from the DB) and CSV handling (for serialization) required for the CSV export takes some time, that's why we use
- * multiple threads to saturate the output stream as much as possible. This is not needed for the JSON export since we can
- * write the data we get from the DB pretty much without changes.</p>
+ * <p>The JSON (from the DB) and CSV handling (for serialization) required for the CSV export takes some time, that's why
+ * rows are converted by multiple threads, see {@link Dataset#writeCSV(OutputStream)}. This is not needed for the JSON export
+ * since we can write the data we get from the DB without changes, as raw bytes.</p>
+ *
+ * <p>If export snapshots are enabled, exports are served from gzip-compressed files that are built after
+ * data has been loaded, see {@link ExportSnapshots}. The files are sent as they are to clients that accept
+ * gzip, including support for byte ranges, and decompressed on the fly for other clients.</p>
+ *
+ * <p>Analytics clients may request the columnar formats Apache Arrow (IPC stream) and Parquet instead, see
+ * {@link ArrowExport} and {@link ParquetExport}.</p>
  *
  * @author Hannes Ebner
  */
@@ -89,6 +102,26 @@ public class ExportResource extends BaseResource {
 			return null;
 		}
 
+		FileChannel snapshot = openSnapshot(ExportSnapshots.JSON);
+		boolean compressed = snapshot != null && acceptsGzip();
+		Tag tag = createDataTag(dataset, compressed ? "export-json-gzip" : "export-json");
+		Date modificationDate = dataset.getModificationDate();
+		if (!isModified(tag, modificationDate)) {
+			close(snapshot);
+			return notModified(tag, modificationDate);
+		}
+
+		Disposition disp = new Disposition();
+		disp.setFilename(datasetId + ".json");
+
+		if (snapshot != null) {
+			Representation result = compressed ? representCompressed(snapshot, MediaType.APPLICATION_JSON, tag, modificationDate) : representDecompressed(snapshot, MediaType.APPLICATION_JSON);
+			if (result != null) {
+				result.setDisposition(disp);
+			}
+			return setValidators(result, tag, modificationDate);
+		}
+
 		StreamRepresentation result = new StreamRepresentation(MediaType.APPLICATION_JSON) {
 
 			@Override
@@ -99,27 +132,8 @@ public class ExportResource extends BaseResource {
 
 			@Override
 			public void write(OutputStream outputStream) {
-				try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream), 131072)) {
-					writer.write("[");
-					ResultSet rs = dataset.streamAll();
-					try {
-						while (rs.next()) {
-							writer.write(rs.getString("data"));
-							if (!rs.isLast()) {
-								writer.write(",\n");
-							}
-							// we flush manually because we want to detect aborted connections early
-							if ((rs.getRow() % 10000) == 0) {
-								writer.flush();
-							}
-						}
-					} catch (SQLException e) {
-						log.error(e.getMessage());
-					} finally {
-						cleanup(rs);
-					}
-
-					writer.write("]");
+				try (OutputStream out = new BufferedOutputStream(outputStream, 131072)) {
+					dataset.writeJSON(out);
 				} catch (IOException ioe) {
 					log.error(ioe.getMessage());
 				}
@@ -127,11 +141,9 @@ public class ExportResource extends BaseResource {
 
 		};
 
-		Disposition disp = new Disposition();
-		disp.setFilename(datasetId + ".json");
 		result.setDisposition(disp);
 
-		return result;
+		return setValidators(result, tag, modificationDate);
 	}
 
 	@Get("csv")
@@ -146,6 +158,26 @@ public class ExportResource extends BaseResource {
 			return null;
 		}
 
+		FileChannel snapshot = openSnapshot(ExportSnapshots.CSV);
+		boolean compressed = snapshot != null && acceptsGzip();
+		Tag tag = createDataTag(dataset, compressed ? "export-csv-gzip" : "export-csv");
+		Date modificationDate = dataset.getModificationDate();
+		if (!isModified(tag, modificationDate)) {
+			close(snapshot);
+			return notModified(tag, modificationDate);
+		}
+
+		Disposition disp = new Disposition();
+		disp.setFilename(datasetId + ".csv");
+
+		if (snapshot != null) {
+			Representation result = compressed ? representCompressed(snapshot, MediaType.TEXT_CSV, tag, modificationDate) : representDecompressed(snapshot, MediaType.TEXT_CSV);
+			if (result != null) {
+				result.setDisposition(disp);
+			}
+			return setValidators(result, tag, modificationDate);
+		}
+
 		StreamRepresentation result = new StreamRepresentation(MediaType.TEXT_CSV) {
 
 			@Override
@@ -156,109 +188,255 @@ public class ExportResource extends BaseResource {
 
 			@Override
 			public void write(OutputStream outputStream) {
-				Set<String> columnNames = new LinkedHashSet<>(dataset.getColumnNames());
-				try (CSVWriter csvWriter = new CSVWriter(new BufferedWriter(new OutputStreamWriter(outputStream), 131072))) {
-					csvWriter.writeNext(columnNames.toArray(new String[0]), false);
-					ResultSet rs = dataset.streamAll();
-
-					ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-					Runnable csvWritingRunnable = () -> {
-						try {
-							while (true) {
-								String data = null;
-								synchronized (rs) {
-									if (rs.next()) {
-										data = rs.getString("data");
-									} else {
-										break;
-									}
-								}
-								csvWriter.writeNext(jsonObjectToStringArray(new JSONObject(data), columnNames), false);
-								// we flush manually because we want to detect aborted connections early
-								if ((rs.getRow() % 10000) == 0) {
-									csvWriter.flush();
-								}
-							}
-						} catch (SQLException | IOException e) {
-							log.error(e.getMessage());
-						}
-                    };
-
-					List<Callable<Object>> writingThreads = new ArrayList<>();
-					for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
-						writingThreads.add(Executors.callable(csvWritingRunnable));
-					}
+				try (OutputStream out = new BufferedOutputStream(outputStream, 131072)) {
+					dataset.writeCSV(out);
+				} catch (IOException ioe) {
+					log.error(ioe.getMessage());
+				}
+			}
 
-					log.debug("Using {} threads for generating export", Runtime.getRuntime().availableProcessors());
+		};
 
-					es.invokeAll(writingThreads);
-					es.shutdown();
-					cleanup(rs);
-				} catch (IOException | InterruptedException e) {
-					log.error(e.getMessage());
+		result.setDisposition(disp);
+
+		return setValidators(result, tag, modificationDate);
+	}
+
+	@Get("arrow")
+	public Representation representArrow() {
+		return representColumnar(ArrowExport.APPLICATION_ARROW_STREAM, "arrow");
+	}
+
+	@Get("parquet")
+	public Representation representParquet() {
+		return representColumnar(ParquetExport.APPLICATION_PARQUET, "parquet");
+	}
+
+	/**
+	 * Exports the dataset in a columnar format, either as Arrow IPC stream or as Parquet file.
+	 */
+	private Representation representColumnar(MediaType mediaType, String extension) {
+		if (dataset == null) {
+			getResponse().setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+			return null;
+		}
+
+		if (dataset.getStatus() == EtlStatus.CREATED) {
+			getResponse().setStatus(Status.CLIENT_ERROR_FAILED_DEPENDENCY);
+			return null;
+		}
+
+		Tag tag = createDataTag(dataset, "export-" + extension);
+		Date modificationDate = dataset.getModificationDate();
+		if (!isModified(tag, modificationDate)) {
+			return notModified(tag, modificationDate);
+		}
+
+		OutputRepresentation result = new OutputRepresentation(mediaType) {
+
+			@Override
+			public void write(OutputStream outputStream) throws IOException {
+				OutputStream out = new BufferedOutputStream(outputStream, 131072);
+				try {
+					if (ParquetExport.APPLICATION_PARQUET.equals(mediaType)) {
+						ParquetExport.write(dataset, out);
+					} else {
+						ArrowExport.write(dataset, out);
+					}
+				} catch (IOException ioe) {
+					// the response is aborted instead of being completed, so that
+					// clients do not take a truncated file for a complete one
+					log.error(ioe.getMessage());
+					throw ioe;
 				}
-            }
+				out.close();
+			}
 
 		};
 
 		Disposition disp = new Disposition();
-		disp.setFilename(datasetId + ".csv");
+		disp.setFilename(datasetId + "." + extension);
 		result.setDisposition(disp);
 
-		return result;
+		return setValidators(result, tag, modificationDate);
 	}
 
-	private String[] jsonObjectToStringArray(JSONObject json, Set<String> keys) {
-		Set<String> result = new LinkedHashSet<>(); // we need to preserve order
-		for (String key : keys) {
-			result.add(json.getString(key));
+	/**
+	 * Opens the snapshot of the dataset in the given format. The snapshot is opened right away, so that it
+	 * can still be read if it is removed before the response has been written, e.g. because it is outdated.
+	 *
+	 * @return Returns a channel of the snapshot, or null if there is none. The channel is closed by the
+	 * representation that sends it.
+	 */
+	private FileChannel openSnapshot(String format) {
+		ExportSnapshots snapshots = getRowStore().getExportSnapshots();
+		if (!snapshots.isEnabled()) {
+			return null;
+		}
+		// snapshots are sent compressed if the client accepts it
+		getResponse().getDimensions().add(Dimension.ENCODING);
+		File snapshot = snapshots.get(dataset, format);
+		if (snapshot == null) {
+			return null;
+		}
+		try {
+			return FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			log.warn("Unable to open snapshot " + snapshot + ", exporting from the database: " + e.getMessage());
+			return null;
 		}
-		return result.toArray(new String[0]);
 	}
 
-	private void cleanup(ResultSet rs) {
-		if (rs == null) {
-			throw new IllegalArgumentException("ResultSet must not be null");
+	private boolean acceptsGzip() {
+		boolean acceptsAll = false;
+		List<Preference<Encoding>> accepted = getRequest().getClientInfo().getAcceptedEncodings();
+		if (accepted != null) {
+			for (Preference<Encoding> pref : accepted) {
+				if (Encoding.GZIP.equals(pref.getMetadata())) {
+					return pref.getQuality() > 0;
+				} else if (Encoding.ALL.equals(pref.getMetadata())) {
+					acceptsAll = pref.getQuality() > 0;
+				}
+			}
 		}
+		return acceptsAll;
+	}
 
-		Statement statement = null;
+	/**
+	 * Sends a snapshot as it is, with gzip content encoding. A single byte range of the compressed file is
+	 * supported; the requested part is transferred from the file without copying it through the heap.
+	 *
+	 * @return Returns the representation, or null if the requested range cannot be satisfied.
+	 */
+	private Representation representCompressed(FileChannel snapshot, MediaType mediaType, Tag tag, Date modificationDate) {
+		long size;
 		try {
-			statement = rs.getStatement();
-		} catch (SQLException e) {
+			size = snapshot.size();
+		} catch (IOException e) {
+			close(snapshot);
 			log.error(e.getMessage());
+			getResponse().setStatus(Status.SERVER_ERROR_INTERNAL);
+			return null;
+		}
+		Range requested = getRequestedRange(tag, modificationDate);
+		long start = 0;
+		long length = size;
+		if (requested != null) {
+			if (requested.getIndex() == Range.INDEX_LAST) {
+				length = Math.min(requested.getSize(), size);
+				start = size - length;
+			} else {
+				start = requested.getIndex();
+				length = requested.getSize() == Range.SIZE_MAX ? size - start : Math.min(requested.getSize(), size - start);
+			}
+			if (start >= size || length <= 0) {
+				close(snapshot);
+				getResponse().setStatus(Status.CLIENT_ERROR_REQUESTED_RANGE_NOT_SATISFIABLE);
+				// Restlet only writes Content-Range for entities with a range,
+				// so the header is added to the HTTP call directly
+				if (getResponse() instanceof HttpResponse) {
+					((HttpResponse) getResponse()).getHttpCall().getResponseHeaders().add(HeaderConstants.HEADER_CONTENT_RANGE, "bytes */" + size);
+				}
+				return null;
+			}
 		}
 
-		Connection connection = null;
-		try {
-			if (statement != null) {
-				connection = statement.getConnection();
+		final long position = start;
+		final long count = length;
+		OutputRepresentation result = new OutputRepresentation(mediaType, size) {
+
+			@Override
+			public void write(OutputStream outputStream) {
+				write(Channels.newChannel(outputStream));
 			}
-		} catch (SQLException e) {
-			log.error(e.getMessage());
+
+			@Override
+			public void write(WritableByteChannel target) {
+				try (snapshot) {
+					transfer(snapshot, position, count, target);
+				} catch (IOException ioe) {
+					log.error(ioe.getMessage());
+				}
+			}
+
+			@Override
+			public void release() {
+				super.release();
+				close(snapshot);
+			}
+
+		};
+		result.getEncodings().add(Encoding.GZIP);
+		if (requested != null) {
+			result.setRange(new Range(start, length));
+			getResponse().setStatus(Status.SUCCESS_PARTIAL_CONTENT);
 		}
+		return result;
+	}
 
-		try {
-			rs.close();
-		} catch (SQLException e) {
-			log.error(e.getMessage());
+	/**
+	 * Sends the decompressed content of a snapshot, for clients that do not accept gzip.
+	 */
+	private Representation representDecompressed(FileChannel snapshot, MediaType mediaType) {
+		return new OutputRepresentation(mediaType) {
+
+			@Override
+			public void write(OutputStream outputStream) {
+				try (InputStream in = new GZIPInputStream(Channels.newInputStream(snapshot), 65536)) {
+					in.transferTo(outputStream);
+				} catch (IOException ioe) {
+					log.error(ioe.getMessage());
+				}
+			}
+
+			@Override
+			public void release() {
+				super.release();
+				close(snapshot);
+			}
+
+		};
+	}
+
+	/**
+	 * Returns the range requested by the client if it is a single range and if it still refers to the
+	 * current representation, see If-Range. Other requests are answered with the full representation.
+	 */
+	private Range getRequestedRange(Tag tag, Date modificationDate) {
+		List<Range> ranges = getRequest().getRanges();
+		if (ranges == null || ranges.size() != 1) {
+			return null;
+		}
+		Conditions conditions = getRequest().getConditions();
+		if (conditions.getRangeTag() != null && !conditions.getRangeTag().equals(tag, true)) {
+			return null;
+		}
+		Date rangeDate = conditions.getRangeDate();
+		if (rangeDate != null && (modificationDate == null || modificationDate.getTime() / 1000 != rangeDate.getTime() / 1000)) {
+			return null;
 		}
+		return ranges.get(0);
+	}
 
-		try {
-			if (statement != null) {
-				statement.close();
+	private static void transfer(FileChannel channel, long position, long count, WritableByteChannel target) throws IOException {
+		long end = position + count;
+		while (position < end) {
+			long transferred = channel.transferTo(position, end - position, target);
+			if (transferred <= 0) {
+				throw new EOFException("Snapshot ended before byte " + end);
 			}
-		} catch (SQLException e) {
-			log.error(e.getMessage());
+			position += transferred;
 		}
+	}
 
-		try {
-			if (connection != null) {
-				connection.close();
+	private static void close(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.warn("Unable to close snapshot: " + e.getMessage());
 			}
-		} catch (SQLException e) {
-			log.error(e.getMessage());
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -43,6 +43,9 @@ public class StatusResource extends BaseResource {
 		result.put("version", RowStoreApplication.getVersion());
 		result.put("datasets", getRowStore().getDatasets().amount());
 		result.put("activeEtlProcesses", getRowStore().getEtlProcessor().getActiveEtlProcesses());
+		result.put("queuedEtlProcesses", getRowStore().getEtlProcessor().getQueuedEtlProcesses());
+		result.put("caches", getRowStore().getCacheStatistics());
+		result.put("connectionPools", getRowStore().getConnectionPoolStatistics());
 		return new JsonRepresentation(result);
 	}
 
@@ -16,12 +16,15 @@
 
 package org.entrystore.rowstore.resources;
 
+import com.google.common.hash.Hashing;
 import org.entrystore.rowstore.RowStoreApplication;
 import org.entrystore.rowstore.store.Dataset;
+import org.entrystore.rowstore.store.RowStoreConfig;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.restlet.data.MediaType;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.representation.EmptyRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
@@ -31,6 +34,8 @@ import org.slf4j.LoggerFactory;
 
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
 
 import static org.entrystore.rowstore.RowStoreApplication.getConfigurationURI;
 import static org.entrystore.rowstore.RowStoreApplication.getVersion;
@@ -76,6 +81,15 @@ public class SwaggerResource extends BaseResource {
 			return new EmptyRepresentation();
 		}
 
+		// apart from the column names the description depends on the version and configuration of RowStore
+		RowStoreConfig config = getRowStore().getConfig();
+		String variant = getVersion() + "/" + config.getRegexpQuerySupport() + "/" + config.getQueryMaxLimit() + "/" + config.getQueryCount();
+		Tag tag = createDataTag(dataset, "swagger-" + Hashing.murmur3_128().hashString(variant, StandardCharsets.UTF_8));
+		Date modificationDate = dataset.getModificationDate();
+		if (!isModified(tag, modificationDate)) {
+			return notModified(tag, modificationDate);
+		}
+
 		JSONArray apiParams = new JSONArray();
 		for (String p : dataset.getColumnNames()) {
 			JSONObject apiParam = new JSONObject();
@@ -108,9 +122,38 @@ public class SwaggerResource extends BaseResource {
 		paramOffset.put("required", false);
 		paramOffset.put("type", "integer");
 		paramOffset.put("default", 0);
-		paramOffset.put("description", "The offset (results, not pages) to be used when paginating through query results; example: page 3 of a multi page result can be requested with _limit=50 and _offset=100");
+		paramOffset.put("description", "The offset (results, not pages) to be used when paginating through query results; example: page 3 of a multi page result can be requested with _limit=50 and _offset=100. Kept for backward compatibility, large offsets are slow; use the cursors in next and prev instead");
 		apiParams.put(paramOffset);
 
+		// _after
+		JSONObject paramAfter = new JSONObject();
+		paramAfter.put("name", "_after");
+		paramAfter.put("in", "query");
+		paramAfter.put("required", false);
+		paramAfter.put("type", "string");
+		paramAfter.put("description", "Opaque cursor as contained in the next URL of a query result; returns the rows following the cursor. Cannot be combined with _offset or _before");
+		apiParams.put(paramAfter);
+
+		// _before
+		JSONObject paramBefore = new JSONObject();
+		paramBefore.put("name", "_before");
+		paramBefore.put("in", "query");
+		paramBefore.put("required", false);
+		paramBefore.put("type", "string");
+		paramBefore.put("description", "Opaque cursor as contained in the prev URL of a query result; returns the rows preceding the cursor. Cannot be combined with _offset or _after");
+		apiParams.put(paramBefore);
+
+		// _count
+		JSONObject paramCount = new JSONObject();
+		paramCount.put("name", "_count");
+		paramCount.put("in", "query");
+		paramCount.put("required", false);
+		paramCount.put("type", "string");
+		paramCount.put("enum", new JSONArray().put("exact").put("estimate").put("none"));
+		paramCount.put("default", getRowStore().getConfig().getQueryCount());
+		paramCount.put("description", "How resultCount is determined: exact (counts all matching rows), estimate (uses the database's statistics, much faster on large datasets) or none (resultCount is omitted)");
+		apiParams.put(paramCount);
+
 		// _callback
 		JSONObject paramJsonp = new JSONObject();
 		paramJsonp.put("name", "_callback");
@@ -129,7 +172,7 @@ public class SwaggerResource extends BaseResource {
 				replaceAll("__DATASET_ID__", dataset.getId()).
 				replaceAll("__DATASET_PARAMETERS__", apiParams.toString());
 
-		return new StringRepresentation(result, MediaType.APPLICATION_JSON);
+		return setValidators(new StringRepresentation(result, MediaType.APPLICATION_JSON), tag, modificationDate);
 	}
 
 }
\ No newline at end of file
@@ -16,10 +16,16 @@
 
 package org.entrystore.rowstore.store;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.ResultSet;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -51,6 +57,17 @@ public interface Dataset {
 	 */
 	Date getCreationDate();
 
+	/**
+	 * @return Returns the Date and Time of the last change of the dataset's data or status,
+	 * or the creation date if it has not been changed yet.
+	 */
+	Date getModificationDate();
+
+	/**
+	 * @return Returns the version of the dataset's data, increased with every load.
+	 */
+	long getDataVersion();
+
 	/**
 	 * Populates the dataset with data from a CSV file, i.e., reads a CSV file, converts the rows into JSON and loads in the DB backend.
 	 *
@@ -61,6 +78,18 @@ public interface Dataset {
 	 */
 	boolean populate(File csvFile, boolean append) throws IOException;
 
+	/**
+	 * Populates the dataset with CSV data that is read from a stream, e.g. the body of a request, without
+	 * writing it to disk first. The data is not loaded in parallel chunks.
+	 *
+	 * @param csvStream CSV data that fulfills RowStore's requirements, see official documentation. The stream is closed afterwards.
+	 * @param append If true, appends data to already existing dataset. If false, the data of an eventually existing dataset is replaced.
+	 * @return Returns true if successful, false if the data has been rejected, e.g. because its columns do not
+	 * match the existing ones.
+	 * @throws IOException If the data could not be read or stored.
+	 */
+	boolean populate(InputStream csvStream, boolean append) throws IOException;
+
 	/**
 	 * Returns matching rows of the dataset.
 	 *
@@ -69,16 +98,73 @@ public interface Dataset {
 	 */
 	QueryResult query(Map<String, String> tuples, int limit, int offset);
 
+	/**
+	 * Returns matching rows of the dataset.
+	 *
+	 * @param parameters The query parameters, including pagination by offset or by cursor.
+	 * @return Returns a list of matching JSON objects.
+	 */
+	QueryResult query(QueryParameters parameters);
+
 	/**
 	 * @return Returns a ResultSet containing all data of the dataset's table. ResultSet and the underlying Statement and Connection need to be closed manually after the ResultSet is consumed.
 	 */
 	ResultSet streamAll();
 
 	/**
-	 * @return Returns the dataset's column names.
+	 * Writes all rows of the dataset as a JSON array, one row per line, in the order in which they were
+	 * loaded. The rows are passed on as they are stored, without being parsed.
+	 *
+	 * @param out The stream to write to; it is flushed regularly, but not closed.
+	 * @return Returns the amount of written rows.
+	 * @throws IOException If the data could not be read or written, e.g. because the client has aborted the download.
+	 */
+	long writeJSON(OutputStream out) throws IOException;
+
+	/**
+	 * Writes all rows of the dataset as UTF-8 encoded CSV with a header line, in the order in which they
+	 * were loaded.
+	 *
+	 * @param out The stream to write to; it is flushed regularly, but not closed.
+	 * @return Returns the amount of written rows.
+	 * @throws IOException If the data could not be read or written, e.g. because the client has aborted the download.
+	 */
+	long writeCSV(OutputStream out) throws IOException;
+
+	/**
+	 * Reads all rows of the dataset in the order in which they were loaded and passes them on in batches,
+	 * e.g. for exports to formats that are written in blocks of rows.
+	 *
+	 * @param batchSize The maximum amount of rows per batch.
+	 * @param consumer Receives the batches; a batch is not modified after it has been passed on.
+	 * @return Returns the amount of read rows.
+	 * @throws IOException If the data could not be read or if the consumer has failed.
+	 */
+	long readRows(int batchSize, RowBatchConsumer consumer) throws IOException;
+
+	/**
+	 * Receives batches of rows, see {@link #readRows(int, RowBatchConsumer)}.
+	 */
+	interface RowBatchConsumer {
+
+		/**
+		 * @param rows The rows of the batch as JSON objects with the column names as keys.
+		 */
+		void accept(List<JSONObject> rows) throws IOException;
+
+	}
+
+	/**
+	 * @return Returns the dataset's column names, in the order of the CSV header.
 	 */
 	Set<String> getColumnNames();
 
+	/**
+	 * @return Returns the dataset's columns in the order of the CSV header, with the statistics
+	 * gathered while loading: inferred type, maximum value length and amount of empty values.
+	 */
+	JSONArray getColumns();
+
 	/**
 	 * @return Returns the size (amount of rows) of the dataset.
 	 */
@@ -98,6 +184,27 @@ public interface Dataset {
 	 */
 	boolean setAliases(Set<String> aliases);
 
+	/**
+	 * @return Returns the state of every index of the current or most recent index build, or an empty
+	 * array if no index build has taken place recently.
+	 */
+	JSONArray getIndexStatus();
+
+	/**
+	 * @return Returns the indexing settings of the dataset, including the effective mode and the tracked usage of columns.
+	 */
+	JSONObject getIndexing();
+
+	/**
+	 * Sets the indexing settings of the dataset.
+	 *
+	 * @param settings A JSON object with an optional <code>mode</code> ("all" or "adaptive") and an optional object
+	 *                 <code>columns</code> that maps column names to arrays of index types ("pattern" or "trigram")
+	 *                 that are always built.
+	 * @return Returns true if successful, false if the settings are invalid.
+	 */
+	boolean setIndexing(JSONObject settings);
+
 	int REGEXP_QUERY_DISABLED = 0;
 
 	int REGEXP_QUERY_SIMPLE = 1;
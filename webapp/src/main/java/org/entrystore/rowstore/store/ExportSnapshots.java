@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.entrystore.rowstore.etl.EtlStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Manages gzip-compressed export files of datasets that are stored on local disk and served instead of
+ * exporting the data from the database on every request.
+ *
+ * <p>Snapshots are built in the background after data has been loaded, or when an export of a dataset is
+ * requested for which there is no snapshot yet, e.g. because the data was loaded by another instance. The
+ * file name contains the data version of the dataset, so a snapshot is only served as long as the data has
+ * not changed. Outdated snapshots and snapshots of purged datasets are removed periodically.</p>
+ *
+ * @author Hannes Ebner
+ */
+public class ExportSnapshots {
+
+	private static final Logger log = LoggerFactory.getLogger(ExportSnapshots.class);
+
+	public static final String CSV = "csv";
+
+	public static final String JSON = "json";
+
+	/**
+	 * Matches snapshot files, the groups are the dataset ID, the data version and the format.
+	 */
+	private static final Pattern SNAPSHOT_FILE = Pattern.compile("([0-9a-f\\-]+)-(\\d+)\\.(csv|json)\\.gz");
+
+	private static final String TEMP_SUFFIX = ".gz.tmp";
+
+	/**
+	 * Minutes between the removal of outdated snapshots.
+	 */
+	private static final int CLEANUP_INTERVAL = 60;
+
+	private final RowStore rowstore;
+
+	private final File directory;
+
+	private final boolean enabled;
+
+	/**
+	 * Builds snapshots and removes outdated ones, so that slow disks do not delay other maintenance tasks.
+	 */
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * IDs of the datasets for which a build has been scheduled but not started yet.
+	 */
+	private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The data versions for which building a snapshot has failed, to avoid retrying on every request.
+	 */
+	private final Map<String, Long> failed = new ConcurrentHashMap<>();
+
+	public ExportSnapshots(RowStore rowstore) {
+		this.rowstore = rowstore;
+		this.directory = new File(rowstore.getConfig().getSnapshotDirectory());
+		boolean usable = false;
+		if (rowstore.getConfig().isExportSnapshots()) {
+			try {
+				Files.createDirectories(directory.toPath());
+				usable = Files.isWritable(directory.toPath());
+			} catch (IOException e) {
+				log.error("Unable to create snapshot directory " + directory + ": " + e.getMessage());
+			}
+			if (usable) {
+				log.info("Storing export snapshots in " + directory);
+			} else {
+				log.error("Snapshot directory " + directory + " is not writable, export snapshots are disabled");
+			}
+		}
+		this.enabled = usable;
+		if (enabled) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("rowstore-snapshot-builder").setDaemon(true).build());
+			executor.scheduleWithFixedDelay(this::cleanup, 1, CLEANUP_INTERVAL, TimeUnit.MINUTES);
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * @return Returns true if export snapshots are enabled and the snapshot directory is usable.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns the snapshot of the current data of a dataset. If there is none, a build is scheduled.
+	 *
+	 * @param dataset The dataset.
+	 * @param format Either {@link #CSV} or {@link #JSON}.
+	 * @return Returns the gzip-compressed snapshot, or null if there is no snapshot of the current data.
+	 */
+	public File get(Dataset dataset, String format) {
+		if (!enabled || dataset == null) {
+			return null;
+		}
+		File snapshot = getFile(dataset.getId(), dataset.getDataVersion(), format);
+		if (snapshot.isFile()) {
+			return snapshot;
+		}
+		build(dataset);
+		return null;
+	}
+
+	/**
+	 * Schedules building the snapshots of a dataset. The snapshots are built from the data version that is
+	 * current when the build starts; nothing is done if the snapshots of that version exist already.
+	 *
+	 * @param dataset The dataset.
+	 */
+	public void build(Dataset dataset) {
+		if (!enabled || dataset == null || dataset.getStatus() == EtlStatus.CREATED) {
+			return;
+		}
+		Long failedVersion = failed.get(dataset.getId());
+		if (failedVersion != null && failedVersion == dataset.getDataVersion()) {
+			return;
+		}
+		if (scheduled.add(dataset.getId())) {
+			executor.execute(() -> createSnapshots(dataset.getId()));
+		}
+	}
+
+	/**
+	 * Removes all snapshots of a dataset.
+	 *
+	 * @param datasetId The ID of the dataset.
+	 */
+	public void remove(String datasetId) {
+		if (!enabled) {
+			return;
+		}
+		failed.remove(datasetId);
+		removeSnapshots(datasetId, Long.MAX_VALUE);
+	}
+
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private File getFile(String datasetId, long dataVersion, String format) {
+		return new File(directory, datasetId + "-" + dataVersion + "." + format + ".gz");
+	}
+
+	private void createSnapshots(String datasetId) {
+		// loads that finish from now on schedule another build
+		scheduled.remove(datasetId);
+		Dataset dataset;
+		try {
+			dataset = rowstore.getDatasets().getDataset(datasetId);
+		} catch (IllegalStateException e) {
+			log.error(e.getMessage());
+			return;
+		}
+		if (dataset == null || dataset.getStatus() == EtlStatus.CREATED) {
+			return;
+		}
+		long dataVersion = dataset.getDataVersion();
+		try {
+			for (String format : new String[]{CSV, JSON}) {
+				File snapshot = getFile(datasetId, dataVersion, format);
+				if (snapshot.isFile()) {
+					continue;
+				}
+				long before = System.currentTimeMillis();
+				Path tmpPath = Files.createTempFile(directory.toPath(), datasetId + "-", TEMP_SUFFIX);
+				try {
+					try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmpPath), 65536)) {
+						if (CSV.equals(format)) {
+							dataset.writeCSV(out);
+						} else {
+							dataset.writeJSON(out);
+						}
+					}
+					// the export may contain data of a newer version if data was loaded in the meantime
+					Dataset current = rowstore.getDatasets().getDataset(datasetId);
+					if (current == null || current.getDataVersion() != dataVersion) {
+						log.info("Data of dataset " + datasetId + " changed while building the snapshot, discarding it");
+						return;
+					}
+					Files.move(tmpPath, snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					log.info("Created " + format.toUpperCase() + " snapshot of dataset " + datasetId + " with " + snapshot.length() + " bytes in " + (System.currentTimeMillis() - before) + " ms");
+				} finally {
+					Files.deleteIfExists(tmpPath);
+				}
+			}
+			failed.remove(datasetId);
+			removeSnapshots(datasetId, dataVersion);
+		} catch (IOException | RuntimeException e) {
+			log.error("Unable to create snapshot of dataset " + datasetId + ": " + e.getMessage());
+			failed.put(datasetId, dataVersion);
+		}
+	}
+
+	/**
+	 * Removes the snapshots of a dataset with a data version lower than the given one.
+	 */
+	private void removeSnapshots(String datasetId, long dataVersion) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			Matcher m = SNAPSHOT_FILE.matcher(file.getName());
+			if (m.matches() && m.group(1).equals(datasetId) && Long.parseLong(m.group(2)) < dataVersion) {
+				delete(file);
+			}
+		}
+	}
+
+	/**
+	 * Removes snapshots of datasets that do not exist anymore or whose data has changed, and temporary
+	 * files of builds that have been aborted, e.g. by a restart.
+	 */
+	private void cleanup() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		long abandoned = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(CLEANUP_INTERVAL);
+		for (File file : files) {
+			try {
+				if (file.getName().endsWith(TEMP_SUFFIX)) {
+					if (file.lastModified() < abandoned) {
+						delete(file);
+					}
+					continue;
+				}
+				Matcher m = SNAPSHOT_FILE.matcher(file.getName());
+				if (!m.matches()) {
+					continue;
+				}
+				if (!rowstore.getDatasets().hasDataset(m.group(1))) {
+					delete(file);
+					continue;
+				}
+				Dataset dataset = rowstore.getDatasets().getDataset(m.group(1));
+				if (dataset != null && Long.parseLong(m.group(2)) < dataset.getDataVersion()) {
+					delete(file);
+				}
+			} catch (RuntimeException e) {
+				log.error("Error while cleaning up snapshot " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private void delete(File file) {
+		try {
+			if (Files.deleteIfExists(file.toPath())) {
+				log.debug("Removed snapshot " + file);
+			}
+		} catch (IOException e) {
+			log.warn("Unable to remove snapshot " + file + ": " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Parameters of a dataset query.
+ *
+ * <p>Results are paginated either by offset or by cursor. Cursors are opaque tokens that point at a row; a
+ * page after or before a cursor is fetched using an index range scan, so that the cost of a page does not
+ * depend on how deep it is in the result.</p>
+ *
+ * @author Hannes Ebner
+ */
+public class QueryParameters {
+
+	private static final String CURSOR_PREFIX = "r";
+
+	private final Map<String, String> tuples;
+
+	private final int limit;
+
+	private int offset;
+
+	private long after = -1;
+
+	private long before = -1;
+
+	private Count count = Count.EXACT;
+
+	/**
+	 * Determines how the amount of matching rows is computed.
+	 */
+	public enum Count {
+
+		/**
+		 * Counts all matching rows. The counts are cached until data is loaded into the dataset.
+		 */
+		EXACT,
+
+		/**
+		 * Uses the planner's estimate, which is cheap but may be off considerably for filtered queries.
+		 */
+		ESTIMATE,
+
+		/**
+		 * Does not count at all.
+		 */
+		NONE;
+
+		/**
+		 * @return Returns the count mode for the name (case insensitive), or null if there is no such mode.
+		 */
+		public static Count fromString(String name) {
+			for (Count c : values()) {
+				if (c.name().equalsIgnoreCase(name)) {
+					return c;
+				}
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * @param tuples Key/value pairs where the keys must match the row names.
+	 * @param limit The maximum amount of rows to return.
+	 */
+	public QueryParameters(Map<String, String> tuples, int limit) {
+		this.tuples = tuples;
+		this.limit = limit;
+	}
+
+	public Map<String, String> getTuples() {
+		return tuples;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public void setOffset(int offset) {
+		this.offset = offset;
+	}
+
+	public Count getCount() {
+		return count;
+	}
+
+	public void setCount(Count count) {
+		this.count = count;
+	}
+
+	/**
+	 * @return Returns the row number after which the page starts, or -1 if not set.
+	 */
+	public long getAfter() {
+		return after;
+	}
+
+	public void setAfter(long after) {
+		this.after = after;
+	}
+
+	/**
+	 * @return Returns the row number before which the page ends, or -1 if not set.
+	 */
+	public long getBefore() {
+		return before;
+	}
+
+	public void setBefore(long before) {
+		this.before = before;
+	}
+
+	/**
+	 * @return Returns an opaque cursor token for a row number.
+	 */
+	public static String encodeCursor(long rowNr) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString((CURSOR_PREFIX + rowNr).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @return Returns the row number of a cursor token.
+	 * @throws IllegalArgumentException If the token is not a valid cursor.
+	 */
+	public static long decodeCursor(String cursor) {
+		String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+		if (!decoded.startsWith(CURSOR_PREFIX)) {
+			throw new IllegalArgumentException("Invalid cursor: " + cursor);
+		}
+		long rowNr = Long.parseLong(decoded.substring(CURSOR_PREFIX.length()));
+		if (rowNr < 0) {
+			throw new IllegalArgumentException("Invalid cursor: " + cursor);
+		}
+		return rowNr;
+	}
+
+}
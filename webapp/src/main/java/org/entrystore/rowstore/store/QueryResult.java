@@ -34,10 +34,34 @@ public class QueryResult {
 
 	private long queryTime;
 
+	private long firstRowNr = -1;
+
+	private long lastRowNr = -1;
+
+	private boolean hasPrevious;
+
+	private boolean hasNext;
+
+	private boolean resultCountEstimated;
+
 	public QueryResult(List<JSONObject> results, int limit, int offset, long resultCount, long queryTime) {
 		this(results, limit, offset, resultCount, queryTime, null);
 	}
 
+	/**
+	 * @param firstRowNr The row number of the first result, used as cursor for the previous page.
+	 * @param lastRowNr The row number of the last result, used as cursor for the next page.
+	 * @param hasPrevious True if there are matching rows before the first result.
+	 * @param hasNext True if there are matching rows after the last result.
+	 */
+	public QueryResult(List<JSONObject> results, int limit, int offset, long resultCount, long queryTime, long firstRowNr, long lastRowNr, boolean hasPrevious, boolean hasNext) {
+		this(results, limit, offset, resultCount, queryTime, null);
+		this.firstRowNr = firstRowNr;
+		this.lastRowNr = lastRowNr;
+		this.hasPrevious = hasPrevious;
+		this.hasNext = hasNext;
+	}
+
 	public QueryResult(List<JSONObject> results, int limit, int offset, long resultCount, long queryTime, String status) {
 		this.limit = limit;
 		this.offset = offset;
@@ -71,6 +95,33 @@ public class QueryResult {
 		return queryTime;
 	}
 
+	public long getFirstRowNr() {
+		return firstRowNr;
+	}
+
+	public long getLastRowNr() {
+		return lastRowNr;
+	}
+
+	public boolean hasPrevious() {
+		return hasPrevious;
+	}
+
+	public boolean hasNext() {
+		return hasNext;
+	}
+
+	/**
+	 * @return Returns true if the result count is an estimate of the query planner, false if it is exact.
+	 */
+	public boolean isResultCountEstimated() {
+		return resultCountEstimated;
+	}
+
+	public void setResultCountEstimated(boolean resultCountEstimated) {
+		this.resultCountEstimated = resultCountEstimated;
+	}
+
 	public static class Error extends QueryResult {
 
 		public Error(String sqlStatus) {
@@ -16,7 +16,9 @@
 
 package org.entrystore.rowstore.store;
 
+import org.entrystore.rowstore.etl.EtlJobQueue;
 import org.entrystore.rowstore.etl.EtlProcessor;
+import org.json.JSONObject;
 
 import java.sql.Connection;
 import java.sql.SQLException;
@@ -55,6 +57,26 @@ public interface RowStore {
 	 */
 	EtlProcessor getEtlProcessor();
 
+	/**
+	 * @return Returns the persistent queue of ETL jobs.
+	 */
+	EtlJobQueue getEtlJobQueue();
+
+	/**
+	 * @return Returns the manager of pre-built export files.
+	 */
+	ExportSnapshots getExportSnapshots();
+
+	/**
+	 * @return Returns hit and miss statistics of the query caches.
+	 */
+	JSONObject getCacheStatistics();
+
+	/**
+	 * @return Returns the usage of the database connection pools.
+	 */
+	JSONObject getConnectionPoolStatistics();
+
 	/**
 	 * Initiates a graceful shutdown.
 	 */
@@ -16,11 +16,16 @@
 
 package org.entrystore.rowstore.store;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Loads the configuration from a JSON file and provides convenience methods to access configuration properties.
  *
@@ -38,6 +43,48 @@ public class RowStoreConfig {
 
 	private int maxEtlProcesses;
 
+	private boolean etlCopyLoader;
+
+	private int etlConverterThreads;
+
+	private int exportConverterThreads;
+
+	private boolean exportSnapshots;
+
+	private String snapshotDirectory;
+
+	private int etlWorkersPerFile;
+
+	private long etlChunkMinSize;
+
+	private int etlMaxAttempts;
+
+	private int etlRetryDelay;
+
+	private int etlJobTimeout;
+
+	private int etlPollInterval;
+
+	private boolean etlStreaming;
+
+	private int etlStreamingWait;
+
+	private int dropTableDelay;
+
+	private int indexBuilders;
+
+	private boolean indexConcurrently;
+
+	private String indexing;
+
+	private int indexAdvisorInterval;
+
+	private int indexMinQueries;
+
+	private int indexUnusedDays;
+
+	private String trigramIndexes;
+
 	private String rateLimitType;
 
 	private int rateLimitTimeRange = -1;
@@ -50,16 +97,38 @@ public class RowStoreConfig {
 
 	private boolean rateLimitEnabled = false;
 
+	private List<String> compressionEncodings = new ArrayList<>();
+
+	private int compressionGzipLevel = 6;
+
+	private int compressionZstdLevel = 3;
+
+	private int compressionMinSize = 1024;
+
+	private int compressionBuffer = 4;
+
 	private int queryTimeout = -1;
 
 	private int queryMaxLimit = -1;
 
+	private String queryCount;
+
+	private int queryCountCacheSize;
+
+	private int queryCacheSize;
+
 	private int exportPageSize = -1;
 
 	private Database database;
 
 	private Database queryDatabase;
 
+	private List<Database> queryDatabases = new ArrayList<>();
+
+	private int replicaMaxLag;
+
+	private int replicaCheckInterval;
+
 	public RowStoreConfig(JSONObject config) {
 		try {
 			// Base URL
@@ -77,17 +146,49 @@ public class RowStoreConfig {
 
 			// ETL
 			maxEtlProcesses = config.optInt("maxetlprocesses", 5);
+			etlCopyLoader = "copy".equalsIgnoreCase(config.optString("etlloader", "insert"));
+			etlConverterThreads = config.optInt("etlconverters", Runtime.getRuntime().availableProcessors());
+			exportConverterThreads = config.optInt("exportconverters", Runtime.getRuntime().availableProcessors());
+			exportSnapshots = config.optBoolean("exportsnapshots", false);
+			snapshotDirectory = config.optString("snapshotdirectory", new File(System.getProperty("java.io.tmpdir"), "rowstore-snapshots").getPath());
+			etlWorkersPerFile = config.optInt("etlworkersperfile", 1);
+			etlChunkMinSize = config.optLong("etlchunkminsize", 64) * 1024 * 1024;
+			etlMaxAttempts = Math.max(1, config.optInt("etlmaxattempts", 3));
+			etlRetryDelay = config.optInt("etlretrydelay", 30);
+			etlJobTimeout = config.optInt("etljobtimeout", 120);
+			etlPollInterval = config.optInt("etlpollinterval", 5);
+			etlStreaming = config.optBoolean("etlstreaming", false);
+			etlStreamingWait = config.optInt("etlstreamingwait", 30);
+			dropTableDelay = config.optInt("droptabledelay", 600);
+			indexBuilders = config.optInt("indexbuilders", 4);
+			indexConcurrently = config.optBoolean("indexconcurrently", false);
+			indexing = "adaptive".equalsIgnoreCase(config.optString("indexing", "all")) ? "adaptive" : "all";
+			indexAdvisorInterval = config.optInt("indexadvisorinterval", 15);
+			indexMinQueries = config.optInt("indexminqueries", 5);
+			indexUnusedDays = config.optInt("indexunuseddays", 30);
+			trigramIndexes = config.optString("trigramindexes", "none").toLowerCase();
+			if (!"large".equals(trigramIndexes) && !"all".equals(trigramIndexes)) {
+				trigramIndexes = "none";
+			}
 
 			// Logging
 			logLevel = config.optString("loglevel", "info");
 
 			// Database
 			database = new Database(config.getJSONObject("database"));
-			if (config.has("queryDatabase")) {
-				queryDatabase = new Database(config.getJSONObject("queryDatabase"));
-			} else {
-				queryDatabase = database;
+			// a single query database or a list of them
+			Object queryDatabaseConfig = config.opt("queryDatabase");
+			if (queryDatabaseConfig instanceof JSONArray) {
+				JSONArray queryDatabaseArray = (JSONArray) queryDatabaseConfig;
+				for (int i = 0; i < queryDatabaseArray.length(); i++) {
+					queryDatabases.add(new Database(queryDatabaseArray.getJSONObject(i)));
+				}
+			} else if (queryDatabaseConfig instanceof JSONObject) {
+				queryDatabases.add(new Database((JSONObject) queryDatabaseConfig));
 			}
+			queryDatabase = queryDatabases.isEmpty() ? database : queryDatabases.get(0);
+			replicaMaxLag = config.optInt("replicamaxlag", 30);
+			replicaCheckInterval = config.optInt("replicacheckinterval", 5);
 
 			// Rate limitation
 			if (config.has("ratelimit")) {
@@ -102,12 +203,36 @@ public class RowStoreConfig {
 				}
 			}
 
+			// Response compression
+			if (config.has("compression")) {
+				JSONObject compressionConfig = config.getJSONObject("compression");
+				for (String encoding : compressionConfig.optString("encodings", "gzip").split(",")) {
+					if (!encoding.isBlank()) {
+						compressionEncodings.add(encoding.trim().toLowerCase());
+					}
+				}
+				compressionGzipLevel = compressionConfig.optInt("gziplevel", 6);
+				compressionZstdLevel = compressionConfig.optInt("zstdlevel", 3);
+				compressionMinSize = compressionConfig.optInt("minsize", 1024);
+				compressionBuffer = compressionConfig.optInt("buffer", 4);
+			}
+
 			// Query time out
 			queryTimeout = config.optInt("querytimeout", -1);
 
 			// Maximum size of reponse size limit (i.e. "_limit" in the URL parameters)
 			queryMaxLimit = config.optInt("querymaxlimit", 100);
 
+			// How the amount of matching rows is determined (i.e. "_count" in the URL parameters)
+			queryCount = config.optString("querycount", "exact").toLowerCase();
+			if (!"estimate".equals(queryCount) && !"none".equals(queryCount)) {
+				queryCount = "exact";
+			}
+			queryCountCacheSize = config.optInt("querycountcachesize", 10000);
+
+			// Size of the query result cache in MB
+			queryCacheSize = config.optInt("querycachesize", 64);
+
 			// Page size for queries when exporting
 			exportPageSize = config.optInt("exportpagesize", 100000);
 		} catch (JSONException e) {
@@ -127,6 +252,154 @@ public class RowStoreConfig {
 		return maxEtlProcesses;
 	}
 
+	/**
+	 * @return True if rows should be loaded using COPY instead of batched INSERTs.
+	 */
+	public boolean isEtlCopyLoader() {
+		return etlCopyLoader;
+	}
+
+	/**
+	 * @return The number of threads (shared by all ETL processes) that convert CSV to JSON.
+	 */
+	public int getEtlConverterThreads() {
+		return etlConverterThreads;
+	}
+
+	/**
+	 * @return The number of threads (shared by all exports) that convert rows to CSV.
+	 */
+	public int getExportConverterThreads() {
+		return exportConverterThreads;
+	}
+
+	/**
+	 * @return True if compressed export files are built after data has been loaded and served instead of exporting from the database.
+	 */
+	public boolean isExportSnapshots() {
+		return exportSnapshots;
+	}
+
+	/**
+	 * @return The directory in which export snapshots are stored.
+	 */
+	public String getSnapshotDirectory() {
+		return snapshotDirectory;
+	}
+
+	/**
+	 * @return The maximum number of workers that load chunks of one file in parallel. Values lower than 2 disable chunked loading.
+	 */
+	public int getEtlWorkersPerFile() {
+		return etlWorkersPerFile;
+	}
+
+	/**
+	 * @return The minimum size of a chunk in bytes, files smaller than two chunks are loaded sequentially.
+	 */
+	public long getEtlChunkMinSize() {
+		return etlChunkMinSize;
+	}
+
+	/**
+	 * @return The maximum number of attempts to process an ETL job that fails for a temporary reason.
+	 */
+	public int getEtlMaxAttempts() {
+		return etlMaxAttempts;
+	}
+
+	/**
+	 * @return The delay in seconds before the first retry of a failed ETL job, doubled with every further attempt.
+	 */
+	public int getEtlRetryDelay() {
+		return etlRetryDelay;
+	}
+
+	/**
+	 * @return The time in seconds after which an ETL job is queued again if its processing instance has stopped responding.
+	 */
+	public int getEtlJobTimeout() {
+		return etlJobTimeout;
+	}
+
+	/**
+	 * @return The interval in seconds in which the job queue is checked for jobs submitted to other instances.
+	 */
+	public int getEtlPollInterval() {
+		return etlPollInterval;
+	}
+
+	/**
+	 * @return True if uploaded data is loaded while it is received, unless the client asks for asynchronous processing.
+	 */
+	public boolean isEtlStreaming() {
+		return etlStreaming;
+	}
+
+	/**
+	 * @return The time in seconds a streaming upload waits for a free load worker before it is rejected.
+	 */
+	public int getEtlStreamingWait() {
+		return etlStreamingWait;
+	}
+
+	/**
+	 * @return The delay in seconds after which a replaced data table is dropped.
+	 */
+	public int getDropTableDelay() {
+		return dropTableDelay;
+	}
+
+	/**
+	 * @return The number of indexes (shared by all datasets) that are built in parallel.
+	 */
+	public int getIndexBuilders() {
+		return indexBuilders;
+	}
+
+	/**
+	 * @return True if indexes of appended data should be built using CREATE INDEX CONCURRENTLY.
+	 */
+	public boolean isIndexConcurrently() {
+		return indexConcurrently;
+	}
+
+	/**
+	 * @return The default indexing mode of datasets, either "all" or "adaptive".
+	 */
+	public String getIndexing() {
+		return indexing;
+	}
+
+	/**
+	 * @return The interval in minutes in which the indexes of datasets are adjusted to their usage.
+	 */
+	public int getIndexAdvisorInterval() {
+		return indexAdvisorInterval;
+	}
+
+	/**
+	 * @return The number of queries on a column after which it is indexed in adaptive mode.
+	 */
+	public int getIndexMinQueries() {
+		return indexMinQueries;
+	}
+
+	/**
+	 * @return The number of days after which indexes of columns that have not been queried are dropped in adaptive mode.
+	 */
+	public int getIndexUnusedDays() {
+		return indexUnusedDays;
+	}
+
+	/**
+	 * @return Which columns get trigram indexes in addition to the indexes that are built by default: "none",
+	 * "large" (columns with values that are too large for B-tree indexes) or "all".
+	 */
+	public String getTrigramIndexes() {
+		return trigramIndexes;
+	}
+
 	public int getRegexpQuerySupport() {
 		return regExpSupport;
 	}
@@ -135,6 +408,49 @@ public class RowStoreConfig {
 		return rateLimitEnabled;
 	}
 
+	/**
+	 * @return True if responses may be compressed on the fly.
+	 */
+	public boolean isCompressionEnabled() {
+		return !compressionEncodings.isEmpty();
+	}
+
+	/**
+	 * @return The content codings that are used for compressing responses, in order of preference.
+	 */
+	public List<String> getCompressionEncodings() {
+		return compressionEncodings;
+	}
+
+	/**
+	 * @return The compression level for gzip and deflate, from 1 (fastest) to 9 (smallest).
+	 */
+	public int getCompressionGzipLevel() {
+		return compressionGzipLevel;
+	}
+
+	/**
+	 * @return The compression level for zstd.
+	 */
+	public int getCompressionZstdLevel() {
+		return compressionZstdLevel;
+	}
+
+	/**
+	 * @return The minimum size in bytes of a response to be compressed.
+	 */
+	public int getCompressionMinSize() {
+		return compressionMinSize;
+	}
+
+	/**
+	 * @return The amount of compressed data in MB that is buffered per response, so that data can be
+	 * produced ahead of slow clients.
+	 */
+	public int getCompressionBuffer() {
+		return compressionBuffer;
+	}
+
 	public int getRateLimitTimeRange() {
 		return rateLimitTimeRange;
 	}
@@ -163,6 +479,27 @@ public class RowStoreConfig {
 		return queryMaxLimit;
 	}
 
+	/**
+	 * @return The default count mode of queries: "exact", "estimate" or "none".
+	 */
+	public String getQueryCount() {
+		return queryCount;
+	}
+
+	/**
+	 * @return The maximum amount of exact result counts that are cached.
+	 */
+	public int getQueryCountCacheSize() {
+		return queryCountCacheSize;
+	}
+
+	/**
+	 * @return The maximum size of the query result cache in MB, 0 disables the cache.
+	 */
+	public int getQueryCacheSize() {
+		return queryCacheSize;
+	}
+
 	public int getExportPageSize() {
 		return exportPageSize;
 	}
@@ -171,10 +508,34 @@ public class RowStoreConfig {
 		return database;
 	}
 
+	/**
+	 * @return Returns the first query database or the primary database if no query database is configured.
+	 */
 	public Database getQueryDatabase() {
 		return queryDatabase;
 	}
 
+	/**
+	 * @return Returns all configured query databases, an empty list if queries should be run against the primary database.
+	 */
+	public List<Database> getQueryDatabases() {
+		return queryDatabases;
+	}
+
+	/**
+	 * @return The maximum replication lag of a query database in seconds, query databases lagging further behind are not used.
+	 */
+	public int getReplicaMaxLag() {
+		return replicaMaxLag;
+	}
+
+	/**
+	 * @return The interval in seconds in which the health and replication lag of the query databases is checked.
+	 */
+	public int getReplicaCheckInterval() {
+		return replicaCheckInterval;
+	}
+
 	public class Database {
 
 		private String user;
@@ -195,6 +556,10 @@ public class RowStoreConfig {
 
 		private int connectionPoolMax;
 
+		private int connectionIdleTimeout;
+
+		private int connectionLeakDetection;
+
 		Database() {
 		}
 
@@ -208,6 +573,8 @@ public class RowStoreConfig {
 			setSsl(dbConfig.optBoolean("ssl", false));
 			setConnectionPoolInit(dbConfig.optInt("connectionPoolInit", -1));
 			setConnectionPoolMax(dbConfig.optInt("connectionPoolMax", -1));
+			setConnectionIdleTimeout(dbConfig.optInt("connectionIdleTimeout", 600));
+			setConnectionLeakDetection(dbConfig.optInt("connectionLeakDetection", 0));
 		}
 
 		public Database setUser(String user) {
@@ -255,6 +622,16 @@ public class RowStoreConfig {
 			return this;
 		}
 
+		public Database setConnectionIdleTimeout(int connectionIdleTimeout) {
+			this.connectionIdleTimeout = connectionIdleTimeout;
+			return this;
+		}
+
+		public Database setConnectionLeakDetection(int connectionLeakDetection) {
+			this.connectionLeakDetection = connectionLeakDetection;
+			return this;
+		}
+
 		public String getUser() {
 			return user;
 		}
@@ -291,6 +668,20 @@ public class RowStoreConfig {
 			return connectionPoolMax;
 		}
 
+		/**
+		 * @return Returns the time in seconds after which connections above the minimum pool size are closed when idle.
+		 */
+		public int getConnectionIdleTimeout() {
+			return connectionIdleTimeout;
+		}
+
+		/**
+		 * @return Returns the time in seconds after which a connection that has not been returned to the pool is reported as a possible leak, 0 disables leak detection.
+		 */
+		public int getConnectionLeakDetection() {
+			return connectionLeakDetection;
+		}
+
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store.impl;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Streams rows into the data table using PostgreSQL's COPY protocol, which avoids the
+ * per-statement overhead of batched INSERTs.
+ *
+ * <p>Rows are sent in COPY's text format, i.e., one row per line with backslash escaping.</p>
+ *
+ * @author Hannes Ebner
+ */
+class PgCopyRowWriter implements RowWriter {
+
+	private static final Logger log = LoggerFactory.getLogger(PgCopyRowWriter.class);
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private PGCopyOutputStream copyStream;
+
+	private long rowCount = 0;
+
+	PgCopyRowWriter(Connection conn, String dataTable) throws SQLException {
+		String sql = "COPY " + dataTable + " (data) FROM STDIN";
+		log.debug("Executing: " + sql);
+		copyStream = new PGCopyOutputStream(conn.unwrap(PGConnection.class), sql, BUFFER_SIZE);
+	}
+
+	@Override
+	public void write(byte[] json, int offset, int length) throws SQLException {
+		try {
+			writeEscaped(json, offset, length);
+			copyStream.write('\n');
+		} catch (IOException e) {
+			throw new SQLException("Unable to write row to COPY stream: " + e.getMessage(), e);
+		}
+		rowCount++;
+	}
+
+	@Override
+	public long finish() throws SQLException {
+		long copied = copyStream.endCopy();
+		log.debug("Copied {} rows", copied);
+		copyStream = null;
+		return rowCount;
+	}
+
+	@Override
+	public void abort() {
+		if (copyStream != null && copyStream.isActive()) {
+			try {
+				copyStream.cancelCopy();
+			} catch (SQLException e) {
+				SqlExceptionLogUtil.error(log, e);
+			}
+		}
+		copyStream = null;
+	}
+
+	/**
+	 * Writes a value escaped according to the rules of COPY's text format. Only ASCII characters need
+	 * escaping, so the value is scanned byte by byte and copied in runs between characters to be escaped.
+	 */
+	private void writeEscaped(byte[] value, int offset, int length) throws IOException {
+		int end = offset + length;
+		int run = offset;
+		for (int i = offset; i < end; i++) {
+			byte escaped;
+			switch (value[i]) {
+				case '\\': escaped = '\\'; break;
+				case '\n': escaped = 'n'; break;
+				case '\r': escaped = 'r'; break;
+				case '\t': escaped = 't'; break;
+				default: continue;
+			}
+			copyStream.write(value, run, i - run);
+			copyStream.write('\\');
+			copyStream.write(escaped);
+			run = i + 1;
+		}
+		copyStream.write(value, run, end - run);
+	}
+
+}
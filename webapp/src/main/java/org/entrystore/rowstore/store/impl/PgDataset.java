@@ -16,44 +16,73 @@
 
 package org.entrystore.rowstore.store.impl;
 
-import com.opencsv.CSVParser;
-import com.opencsv.CSVParserBuilder;
-import com.opencsv.CSVReader;
-import com.opencsv.CSVReaderBuilder;
-import com.opencsv.exceptions.CsvValidationException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.opencsv.CSVWriter;
 import org.apache.commons.lang3.StringUtils;
+import org.entrystore.rowstore.etl.ColumnType;
+import org.entrystore.rowstore.etl.CsvRecords;
+import org.entrystore.rowstore.etl.CsvRowConverter;
+import org.entrystore.rowstore.etl.CsvTokenizer;
 import org.entrystore.rowstore.etl.EtlStatus;
+import org.entrystore.rowstore.etl.JsonRowEncoder;
+import org.entrystore.rowstore.etl.RetryableEtlException;
+import org.entrystore.rowstore.etl.RowBatch;
 import org.entrystore.rowstore.store.Dataset;
+import org.entrystore.rowstore.store.QueryParameters;
 import org.entrystore.rowstore.store.QueryResult;
 import org.entrystore.rowstore.store.RowStore;
+import org.entrystore.rowstore.store.impl.PgIndexBuilder.IndexDefinition;
 import org.entrystore.rowstore.util.DatasetUtil;
-import org.entrystore.rowstore.util.Hashing;
+import org.entrystore.rowstore.util.OrderedPipeline;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyInputStream;
 import org.postgresql.core.BaseConnection;
 import org.postgresql.util.PGobject;
 import org.restlet.data.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A PostgreSQL-specific implementation of the Dataset interface.
@@ -73,11 +102,47 @@ public class PgDataset implements Dataset {
 
 	private String dataTable;
 
+	private long dataVersion;
+
+	private Date modified;
+
 	private final RowStore rowstore;
 
 	private final Map<String, Integer> columnSize = new HashMap<>();
 
-	private final int maxSizeForIndex = 256;
+	private final Map<String, Long> columnNullCount = new HashMap<>();
+
+	private final Map<String, Integer> columnTypes = new HashMap<>();
+
+	private static final int CONVERSION_BATCH_SIZE = 1000;
+
+	private static final byte[] COPY_SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+
+	private static final byte[] JSON_ROW_DELIMITER = {',', '\n'};
+
+	private static final int EXPORT_BATCH_SIZE = 1000;
+
+	/**
+	 * A column of the column catalog.
+	 */
+	private static final class Column {
+
+		final String name;
+
+		final int maxLength;
+
+		final long nullCount;
+
+		final int types;
+
+		Column(String name, int maxLength, long nullCount, int types) {
+			this.name = name;
+			this.maxLength = maxLength;
+			this.nullCount = nullCount;
+			this.types = types;
+		}
+
+	}
 
 	protected PgDataset(RowStore rowstore, String id) {
 		if (rowstore == null) {
@@ -90,18 +155,19 @@ public class PgDataset implements Dataset {
 		this.rowstore = rowstore;
 		this.id = id;
 
-		// we check whether id is an alias and we try to resolve
-		String resolvedAlias = resolveAlias(id);
-		if (resolvedAlias != null) {
-			this.id = resolvedAlias;
-		} else if (this.id.length() < 36 || !DatasetUtil.isUUID(this.id)) {
-			throw new IllegalArgumentException("Dataset ID must be a valid UUID with a length of 36 characters");
+		// the ID may be an alias, the registry resolves both
+		PgDatasetRegistry.Entry entry = getRegistry().resolve(id);
+		if (entry == null) {
+			if (!DatasetUtil.isUUID(id)) {
+				throw new IllegalArgumentException("Dataset ID must be a valid UUID with a length of 36 characters");
+			}
+			throw new IllegalStateException("Unable to initialize Dataset object from database");
 		}
-
-		initFromDb();
+		this.id = entry.id;
+		initFromRegistry(entry);
 	}
 
-	protected PgDataset(RowStore rowstore, String id, int status, Date created, String dataTable) {
+	protected PgDataset(RowStore rowstore, String id, int status, Date created, String dataTable, long dataVersion, Date modified) {
 		if (rowstore == null) {
 			throw new IllegalArgumentException("RowStore must not be null");
 		}
@@ -113,6 +179,8 @@ public class PgDataset implements Dataset {
 		this.status = status;
 		this.created = created;
 		this.dataTable = dataTable;
+		this.dataVersion = dataVersion;
+		this.modified = modified;
 	}
 
 	/**
@@ -128,8 +196,11 @@ public class PgDataset implements Dataset {
 	 */
 	@Override
 	public int getStatus() {
-		// we reload the info from the DB because the status may have changed
-		initFromDb();
+		// the status may have changed, the registry is kept up to date
+		PgDatasetRegistry.Entry entry = getRegistry().get(getId());
+		if (entry != null) {
+			initFromRegistry(entry);
+		}
 		return status;
 	}
 
@@ -143,8 +214,14 @@ public class PgDataset implements Dataset {
 		PreparedStatement stmt = null;
 		try {
 			conn = rowstore.getConnection();
-			conn.setAutoCommit(true);
-			stmt = conn.prepareStatement("UPDATE " + PgDatasets.DATASETS_TABLE_NAME + " SET status = ? WHERE id = ?");
+			conn.setAutoCommit(false);
+			// Data that has become available is read from the primary database until the query databases
+			// have replayed the WAL up to the current position, which is past the commit of the data
+			String loadLsn = "";
+			if (status == EtlStatus.AVAILABLE && ((PgRowStore) rowstore).getQueryRouter().hasReplicas()) {
+				loadLsn = ", load_lsn = pg_wal_lsn_diff(pg_current_wal_lsn(), '0/0')::bigint";
+			}
+			stmt = conn.prepareStatement("UPDATE " + PgDatasets.DATASETS_TABLE_NAME + " SET status = ?, modified = clock_timestamp()" + loadLsn + " WHERE id = ?");
 			stmt.setInt(1, status);
 			PGobject uuid = new PGobject();
 			uuid.setType("uuid");
@@ -153,8 +230,12 @@ public class PgDataset implements Dataset {
 			log.info("Setting status of " + getId() + " to " + EtlStatus.toString(status) + "(" + status + ")");
 			log.debug("Executing: " + stmt);
 			stmt.executeUpdate();
+			PgDatasetRegistry.notifyChange(conn, getId());
+			conn.commit();
+			getRegistry().refresh(getId());
 		} catch (SQLException e) {
 			SqlExceptionLogUtil.error(log, e);
+			rollback(conn, null);
 		} finally {
 			DatasetUtil.closeStatement(stmt);
 			if (conn != null) {
@@ -168,6 +249,10 @@ public class PgDataset implements Dataset {
 			log.debug("Setting status took {} ms", System.currentTimeMillis() - before);
 		}
 
+		if (status == EtlStatus.AVAILABLE) {
+			// new data has been loaded, cached results are outdated
+			getQueryCache().bumpLoadGeneration(getId());
+		}
 		this.status = status;
 	}
 
@@ -179,7 +264,23 @@ public class PgDataset implements Dataset {
 		return created;
 	}
 
-	private String getDataTable() {
+	/**
+	 * @see Dataset#getModificationDate()
+	 */
+	@Override
+	public Date getModificationDate() {
+		return modified;
+	}
+
+	/**
+	 * @see Dataset#getDataVersion()
+	 */
+	@Override
+	public long getDataVersion() {
+		return dataVersion;
+	}
+
+	String getDataTable() {
 		return dataTable;
 	}
 
@@ -191,137 +292,207 @@ public class PgDataset implements Dataset {
 		if (csvFile == null) {
 			throw new IllegalArgumentException("Argument must not be null");
 		}
+		return populate(csvFile, null, append);
+	}
+
+	/**
+	 * @see Dataset#populate(InputStream, boolean)
+	 */
+	@Override
+	public boolean populate(InputStream csvStream, boolean append) throws IOException {
+		if (csvStream == null) {
+			throw new IllegalArgumentException("Argument must not be null");
+		}
+		try {
+			return populate(null, csvStream, append);
+		} finally {
+			csvStream.close();
+		}
+	}
 
+	/**
+	 * Loads data either from a file or from a stream.
+	 */
+	private boolean populate(File csvFile, InputStream csvStream, boolean append) throws IOException {
 		String dataTable = getDataTable();
 		if (dataTable == null) {
 			log.error("Dataset has no data table assigned");
+			if (csvStream != null) {
+				throw new IOException("Dataset " + getId() + " has no data table assigned");
+			}
 			return false;
 		}
 
 		try {
 			setStatus(EtlStatus.PROCESSING);
 
-			if (!append) {
-				if (!truncateTable()) {
-					setStatus(EtlStatus.ERROR);
-					return false;
-				}
-			}
-
 			Date before = new Date();
 			Connection conn = null;
-			PreparedStatement stmt = null;
-			CSVReader cr = null;
+			RowWriter writer = null;
+			File utf8File = null;
+			CsvTokenizer tokenizer = null;
+			// a new table that has been committed but does not yet replace the current table
+			String pendingTable = null;
 			try {
+				// indexes of a previous load may still be built
+				getIndexBuilder().awaitBuild(getId());
+
 				conn = rowstore.getConnection();
-				char separator = detectSeparator(csvFile);
-				CSVParser csvParser = new CSVParserBuilder().
-						withSeparator(separator).
-						withQuoteChar('"').
-						build();
-				cr = new CSVReaderBuilder(Files.newBufferedReader(csvFile.toPath(), DatasetUtil.detectCharset(csvFile))).
-						withSkipLines(0).
-						withCSVParser(csvParser).
-						build();
-				long lineCount = 0;
+				char separator;
+				if (csvFile != null) {
+					utf8File = DatasetUtil.convertToUTF8(csvFile, DatasetUtil.detectCharset(csvFile));
+					separator = CsvTokenizer.detectSeparator(utf8File.toPath());
+					tokenizer = new CsvTokenizer(utf8File.toPath(), separator);
+				} else {
+					// charset and separator are detected from a buffered prefix of the stream
+					InputStream utf8Stream = DatasetUtil.toUTF8(csvStream);
+					separator = CsvTokenizer.detectSeparator(utf8Stream, DatasetUtil.CHARSET_DETECTION_LIMIT);
+					tokenizer = new CsvTokenizer(utf8Stream, separator);
+				}
 				Set<String> labels = new LinkedHashSet<>();
-				String[] line;
 
 				conn.setAutoCommit(false);
 
-				stmt = conn.prepareStatement("INSERT INTO " + dataTable + " (data) VALUES (?)");
-				while ((line = cr.readNext()) != null) {
-					if (lineCount == 0) {
-						// We convert all column names to lower case,
-						// otherwise all queries must be case sensitive later
-						for (String s : line) {
-							String l = s.trim().toLowerCase();
-							if (l.length() > 0) {
-								labels.add(l);
-							} else {
-								log.debug("Skipping column due to empty label");
-							}
-						}
+				// When replacing the data we load it into a new table which replaces the
+				// current table when committing. Until then, queries use the current table.
+				String targetTable = dataTable;
+				if (!append) {
+					targetTable = PgDatasets.constructDataTableName(UUID.randomUUID().toString());
+					log.info("Loading data of dataset " + getId() + " into new table " + targetTable);
+					PgDatasets.createDataTable(conn, targetTable);
+				}
 
-						if (append) {
-							// we must compare existing column names with new ones
-							Set<String> oldColumnNames = getColumnNames(false);
-
-							// if there are no old column names we assume this dataset is newly created
-							if (oldColumnNames.size() > 0 &&
-									!((oldColumnNames.size() == labels.size()) && oldColumnNames.containsAll(labels))) {
-								log.error("Column name mismatch: new tabular structure does not equal existing structure");
-								log.error("Rolling back transaction");
-								conn.rollback();
-								return false;
-							}
+				CsvRecords header = new CsvRecords();
+				if (tokenizer.read(header, 1)) {
+					// We convert all column names to lower case,
+					// otherwise all queries must be case sensitive later
+					for (int i = header.getFirstCell(0); i < header.getEndCell(0); i++) {
+						String l = header.getString(i).trim().toLowerCase();
+						if (l.length() > 0) {
+							labels.add(l);
+						} else {
+							log.debug("Skipping column due to empty label");
 						}
-					} else {
-						JSONObject jsonLine = null;
-						try {
-							jsonLine = csvLineToJsonObject(line, labels);
-						} catch (Exception e) {
-							log.error(e.getMessage());
-							log.error("Error occured when processing line {} of CSV: {}", lineCount, line);
-							log.info("Rolling back transaction");
-							conn.rollback();
-							setStatus(EtlStatus.ERROR);
+					}
+
+					if (append) {
+						// we must compare existing column names with new ones
+						Set<String> oldColumnNames = getColumnNames(false);
+
+						// if there are no old column names we assume this dataset is newly created
+						if (oldColumnNames.size() > 0 &&
+								!((oldColumnNames.size() == labels.size()) && oldColumnNames.containsAll(labels))) {
+							log.error("Column name mismatch: new tabular structure does not equal existing structure");
+							rollback(conn, writer);
 							return false;
 						}
-						PGobject jsonb = new PGobject();
-						jsonb.setType("jsonb");
-						jsonb.setValue(jsonLine.toString());
-						stmt.setObject(1, jsonb);
-						log.debug("Adding to batch: " + stmt);
-						stmt.addBatch();
-						// we execute the batch every 100th line
-						if ((lineCount % 200) == 0) {
-							log.debug("Executing: " + stmt);
-							stmt.executeBatch();
+					}
+
+					String[] labelArray = labels.toArray(new String[0]);
+					// a stream can only be read sequentially
+					int chunks = utf8File != null ? getChunkCount(utf8File, tokenizer.getPosition()) : 1;
+					int borrowedWorkers = chunks > 1 ? rowstore.getEtlProcessor().acquireLoadWorkers(chunks - 1) : 0;
+					long rowCount;
+					if (borrowedWorkers > 0) {
+						try {
+							rowCount = writeChunks(conn, targetTable, tokenizer, separator, labelArray, utf8File, borrowedWorkers + 1);
+						} finally {
+							rowstore.getEtlProcessor().releaseLoadWorkers(borrowedWorkers);
 						}
+					} else {
+						writer = createRowWriter(conn, targetTable);
+						rowCount = writeRows(tokenizer, labelArray, writer);
+						writer.finish();
+					}
+					log.debug("Converted and wrote {} rows", rowCount);
+				}
+
+				List<IndexDefinition> indexes = getIndexesToBuild(targetTable, labels);
+
+				if (append) {
+					// the new rows become visible together with the new version
+					if (!labels.isEmpty()) {
+						writeColumns(conn, labels.toArray(new String[0]), true);
 					}
-					lineCount++;
+					increaseDataVersion(conn);
 				}
-				// in case there are some inserts left to be sent (i.e.
-				// batch size above was smaller than 100 when loop ended)
-				log.debug("Executing: " + stmt);
-				stmt.executeBatch();
 
-				createIndexes(conn, labels);
+				// the new table is registered in the transaction that creates it, so that
+				// it is never taken for an orphaned table while its indexes are built
+				String abandonedTable = append ? null : registerPendingTable(conn, targetTable);
 
 				// we commit the transaction and free the resources of the statement
 				conn.commit();
 
-				setStatus(EtlStatus.AVAILABLE);
+				if (abandonedTable != null) {
+					// left behind by an interrupted load
+					((PgDatasets) rowstore.getDatasets()).dropDataTableDelayed(abandonedTable);
+				}
+
+				if (append) {
+					// the indexes are built in the background, the data can be queried meanwhile
+					setStatus(EtlStatus.AVAILABLE);
+					getIndexBuilder().build(getId(), targetTable, indexes, rowstore.getConfig().isIndexConcurrently());
+				} else {
+					// The new table is not visible to queries yet, so we build its indexes in parallel
+					// before it replaces the current table. Queries never run on an unindexed table.
+					pendingTable = targetTable;
+					int failed = getIndexBuilder().build(getId(), targetTable, indexes, false).await();
+					if (failed > 0) {
+						throw new SQLException("Unable to build " + failed + " of " + indexes.size() + " indexes on " + targetTable);
+					}
+					replaceDataTable(conn, targetTable);
+					writeColumns(conn, labels.toArray(new String[0]), false);
+					increaseDataVersion(conn);
+					conn.commit();
+					pendingTable = null;
+
+					((PgDatasets) rowstore.getDatasets()).dropDataTableDelayed(dataTable);
+					this.dataTable = targetTable;
+					setStatus(EtlStatus.AVAILABLE);
+				}
 			} catch (SQLException e) {
 				SqlExceptionLogUtil.error(log, e);
-				try {
-					log.info("Rolling back transaction");
-					conn.rollback();
-				} catch (SQLException e1) {
-					SqlExceptionLogUtil.error(log, e1);
-				}
+				rollback(conn, writer);
 				setStatus(EtlStatus.ERROR);
-				return false;
-			} catch (CsvValidationException e) {
-				log.error(e.getMessage());
-				try {
-					log.info("Rolling back transaction");
-					conn.rollback();
-				} catch (SQLException e1) {
-					SqlExceptionLogUtil.error(log, e1);
+				if (isTransient(e)) {
+					throw new RetryableEtlException("Unable to populate dataset " + getId() + ": " + e.getMessage(), e);
+				}
+				if (csvStream != null && !isDataError(e)) {
+					// streamed data cannot be loaded again, the caller must tell a rejected
+					// input apart from a failure of the database
+					throw new IOException("Unable to populate dataset " + getId() + ": " + e.getMessage(), e);
 				}
+				return false;
+			} catch (ExecutionException e) {
+				log.error(e.getCause().getMessage());
+				rollback(conn, writer);
 				setStatus(EtlStatus.ERROR);
+				if (e.getCause() instanceof SQLException && isTransient((SQLException) e.getCause())) {
+					throw new RetryableEtlException("Unable to populate dataset " + getId() + ": " + e.getCause().getMessage(), e.getCause());
+				}
 				return false;
+			} catch (InterruptedException e) {
+				log.error("Interrupted while populating dataset " + getId());
+				Thread.currentThread().interrupt();
+				rollback(conn, writer);
+				setStatus(EtlStatus.ERROR);
+				// most likely a shutdown, the data is loaded again later
+				throw new RetryableEtlException("Interrupted while populating dataset " + getId(), e);
 			} finally {
-				if (cr != null) {
+				if (tokenizer != null) {
 					try {
-						cr.close();
+						tokenizer.close();
 					} catch (IOException e) {
 						log.error(e.getMessage());
 					}
 				}
-				DatasetUtil.closeStatement(stmt);
+				if (utf8File != null && !utf8File.equals(csvFile)) {
+					utf8File.delete();
+				}
+				if (writer != null) {
+					writer.abort();
+				}
 				if (conn != null) {
 					try {
 						conn.close();
@@ -329,6 +500,9 @@ public class PgDataset implements Dataset {
 						SqlExceptionLogUtil.error(log, e);
 					}
 				}
+				if (pendingTable != null) {
+					dropTables(List.of(pendingTable));
+				}
 
 				log.debug("Populating dataset took " + (new Date().getTime() - before.getTime()) + " ms");
 			}
@@ -344,84 +518,692 @@ public class PgDataset implements Dataset {
 		return true;
 	}
 
-	private void createIndexes(Connection conn, Set<String> fields) throws SQLException {
-		long before = System.currentTimeMillis();
-		Set<String> existingIndices = getIndexNames();
-		for (String field : fields) {
-			// We do not try to index fields that are too large as we would get an error from PostgreSQL
-			// TODO instead of just skipping the index we could run a fulltext-index on such fields
-			Integer fieldSize = columnSize.get(field);
-			if (fieldSize != null && fieldSize > maxSizeForIndex) {
-				log.warn("Skipping index creation for field \"" + field + "\"; the configured max field size is " + maxSizeForIndex + ", but the actual size is " + fieldSize);
-				continue;
+	/**
+	 * Reads the remaining lines of the CSV file, converts them to JSON and writes them to the database.
+	 *
+	 * <p>Reading, conversion and writing run in parallel stages: a reader thread tokenizes the CSV and
+	 * submits batches of records to the shared pool of converter threads, whereas the calling thread writes
+	 * the converted batches in the order of the CSV file, so that the row numbers match the file.</p>
+	 *
+	 * @return Returns the amount of written rows.
+	 */
+	private long writeRows(CsvTokenizer tokenizer, String[] labels, RowWriter writer) throws SQLException, ExecutionException, InterruptedException {
+		int converterThreads = Math.max(1, rowstore.getConfig().getEtlConverterThreads());
+		OrderedPipeline<RowBatch> pipeline = new OrderedPipeline<>(rowstore.getEtlProcessor().getConversionExecutor(), converterThreads * 2);
+
+		JsonRowEncoder encoder = new JsonRowEncoder(labels);
+		// batches are recycled after they have been written, so that the buffers
+		// do not have to be allocated and grown again for every batch
+		Queue<RowBatch> freeBatches = new ConcurrentLinkedQueue<>();
+		Queue<CsvRecords> freeRecords = new ConcurrentLinkedQueue<>();
+
+		Thread reader = new Thread(() -> {
+			try {
+				while (true) {
+					CsvRecords records = freeRecords.poll();
+					if (records == null) {
+						records = new CsvRecords();
+					}
+					if (!tokenizer.read(records, CONVERSION_BATCH_SIZE)) {
+						break;
+					}
+					pipeline.submit(new CsvRowConverter(encoder, records, nextBatch(freeBatches, labels.length), freeRecords));
+				}
+				pipeline.complete();
+			} catch (CancellationException | InterruptedException e) {
+				log.debug("CSV reader of dataset {} stopped: {}", getId(), e.getMessage());
+			} catch (Exception e) {
+				try {
+					pipeline.fail(e);
+				} catch (InterruptedException ie) {
+					log.debug("CSV reader of dataset {} interrupted while reporting error", getId());
+				}
 			}
-			String indexName = dataTable + "_jsonidx_" + Hashing.md5(field).substring(0, 8);
-			if (existingIndices.contains(indexName)) {
-				log.debug("Index with name " + indexName + " already exists, skipping creation");
-				continue;
+		}, "rowstore-etl-reader-" + getId());
+		reader.setDaemon(true);
+		reader.start();
+
+		long rowCount = 0;
+		try {
+			RowBatch batch;
+			while ((batch = pipeline.take()) != null) {
+				byte[] data = batch.getData();
+				for (int i = 0; i < batch.getRowCount(); i++) {
+					writer.write(data, batch.getRowStart(i), batch.getRowLength(i));
+				}
+				updateColumnStatistics(labels, batch);
+				rowCount += batch.getRowCount();
+				freeBatches.offer(batch);
 			}
-			// We cannot use prepared statements for CREATE INDEX with parametrized fields:
-			// the type to be used with setObject() is not known and setString() does not work.
-			// It should be safe to run BaseConnection.escapeString() to avoid SQL-injection
-			String sql = new StringBuilder("CREATE INDEX ").
-					append(indexName).
-					append(" ON ").
-					append(dataTable).
-					append(" ((data->>'").
-					append(((BaseConnection) conn).escapeString(field)).
-					append("') text_pattern_ops)").
-					toString();
-			log.debug("Executing: " + sql);
-			conn.createStatement().execute(sql);
+		} finally {
+			// stops the reader and the converters in case the writer has failed
+			pipeline.cancel();
+			reader.join();
 		}
-		/*
-		The index below may be used for more advanced JSON-specific indexing
-		and querying, but currently we don't need this functionality
+		return rowCount;
+	}
 
-		String sql = new StringBuilder("CREATE INDEX ON ").append(table).append(" USING GIN(data jsonb_path_ops)").toString();
-		log.debug("Executing: " + sql);
-		conn.createStatement().execute(sql);
-		*/
+	private RowBatch nextBatch(Queue<RowBatch> freeBatches, int columns) {
+		RowBatch batch = freeBatches.poll();
+		return batch != null ? batch : new RowBatch(columns, CONVERSION_BATCH_SIZE * 256);
+	}
 
-		log.debug("Creating indexes took {} ms", System.currentTimeMillis() - before);
+	/**
+	 * @return Returns the amount of chunks the data part of the CSV file should be split into for loading it in parallel.
+	 */
+	private int getChunkCount(File csvFile, long dataStart) {
+		int maxWorkers = rowstore.getConfig().getEtlWorkersPerFile();
+		if (maxWorkers < 2) {
+			return 1;
+		}
+		long chunks = (csvFile.length() - dataStart) / Math.max(1, rowstore.getConfig().getEtlChunkMinSize());
+		return (int) Math.max(1, Math.min(maxWorkers, chunks));
 	}
 
-	private boolean truncateTable() {
+	/**
+	 * Splits the remaining records of the CSV file into chunks and loads them in parallel.
+	 *
+	 * <p>Each chunk is loaded into its own staging table over its own connection. When all chunks have been
+	 * loaded, they are appended to the data table within the transaction of the given connection, so the
+	 * chunks become visible together. The row numbers of the chunks are shifted by the amount of rows of the
+	 * preceding chunks, so that the row numbers match the order of the CSV file.</p>
+	 *
+	 * @param conn The connection of the populating transaction.
+	 * @param targetTable The table to load the data into.
+	 * @param tokenizer The tokenizer, positioned after the header.
+	 * @param chunkCount The amount of chunks (and workers).
+	 * @return Returns the amount of written rows.
+	 */
+	private long writeChunks(Connection conn, String targetTable, CsvTokenizer tokenizer, char separator, String[] labels, File csvFile, int chunkCount) throws SQLException, ExecutionException, InterruptedException, IOException {
 		long before = System.currentTimeMillis();
+		long dataStart = tokenizer.getPosition();
+		long fileSize = csvFile.length();
+
+		// we look for the record boundaries closest to the ideal split positions; the
+		// records have to be parsed for this, otherwise we cannot know whether a
+		// line break is the end of a record or part of a quoted value
+		List<long[]> chunks = new ArrayList<>();
+		long chunkStart = dataStart;
+		long firstRecord = tokenizer.getRecordNumber();
+		for (int i = 1; i <= chunkCount; i++) {
+			long chunkEnd = fileSize;
+			if (i < chunkCount) {
+				tokenizer.skipTo(dataStart + (fileSize - dataStart) * i / chunkCount);
+				chunkEnd = tokenizer.getPosition();
+			}
+			if (chunkEnd > chunkStart) {
+				chunks.add(new long[] {chunkStart, chunkEnd, firstRecord});
+			}
+			chunkStart = chunkEnd;
+			firstRecord = tokenizer.getRecordNumber();
+		}
+		log.debug("Split CSV file into {} chunks in {} ms", chunks.size(), System.currentTimeMillis() - before);
+
+		ExecutorService workers = Executors.newFixedThreadPool(chunks.size(),
+				new ThreadFactoryBuilder().setNameFormat("rowstore-etl-chunk-" + getId() + "-%d").setDaemon(true).build());
+		CompletionService<Long> completion = new ExecutorCompletionService<>(workers);
+		List<String> stagingTables = new ArrayList<>();
+		Map<Future<Long>, Integer> chunkOfResult = new HashMap<>();
+		boolean published = false;
+		try {
+			for (int i = 0; i < chunks.size(); i++) {
+				long[] chunk = chunks.get(i);
+				String stagingTable = dataTable + "_chunk" + i;
+				stagingTables.add(stagingTable);
+				chunkOfResult.put(completion.submit(() -> writeChunk(stagingTable, csvFile, separator, chunk[0], chunk[1], chunk[2], labels)), i);
+			}
+
+			// we wait for all chunks, the first failure stops the remaining workers
+			long[] rowCounts = new long[chunks.size()];
+			for (int i = 0; i < chunks.size(); i++) {
+				Future<Long> result = completion.take();
+				rowCounts[chunkOfResult.get(result)] = result.get();
+			}
+			log.debug("Loaded {} chunks in {} ms", chunks.size(), System.currentTimeMillis() - before);
+
+			long rowCount = publishChunks(conn, targetTable, stagingTables, rowCounts);
+			published = true;
+			return rowCount;
+		} finally {
+			workers.shutdownNow();
+			if (!published) {
+				workers.awaitTermination(1, TimeUnit.MINUTES);
+				// the populating transaction may hold locks on the staging tables
+				rollback(conn, null);
+				dropTables(stagingTables);
+			}
+		}
+	}
+
+	/**
+	 * Loads one chunk of a CSV file into a staging table and commits it.
+	 *
+	 * @return Returns the amount of written rows.
+	 */
+	private long writeChunk(String stagingTable, File csvFile, char separator, long start, long end, long firstRecord, String[] labels) throws Exception {
 		Connection conn = null;
 		Statement stmt = null;
+		RowWriter writer = null;
+		CsvTokenizer tokenizer = null;
 		try {
 			conn = rowstore.getConnection();
 			conn.setAutoCommit(false);
 			stmt = conn.createStatement();
+			// the table may be left over from an earlier failed attempt
+			String dropTable = "DROP TABLE IF EXISTS " + stagingTable;
+			log.debug("Executing: " + dropTable);
+			stmt.execute(dropTable);
+			String createTable = "CREATE UNLOGGED TABLE " + stagingTable + " (rownr SERIAL, data JSONB NOT NULL)";
+			log.debug("Executing: " + createTable);
+			stmt.execute(createTable);
+			// staging tables of loads that have been aborted are found by the dataset, see PgDatasets
+			String commentTable = "COMMENT ON TABLE " + stagingTable + " IS '" + getId() + "'";
+			log.debug("Executing: " + commentTable);
+			stmt.execute(commentTable);
+
+			tokenizer = new CsvTokenizer(csvFile.toPath(), separator, start, end, firstRecord);
+			writer = createRowWriter(conn, stagingTable);
+			long rowCount = writeRows(tokenizer, labels, writer);
+			writer.finish();
+			conn.commit();
+			log.debug("Loaded {} rows into {}", rowCount, stagingTable);
+			return rowCount;
+		} catch (Exception e) {
+			rollback(conn, writer);
+			throw e;
+		} finally {
+			if (tokenizer != null) {
+				tokenizer.close();
+			}
+			if (writer != null) {
+				writer.abort();
+			}
+			DatasetUtil.closeStatement(stmt);
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends the rows of the staging tables to the target table and drops the staging tables. Does not commit.
+	 *
+	 * @return Returns the amount of published rows.
+	 */
+	private long publishChunks(Connection conn, String targetTable, List<String> stagingTables, long[] rowCounts) throws SQLException {
+		long total = 0;
+		for (long rowCount : rowCounts) {
+			total += rowCount;
+		}
+		if (total == 0) {
+			dropTables(conn, stagingTables);
+			return 0;
+		}
+
+		// we reserve a contiguous range of row numbers
+		long firstRowNr;
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement("SELECT setval(pg_get_serial_sequence(?, 'rownr'), nextval(pg_get_serial_sequence(?, 'rownr')) + ? - 1)");
+			stmt.setString(1, targetTable);
+			stmt.setString(2, targetTable);
+			stmt.setLong(3, total);
+			log.debug("Executing: " + stmt);
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			firstRowNr = rs.getLong(1) - total + 1;
+			rs.close();
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+		}
 
-			log.debug("Truncating contents of table " + dataTable);
-			String truncTable = "TRUNCATE " + dataTable;
-			stmt.executeUpdate(truncTable);
-			log.debug("Executing: " + truncTable);
-
-			log.debug("Removing all indexes from table " + dataTable);
-			Set<String> existingIndices = getIndexNames();
-			for (String index : existingIndices) {
-				// We cannot use prepared statements for CREATE INDEX with parametrized fields:
-				// the type to be used with setObject() is not known and setString() does not work.
-				// It should be safe to run BaseConnection.escapeString() to avoid SQL-injection
-				String sql = new StringBuilder("DROP INDEX IF EXISTS ").append(index).toString();
+		// all chunks are published in one statement, so that the target table and its indexes are
+		// maintained in a single pass instead of once per chunk
+		StringBuilder sql = new StringBuilder("INSERT INTO " + targetTable + " (rownr, data) ");
+		List<Long> offsets = new ArrayList<>();
+		long offset = firstRowNr - 1;
+		for (int i = 0; i < stagingTables.size(); i++) {
+			if (rowCounts[i] > 0) {
+				if (!offsets.isEmpty()) {
+					sql.append(" UNION ALL ");
+				}
+				sql.append("SELECT rownr + ?, data FROM ").append(stagingTables.get(i));
+				offsets.add(offset);
+			}
+			offset += rowCounts[i];
+		}
+		sql.append(" ORDER BY 1");
+		try {
+			stmt = conn.prepareStatement(sql.toString());
+			for (int i = 0; i < offsets.size(); i++) {
+				stmt.setLong(i + 1, offsets.get(i));
+			}
+			log.debug("Executing: " + stmt);
+			stmt.executeUpdate();
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+		}
+		dropTables(conn, stagingTables);
+		return total;
+	}
+
+	private void dropTables(Connection conn, List<String> tables) throws SQLException {
+		Statement stmt = null;
+		try {
+			stmt = conn.createStatement();
+			for (String table : tables) {
+				String sql = "DROP TABLE IF EXISTS " + table;
 				log.debug("Executing: " + sql);
-				stmt.executeUpdate(sql);
+				stmt.execute(sql);
 			}
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+		}
+	}
 
-			conn.commit();
+	/**
+	 * Drops tables using a separate connection in auto-commit mode.
+	 */
+	private void dropTables(List<String> tables) {
+		if (tables.isEmpty()) {
+			return;
+		}
+		Connection conn = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(true);
+			dropTables(conn, tables);
 		} catch (SQLException e) {
 			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers a new data table that has not replaced the current data table yet. Does not commit.
+	 *
+	 * @param conn The connection of the populating transaction.
+	 * @param newTable The name of the new data table.
+	 * @return Returns the previously registered pending table if it has not been published, otherwise null.
+	 */
+	private String registerPendingTable(Connection conn, String newTable) throws SQLException {
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = conn.prepareStatement("WITH previous AS (SELECT id, trim(pending_table) AS pending_table, trim(data_table) AS data_table FROM " + PgDatasets.DATASETS_TABLE_NAME + " WHERE id = ? FOR UPDATE) " +
+					"UPDATE " + PgDatasets.DATASETS_TABLE_NAME + " d SET pending_table = ? FROM previous WHERE d.id = previous.id " +
+					"RETURNING CASE WHEN previous.pending_table <> previous.data_table THEN previous.pending_table END AS abandoned");
+			PGobject uuid = new PGobject();
+			uuid.setType("uuid");
+			uuid.setValue(id);
+			stmt.setObject(1, uuid);
+			stmt.setString(2, newTable);
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			if (!rs.next()) {
+				throw new SQLException("Dataset " + getId() + " does not exist anymore");
+			}
+			return rs.getString("abandoned");
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			DatasetUtil.closeStatement(stmt);
+		}
+	}
+
+	/**
+	 * Points the dataset to a new data table. Does not commit.
+	 *
+	 * @param conn The connection of the populating transaction.
+	 * @param newTable The name of the new data table.
+	 */
+	private void replaceDataTable(Connection conn, String newTable) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement("UPDATE " + PgDatasets.DATASETS_TABLE_NAME + " SET data_table = ?, pending_table = NULL WHERE id = ? AND data_table = ?");
+			stmt.setString(1, newTable);
+			PGobject uuid = new PGobject();
+			uuid.setType("uuid");
+			uuid.setValue(id);
+			stmt.setObject(2, uuid);
+			stmt.setString(3, dataTable);
+			log.debug("Executing: " + stmt);
+			if (stmt.executeUpdate() != 1) {
+				throw new SQLException("Data table of dataset " + getId() + " has been replaced concurrently");
+			}
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+		}
+	}
+
+	/**
+	 * Increases the data version and sets the modification date. Does not commit.
+	 *
+	 * <p>If query databases are configured, the new data is only read from the primary database until
+	 * {@link #setStatus(int)} has recorded the WAL position after the commit. The position is set in the
+	 * same transaction, so that no instance sees the new version together with the position of the
+	 * previous load.</p>
+	 *
+	 * @param conn The connection of the populating transaction.
+	 */
+	private void increaseDataVersion(Connection conn) throws SQLException {
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			String loadLsn = "";
+			if (((PgRowStore) rowstore).getQueryRouter().hasReplicas()) {
+				loadLsn = ", load_lsn = " + Long.MAX_VALUE;
+			}
+			stmt = conn.prepareStatement("UPDATE " + PgDatasets.DATASETS_TABLE_NAME + " SET data_version = data_version + 1, modified = clock_timestamp()" + loadLsn + " WHERE id = ? RETURNING data_version, modified");
+			PGobject uuid = new PGobject();
+			uuid.setType("uuid");
+			uuid.setValue(id);
+			stmt.setObject(1, uuid);
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			if (rs.next()) {
+				dataVersion = rs.getLong("data_version");
+				modified = rs.getTimestamp("modified");
+			}
+			PgDatasetRegistry.notifyChange(conn, getId());
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			DatasetUtil.closeStatement(stmt);
+		}
+	}
+
+	/**
+	 * Creates a writer for loading rows into the data table, depending on the configured loader.
+	 */
+	private RowWriter createRowWriter(Connection conn, String dataTable) throws SQLException {
+		if (rowstore.getConfig().isEtlCopyLoader()) {
+			log.debug("Using COPY for loading data into " + dataTable);
+			return new PgCopyRowWriter(conn, dataTable);
+		}
+		return new PgInsertRowWriter(conn, dataTable);
+	}
+
+	/**
+	 * @return Returns true if the error may go away when trying again, e.g. a lost connection, a
+	 * serialization failure or a deadlock, or a database that is shutting down or out of resources.
+	 */
+	private static boolean isTransient(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && (state.startsWith("08") || state.startsWith("53") || state.startsWith("57P") ||
+				"40001".equals(state) || "40P01".equals(state));
+	}
+
+	/**
+	 * @return Returns true if the error has been caused by the loaded data, e.g. an invalid byte sequence
+	 * or a character that cannot be stored.
+	 */
+	private static boolean isDataError(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && state.startsWith("22");
+	}
+
+	private void close(Connection conn) {
+		if (conn != null) {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				SqlExceptionLogUtil.error(log, e);
+			}
+		}
+	}
+
+	/**
+	 * Discards eventually buffered rows of the writer and rolls back the transaction.
+	 */
+	private void rollback(Connection conn, RowWriter writer) {
+		if (writer != null) {
+			writer.abort();
+		}
+		if (conn != null) {
 			try {
 				log.info("Rolling back transaction");
 				conn.rollback();
-			} catch (SQLException e1) {
-				SqlExceptionLogUtil.error(log, e1);
+			} catch (SQLException e) {
+				SqlExceptionLogUtil.error(log, e);
 			}
-			return false;
+		}
+	}
+
+	/**
+	 * @return Returns the indexes that should be built after loading data and that do not exist yet.
+	 */
+	private List<IndexDefinition> getIndexesToBuild(String table, Set<String> fields) {
+		List<IndexDefinition> result = new ArrayList<>();
+		Set<String> existingIndices = getIndexBuilder().getIndexNames(table);
+		for (IndexDefinition index : getIndexAdvisor().getIndexesForLoad(getId(), fields, columnSize)) {
+			String indexName = index.getName(table);
+			if (existingIndices.contains(indexName)) {
+				log.debug("Index with name " + indexName + " already exists, skipping creation");
+				continue;
+			}
+			result.add(index);
+		}
+		return result;
+	}
+
+	private PgIndexBuilder getIndexBuilder() {
+		return ((PgRowStore) rowstore).getIndexBuilder();
+	}
+
+	private PgQueryCache getQueryCache() {
+		return ((PgRowStore) rowstore).getQueryCache();
+	}
+
+	private PgIndexAdvisor getIndexAdvisor() {
+		return ((PgRowStore) rowstore).getIndexAdvisor();
+	}
+
+	/**
+	 * @see Dataset#query(Map, int, int)
+	 */
+	@Override
+	public QueryResult query(Map<String, String> tuples, int limit, int offset) {
+		QueryParameters parameters = new QueryParameters(tuples, limit);
+		parameters.setOffset(offset);
+		return query(parameters);
+	}
+
+	/**
+	 * @see Dataset#query(QueryParameters)
+	 */
+	@Override
+	public QueryResult query(QueryParameters parameters) {
+		Map<String, String> tuples = parameters.getTuples();
+		int limit = parameters.getLimit();
+		boolean backward = parameters.getBefore() > -1;
+		long cursor = backward ? parameters.getBefore() : parameters.getAfter();
+		int offset = cursor > -1 ? 0 : parameters.getOffset();
+		long totalTime = System.currentTimeMillis();
+
+		// the generation must be determined before querying, otherwise a result of
+		// a query that runs concurrently to a load might be cached as current. The
+		// table is part of the key as this instance may still refer to the table that
+		// has been replaced by a load that has bumped the generation in the meantime.
+		String table = getDataTable();
+		long generation = getQueryCache().getLoadGeneration(getId());
+		String cacheKey = getQueryCacheKey(generation, table, parameters);
+		QueryResult cached = getQueryCache().getResult(cacheKey);
+		if (cached != null) {
+			log.debug("Returning cached query result");
+			return cached;
+		}
+
+		long queryTime = -1;
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		List<JSONObject> result = new ArrayList<>();
+		long resultSize = 0;
+		long resultCount = 0;
+		boolean countEstimated = false;
+		long firstRowNr = -1;
+		long lastRowNr = -1;
+		boolean more = false;
+		int regexp = rowstore.getConfig().getRegexpQuerySupport();
+		boolean optimizeRegexp = true;
+		try {
+			conn = getQueryConnection();
+			StringBuilder filter = new StringBuilder();
+			List<String> params = new ArrayList<>();
+			if (!tuples.isEmpty()) {
+				BaseConnection pgConn = conn.unwrap(BaseConnection.class);
+				boolean first = true;
+				for (Map.Entry<String, String> tuple : tuples.entrySet()) {
+					String key = tuple.getKey().toLowerCase();
+					String value = tuple.getValue();
+					// We check whether there is a value
+					if (value.equals("~")) {
+						log.debug("No value provided after ~");
+						return new QueryResult.Error(Status.CLIENT_ERROR_BAD_REQUEST.getUri());
+					}
+
+					filter.append(first ? "" : " AND ");
+					first = false;
+
+					if (regexp == Dataset.REGEXP_QUERY_FULL && value.startsWith("~")) {
+						optimizeRegexp = false;
+					}
+					if (!optimizeRegexp && value.startsWith("~")) {
+						value = value.substring(1);
+					}
+
+					// The key is inlined so that the expression matches the expression of the column's
+					// index also in generic query plans. It should be safe to run BaseConnection.escapeString()
+					// to avoid SQL-injection
+					String field = "data->>'" + pgConn.escapeString(key) + "'";
+
+					// we match using ~ to enable regular expressions
+					PgIndexAdvisor.Operator operator;
+					if ((regexp == Dataset.REGEXP_QUERY_FULL && (!optimizeRegexp || DatasetUtil.isRegExpString(value))) ||
+							(regexp == Dataset.REGEXP_QUERY_SIMPLE && value.startsWith("^"))) {
+						String prefix = DatasetUtil.getLiteralPrefix(value);
+						String upperBound = getUpperBound(prefix);
+						if (upperBound != null) {
+							// the planner can only derive such a range from the regular expression itself if
+							// it knows the value when planning, so we add it explicitly for the index
+							filter.append(field).append(" ~>=~ ? AND ").append(field).append(" ~<~ ? AND ");
+							params.add(prefix);
+							params.add(upperBound);
+						}
+						filter.append(field).append(" ~ ?");
+						operator = value.startsWith("^") ? PgIndexAdvisor.Operator.PREFIX : PgIndexAdvisor.Operator.REGEXP;
+					} else {
+						filter.append(field).append(" = ?");
+						operator = PgIndexAdvisor.Operator.EQUALITY;
+					}
+					params.add(value);
+					getIndexAdvisor().recordUsage(getId(), key, operator);
+				}
+			}
+
+			// Pages are fetched with one extra row to find out whether there are more rows
+			// in the direction of the pagination. The rows are counted separately, if at all.
+			StringBuilder queryTemplate = new StringBuilder("SELECT rownr, data FROM ").append(table);
+			if (filter.length() > 0) {
+				queryTemplate.append(" WHERE ").append(filter);
+			}
+			if (cursor > -1) {
+				queryTemplate.append(filter.length() > 0 ? " AND " : " WHERE ").append(backward ? "rownr < ?" : "rownr > ?");
+			}
+			queryTemplate.append(" ORDER BY rownr").append(backward ? " DESC" : "").append(" LIMIT ? OFFSET ? ");
+
+			stmt = conn.prepareStatement(queryTemplate.toString());
+
+			int paramPos = 1;
+			for (String param : params) {
+				stmt.setString(paramPos++, param);
+			}
+			if (cursor > -1) {
+				stmt.setLong(paramPos++, cursor);
+			}
+
+			stmt.setInt(paramPos++, limit + 1);
+			stmt.setInt(paramPos, offset);
+
+			log.debug("Executing: " + stmt);
+
+			int queryTO = rowstore.getConfig().getQueryTimeout();
+			if (queryTO > -1) {
+				stmt.setQueryTimeout(queryTO);
+			}
+			queryTime = System.currentTimeMillis();
+			rs = stmt.executeQuery();
+			queryTime = System.currentTimeMillis() - queryTime;
+			List<Long> rowNrs = new ArrayList<>();
+			while (rs.next()) {
+				if (rowNrs.size() == limit) {
+					more = true;
+					break;
+				}
+				String value = rs.getString("data");
+				try {
+					result.add(new JSONObject(value));
+					rowNrs.add(rs.getLong("rownr"));
+					resultSize += value.length();
+				} catch (JSONException e) {
+					log.error(e.getMessage());
+				}
+			}
+			if (backward) {
+				Collections.reverse(result);
+				Collections.reverse(rowNrs);
+			}
+			if (!rowNrs.isEmpty()) {
+				firstRowNr = rowNrs.get(0);
+				lastRowNr = rowNrs.get(rowNrs.size() - 1);
+			}
+
+			DatasetUtil.closeStatement(stmt);
+			stmt = null;
+			if (parameters.getCount() == QueryParameters.Count.NONE) {
+				resultCount = -1;
+			} else if (cursor == -1 && !more && (offset == 0 || !result.isEmpty())) {
+				// the page contains the last matching row, so we know the count without counting
+				resultCount = offset + result.size();
+				if (parameters.getCount() == QueryParameters.Count.EXACT) {
+					getQueryCache().putCount(getCountCacheKey(generation, table, filter, params), resultCount);
+				}
+			} else if (parameters.getCount() == QueryParameters.Count.ESTIMATE) {
+				resultCount = estimateCount(conn, table, filter, params);
+				countEstimated = resultCount > -1;
+				if (!countEstimated) {
+					resultCount = countExact(conn, generation, table, filter, params);
+				}
+			} else {
+				resultCount = countExact(conn, generation, table, filter, params);
+			}
+		} catch (SQLException e) {
+			//SqlExceptionLogUtil.error(log, e);
+			log.debug(e.getMessage());
+			return new QueryResult.Error(e.getSQLState());
 		} finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
 			DatasetUtil.closeStatement(stmt);
 			if (conn != null) {
 				try {
@@ -431,198 +1213,431 @@ public class PgDataset implements Dataset {
 				}
 			}
 
-			log.debug("Truncating table took {} ms", System.currentTimeMillis() - before);
+			log.debug("Performing database query took {} ms, total time was {} ms", queryTime, System.currentTimeMillis() - totalTime);
 		}
 
-		return true;
+		// there are rows on the other side of a cursor, at least the one the cursor points at
+		boolean hasPrevious = backward ? more : (cursor > -1 || offset > 0) && !result.isEmpty();
+		boolean hasNext = backward ? !result.isEmpty() : more;
+		QueryResult queryResult = new QueryResult(result, limit, offset, resultCount, queryTime, firstRowNr, lastRowNr, hasPrevious, hasNext);
+		queryResult.setResultCountEstimated(countEstimated);
+		getQueryCache().putResult(cacheKey, queryResult, resultSize);
+		return queryResult;
+	}
+
+	/**
+	 * @return Returns a key that identifies a query with all its parameters. The tuples are sorted
+	 * so that the order of the URL parameters does not matter. The key starts with the dataset ID
+	 * followed by a newline, see PgQueryCache.
+	 */
+	private String getQueryCacheKey(long generation, String table, QueryParameters parameters) {
+		StringBuilder key = new StringBuilder(getId()).append('\n').append(generation).
+				append('\n').append(table).
+				append('\n').append(parameters.getLimit()).
+				append('\n').append(parameters.getOffset()).
+				append('\n').append(parameters.getAfter()).
+				append('\n').append(parameters.getBefore()).
+				append('\n').append(parameters.getCount());
+		Map<String, String> tuples = new TreeMap<>();
+		for (Map.Entry<String, String> tuple : parameters.getTuples().entrySet()) {
+			tuples.put(tuple.getKey().toLowerCase(), tuple.getValue());
+		}
+		// the lengths are included as the values may contain any characters
+		for (Map.Entry<String, String> tuple : tuples.entrySet()) {
+			key.append('\n').append(tuple.getKey().length()).append(':').append(tuple.getKey()).
+					append(tuple.getValue().length()).append(':').append(tuple.getValue());
+		}
+		return key.toString();
+	}
+
+	private String getCountCacheKey(long generation, String table, CharSequence filter, List<String> params) {
+		StringBuilder key = new StringBuilder(getId()).append('\n').append(generation).append('\n').append(table).append('\n').append(filter);
+		for (String param : params) {
+			key.append('\n').append(param.length()).append(':').append(param);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Counts the rows matching a filter. Counts are cached until the dataset's data changes.
+	 */
+	private long countExact(Connection conn, long generation, String table, CharSequence filter, List<String> params) throws SQLException {
+		String cacheKey = getCountCacheKey(generation, table, filter, params);
+		Long cached = getQueryCache().getCount(cacheKey);
+		if (cached != null) {
+			return cached;
+		}
+
+		StringBuilder query = new StringBuilder("SELECT count(*) FROM ").append(table);
+		if (filter.length() > 0) {
+			query.append(" WHERE ").append(filter);
+		}
+		long count = executeCount(conn, query.toString(), params);
+		getQueryCache().putCount(cacheKey, count);
+		return count;
+	}
+
+	/**
+	 * Estimates the amount of rows matching a filter. Unfiltered queries use the table statistics,
+	 * filtered queries the row estimate of the query planner.
+	 *
+	 * @return Returns the estimate, or -1 if there is none, e.g. because the table has not been analyzed yet.
+	 */
+	private long estimateCount(Connection conn, String table, CharSequence filter, List<String> params) throws SQLException {
+		long estimate = -1;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			if (filter.length() == 0) {
+				stmt = conn.prepareStatement("SELECT reltuples::bigint FROM pg_class WHERE oid = ?::regclass");
+				stmt.setString(1, table);
+			} else {
+				stmt = conn.prepareStatement("EXPLAIN (FORMAT JSON) SELECT 1 FROM " + table + " WHERE " + filter);
+				int paramPos = 1;
+				for (String param : params) {
+					stmt.setString(paramPos++, param);
+				}
+			}
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			if (rs.next()) {
+				if (filter.length() == 0) {
+					estimate = rs.getLong(1);
+				} else {
+					estimate = new JSONArray(rs.getString(1)).getJSONObject(0).getJSONObject("Plan").getLong("Plan Rows");
+				}
+			}
+		} catch (JSONException e) {
+			log.error("Unable to parse query plan: " + e.getMessage());
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			DatasetUtil.closeStatement(stmt);
+		}
+
+		// reltuples is -1 (or 0 before PostgreSQL 14) if the table has never been analyzed
+		if (estimate < 0 || (estimate == 0 && filter.length() == 0)) {
+			return -1;
+		}
+		return estimate;
+	}
+
+	private long executeCount(Connection conn, String query, List<String> params) throws SQLException {
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = conn.prepareStatement(query);
+			int paramPos = 1;
+			for (String param : params) {
+				stmt.setString(paramPos++, param);
+			}
+			int queryTO = rowstore.getConfig().getQueryTimeout();
+			if (queryTO > -1) {
+				stmt.setQueryTimeout(queryTO);
+			}
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			return rs.next() ? rs.getLong(1) : 0;
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			DatasetUtil.closeStatement(stmt);
+		}
+	}
+
+	public ResultSet streamAll() {
+		Connection conn = null;
+		try {
+			conn = getQueryConnection();
+			conn.setAutoCommit(false);
+			PreparedStatement stmnt = conn.prepareStatement("SELECT data FROM " + getDataTable(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmnt.setFetchSize(1000);
+			return stmnt.executeQuery();
+		} catch (SQLException e) {
+			log.warn(e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @see Dataset#writeJSON(OutputStream)
+	 */
+	@Override
+	public long writeJSON(OutputStream out) throws IOException {
+		long before = System.currentTimeMillis();
+		long rowCount = 0;
+		Connection conn = null;
+		try {
+			conn = getQueryConnection();
+			try (BinaryCopyReader reader = new BinaryCopyReader(conn, "SELECT data::text FROM " + getDataTable() + " ORDER BY rownr")) {
+				out.write('[');
+				while (reader.next()) {
+					// the delimiter is written before each row, so we do not need to know whether a row is the last one
+					if (rowCount > 0) {
+						out.write(JSON_ROW_DELIMITER);
+					}
+					out.write(reader.getValue(), 0, reader.getLength());
+					rowCount++;
+					// we flush manually because we want to detect aborted connections early
+					if ((rowCount % 10000) == 0) {
+						out.flush();
+					}
+				}
+				out.write(']');
+				out.flush();
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			throw new IOException("Unable to export dataset " + getId() + ": " + e.getMessage(), e);
+		} finally {
+			close(conn);
+		}
+		log.debug("Exported {} rows of dataset {} as JSON in {} ms", rowCount, getId(), System.currentTimeMillis() - before);
+		return rowCount;
 	}
 
-	private Set<String> getIndexNames() {
+	/**
+	 * Converts the rows to CSV in parallel stages: a fetcher thread reads the rows in the order of their row
+	 * numbers and submits batches of rows to the shared pool of export converter threads, whereas the calling
+	 * thread writes the converted batches in the order in which they were fetched. The output is therefore
+	 * the same for every export of the same data.
+	 *
+	 * @see Dataset#writeCSV(OutputStream)
+	 */
+	@Override
+	public long writeCSV(OutputStream out) throws IOException {
 		long before = System.currentTimeMillis();
-		Set<String> result = new HashSet<>();
+		String[] columns = getColumnNames().toArray(new String[0]);
+		out.write(headerToCSV(columns));
+
+		int converterThreads = Math.max(1, rowstore.getConfig().getExportConverterThreads());
+		OrderedPipeline<byte[]> pipeline = new OrderedPipeline<>(((PgRowStore) rowstore).getExportExecutor(), converterThreads * 2);
+		AtomicLong rowCount = new AtomicLong();
 		Connection conn = null;
-		ResultSet rs = null;
-		Statement stmnt = null;
+		BinaryCopyReader reader = null;
+		Thread fetcher = null;
 		try {
-			conn = rowstore.getConnection();
-			StringBuffer sql = new StringBuffer("SELECT ci.relname AS indexname ").
-					append("FROM pg_index i,pg_class ci,pg_class ct ").
-					append("WHERE i.indexrelid=ci.oid AND ").
-					append("i.indrelid=ct.oid AND ").
-					append("ct.relname='").append(dataTable).append("' AND ").
-					append("ci.relname LIKE '%_jsonidx_%';"); // we only want our own indexes (no primary keys etc), so we filter for _jsonidx_ in the index name
-			String sqlStr = sql.toString();
-			stmnt = conn.createStatement();
-			log.debug("Executing: " + sqlStr);
-			rs = stmnt.executeQuery(sqlStr);
-			while (rs.next()) {
-				result.add(rs.getString("indexname"));
+			conn = getQueryConnection();
+			BinaryCopyReader copyReader = new BinaryCopyReader(conn, "SELECT data::text FROM " + getDataTable() + " ORDER BY rownr");
+			reader = copyReader;
+			fetcher = new Thread(() -> {
+				try {
+					while (true) {
+						List<byte[]> rows = new ArrayList<>(EXPORT_BATCH_SIZE);
+						while (rows.size() < EXPORT_BATCH_SIZE && copyReader.next()) {
+							rows.add(Arrays.copyOf(copyReader.getValue(), copyReader.getLength()));
+						}
+						if (rows.isEmpty()) {
+							break;
+						}
+						rowCount.addAndGet(rows.size());
+						pipeline.submit(() -> toCSV(rows, columns));
+					}
+					pipeline.complete();
+				} catch (CancellationException | InterruptedException e) {
+					log.debug("Export fetcher of dataset {} stopped: {}", getId(), e.getMessage());
+				} catch (Exception e) {
+					try {
+						pipeline.fail(e);
+					} catch (InterruptedException ie) {
+						log.debug("Export fetcher of dataset {} interrupted while reporting error", getId());
+					}
+				}
+			}, "rowstore-export-fetcher-" + getId());
+			fetcher.setDaemon(true);
+			fetcher.start();
+
+			byte[] chunk;
+			int chunks = 0;
+			while ((chunk = pipeline.take()) != null) {
+				out.write(chunk);
+				// we flush manually because we want to detect aborted connections early
+				if ((++chunks % 10) == 0) {
+					out.flush();
+				}
 			}
+			out.flush();
 		} catch (SQLException e) {
 			SqlExceptionLogUtil.error(log, e);
+			throw new IOException("Unable to export dataset " + getId() + ": " + e.getMessage(), e);
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to export dataset " + getId() + ": " + e.getCause().getMessage(), e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exporting dataset " + getId());
 		} finally {
-			if (rs != null) {
-				try {
-					rs.close();
-				} catch (SQLException e) {
-					SqlExceptionLogUtil.error(log, e);
+			// stops the fetcher and the converters in case writing has failed
+			pipeline.cancel();
+			// the fetcher must have stopped using the connection before it is returned to the pool, so
+			// we wait for it even if we have been interrupted, e.g. because the client has disconnected
+			boolean interrupted = Thread.interrupted();
+			try {
+				if (reader != null) {
+					// releases a fetcher that waits for data
+					reader.close();
 				}
-			}
-			if (stmnt != null) {
-				try {
-					stmnt.close();
-				} catch (SQLException e) {
-					SqlExceptionLogUtil.error(log, e);
+			} finally {
+				while (fetcher != null && fetcher.isAlive()) {
+					try {
+						fetcher.join();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
 				}
-			}
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-					SqlExceptionLogUtil.error(log, e);
+				close(conn);
+				if (interrupted) {
+					Thread.currentThread().interrupt();
 				}
 			}
-
-			log.debug("Fetching index names took {} ms", System.currentTimeMillis() - before);
 		}
-
-		return result;
+		log.debug("Exported {} rows of dataset {} as CSV in {} ms", rowCount.get(), getId(), System.currentTimeMillis() - before);
+		return rowCount.get();
 	}
 
 	/**
-	 * @see Dataset#query(Map, int, int)
+	 * @see Dataset#readRows(int, RowBatchConsumer)
 	 */
 	@Override
-	public QueryResult query(Map<String, String> tuples, int limit, int offset) {
-		long totalTime = System.currentTimeMillis();
-		long queryTime = -1;
+	public long readRows(int batchSize, RowBatchConsumer consumer) throws IOException {
+		long before = System.currentTimeMillis();
+		long rowCount = 0;
 		Connection conn = null;
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
-
-		List<JSONObject> result = new ArrayList<>();
-		long resultCount = 0;
-		int regexp = rowstore.getConfig().getRegexpQuerySupport();
-		boolean optimizeRegexp = true;
 		try {
-			conn = rowstore.getQueryConnection();
-			StringBuilder queryTemplate = new StringBuilder("SELECT data, count(*) OVER() AS result_count FROM " + getDataTable());
-			if (!tuples.isEmpty()) {
-				String[] values = tuples.values().toArray(new String[tuples.size()]);
-				for (int i = 0; i < tuples.size(); i++) {
-					// We check whether there is a value
-					if (values[i].equals("~")) {
-						log.debug("No value provided after ~");
-						return new QueryResult.Error(Status.CLIENT_ERROR_BAD_REQUEST.getUri());
-					}
-
-					if (i == 0) {
-						queryTemplate.append(" WHERE ");
-					} else {
-						queryTemplate.append(" AND ");
-					}
-
-					if (regexp == Dataset.REGEXP_QUERY_FULL && values[i].startsWith("~")) {
-						optimizeRegexp = false;
+			conn = getQueryConnection();
+			try (BinaryCopyReader reader = new BinaryCopyReader(conn, "SELECT data::text FROM " + getDataTable() + " ORDER BY rownr")) {
+				List<JSONObject> rows = new ArrayList<>(batchSize);
+				while (reader.next()) {
+					rows.add(new JSONObject(new String(reader.getValue(), 0, reader.getLength(), StandardCharsets.UTF_8)));
+					if (rows.size() >= batchSize) {
+						consumer.accept(rows);
+						rowCount += rows.size();
+						rows = new ArrayList<>(batchSize);
 					}
+				}
+				if (!rows.isEmpty()) {
+					consumer.accept(rows);
+					rowCount += rows.size();
+				}
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			throw new IOException("Unable to read rows of dataset " + getId() + ": " + e.getMessage(), e);
+		} finally {
+			close(conn);
+		}
+		log.debug("Read {} rows of dataset {} in {} ms", rowCount, getId(), System.currentTimeMillis() - before);
+		return rowCount;
+	}
 
-					// we match using ~ to enable regular expressions
-					if (regexp == Dataset.REGEXP_QUERY_FULL && (!optimizeRegexp || DatasetUtil.isRegExpString(values[i]))) {
-						queryTemplate.append("data->>? ~ ?");
-					} else if (regexp == Dataset.REGEXP_QUERY_SIMPLE && values[i].startsWith("^")) {
-						queryTemplate.append("data->>? ~ ?");
-					} else {
-						queryTemplate.append("data->>? = ?");
-					}
+	/**
+	 * Converts rows, i.e. JSON objects, to CSV lines with the values of the given columns.
+	 */
+	private static byte[] toCSV(List<byte[]> rows, String[] columns) throws IOException {
+		StringWriter result = new StringWriter(rows.size() * 128);
+		try (CSVWriter csvWriter = new CSVWriter(result)) {
+			String[] values = new String[columns.length];
+			for (byte[] row : rows) {
+				JSONObject json = new JSONObject(new String(row, StandardCharsets.UTF_8));
+				for (int i = 0; i < columns.length; i++) {
+					values[i] = json.optString(columns[i], "");
 				}
+				csvWriter.writeNext(values, false);
 			}
+		}
+		return result.toString().getBytes(StandardCharsets.UTF_8);
+	}
 
-			queryTemplate.append(" ORDER BY rownr LIMIT ? OFFSET ? ");
+	private static byte[] headerToCSV(String[] columns) throws IOException {
+		StringWriter result = new StringWriter();
+		try (CSVWriter csvWriter = new CSVWriter(result)) {
+			csvWriter.writeNext(columns, false);
+		}
+		return result.toString().getBytes(StandardCharsets.UTF_8);
+	}
 
-			stmt = conn.prepareStatement(queryTemplate.toString());
+	/**
+	 * Reads the values of a single-column query in PostgreSQL's binary COPY format, in which every value is
+	 * preceded by its length, so that the values can be passed on as bytes without being decoded or unescaped.
+	 * Closing the reader cancels the copy if it has not been read completely.
+	 */
+	private static final class BinaryCopyReader implements Closeable {
 
-			int paramPos = 1;
-			if (!tuples.isEmpty()) {
-				for (String key : tuples.keySet()) {
-					stmt.setString(paramPos, key.toLowerCase());
-					String value = tuples.get(key);
-					if (!optimizeRegexp && value.startsWith("~")) {
-						value = value.substring(1);
-					}
-					stmt.setString(paramPos + 1, value);
-					paramPos += 2;
-				}
-			}
+		private final DataInputStream in;
 
-			stmt.setInt(paramPos++, limit);
-			stmt.setInt(paramPos, offset);
+		private byte[] value = new byte[8192];
 
-			log.debug("Executing: " + stmt);
+		private int length;
 
-			int queryTO = rowstore.getConfig().getQueryTimeout();
-			if (queryTO > -1) {
-				stmt.setQueryTimeout(queryTO);
-			}
-			queryTime = System.currentTimeMillis();
-			rs = stmt.executeQuery();
-			queryTime = System.currentTimeMillis() - queryTime;
-			while (rs.next()) {
-				String value = rs.getString("data");
-				if (resultCount == 0) {
-					resultCount = rs.getLong("result_count");
-				}
-				try {
-					result.add(new JSONObject(value));
-				} catch (JSONException e) {
-					log.error(e.getMessage());
-				}
+		BinaryCopyReader(Connection conn, String query) throws SQLException, IOException {
+			String sql = "COPY (" + query + ") TO STDOUT (FORMAT binary)";
+			log.debug("Executing: " + sql);
+			in = new DataInputStream(new BufferedInputStream(new PGCopyInputStream(conn.unwrap(PGConnection.class), sql), 131072));
+			byte[] signature = new byte[COPY_SIGNATURE.length];
+			in.readFully(signature);
+			if (!Arrays.equals(signature, COPY_SIGNATURE)) {
+				in.close();
+				throw new IOException("Unexpected binary COPY signature");
 			}
-		} catch (SQLException e) {
-			//SqlExceptionLogUtil.error(log, e);
-			log.debug(e.getMessage());
-			return new QueryResult.Error(e.getSQLState());
-		} finally {
-			if (rs != null) {
-				try {
-					rs.close();
-				} catch (SQLException e) {
-					SqlExceptionLogUtil.error(log, e);
+			// flags and header extension
+			in.readInt();
+			in.skipNBytes(in.readInt());
+		}
+
+		/**
+		 * Reads the next non-null value.
+		 *
+		 * @return Returns false at the end of the data.
+		 */
+		boolean next() throws IOException {
+			while (in.readShort() != -1) {
+				length = in.readInt();
+				if (length < 0) {
+					continue;
 				}
-			}
-			DatasetUtil.closeStatement(stmt);
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-					SqlExceptionLogUtil.error(log, e);
+				if (length > value.length) {
+					value = new byte[Math.max(length, value.length * 2)];
 				}
+				in.readFully(value, 0, length);
+				return true;
 			}
+			return false;
+		}
 
-			log.debug("Performing database query took {} ms, total time was {} ms", queryTime, System.currentTimeMillis() - totalTime);
+		/**
+		 * @return Returns the buffer holding the current value, it is reused for the next value.
+		 */
+		byte[] getValue() {
+			return value;
 		}
 
-		return new QueryResult(result, limit, offset, resultCount, queryTime);
-	}
+		int getLength() {
+			return length;
+		}
 
-	public ResultSet streamAll() {
-		Connection conn = null;
-		try {
-			conn = rowstore.getQueryConnection();
-			conn.setAutoCommit(false);
-			PreparedStatement stmnt = conn.prepareStatement("SELECT data FROM " + getDataTable(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-			stmnt.setFetchSize(1000);
-			return stmnt.executeQuery();
-		} catch (SQLException e) {
-			log.warn(e.getMessage());
-			return null;
+		@Override
+		public void close() throws IOException {
+			in.close();
 		}
+
 	}
 
 	/**
 	 * @see Dataset#getColumnNames()
 	 */
 	public Set<String> getColumnNames() {
-		return this.getColumnNames(true);
+		// the column names only change when data is loaded, the registry's entry is replaced then
+		PgDatasetRegistry.Entry entry = getRegistry().get(getId());
+		if (entry != null && entry.columnNames != null) {
+			return new LinkedHashSet<>(entry.columnNames);
+		}
+		Set<String> result = this.getColumnNames(true);
+		// an empty result may be caused by a lagging query database and is not cached
+		if (entry != null && !result.isEmpty() && entry.dataTable != null && entry.dataTable.equals(getDataTable())) {
+			entry.columnNames = Collections.unmodifiableSet(new LinkedHashSet<>(result));
+		}
+		return result;
 	}
 
 	private Set<String> getColumnNames(boolean useQueryDatabase) {
@@ -630,18 +1645,25 @@ public class PgDataset implements Dataset {
 		Connection conn = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
-		Set<String> result = new HashSet<>();
+		Set<String> result = new LinkedHashSet<>();
 		try {
 			if (useQueryDatabase) {
-				conn = rowstore.getQueryConnection();
+				conn = getQueryConnection();
 			} else {
 				conn = rowstore.getConnection();
 			}
+
+			Map<String, Column> columns = loadColumns(conn, false);
+			if (!columns.isEmpty()) {
+				result.addAll(columns.keySet());
+				return result;
+			}
+
+			// Datasets that have been loaded before the column catalog existed have no entries there.
 			// FIXME the following query is very slow on large tables
 			// (note: temporarily added WHERE clause to speed it up and avoid a full table scan,
 			// side effect of WHERE clause is that eventually added data with different structure is not
 			// being taken into consideration)
-			//StringBuilder queryTemplate = new StringBuilder("SELECT DISTINCT jsonb_object_keys(data) AS column_names FROM " + getDataTable() + " WHERE rownr = '1'");
 			StringBuilder queryTemplate = new StringBuilder("SELECT DISTINCT jsonb_object_keys(data) AS column_names FROM " + getDataTable() +
 					" WHERE rownr=(SELECT min(rownr) FROM " + getDataTable() + ")");
 			stmt = conn.prepareStatement(queryTemplate.toString());
@@ -677,60 +1699,151 @@ public class PgDataset implements Dataset {
 	}
 
 	/**
-	 * Initializes the object by loading all information from the database.
+	 * @see Dataset#getColumns()
 	 */
-	private void initFromDb() {
-		long before = System.currentTimeMillis();
+	@Override
+	public JSONArray getColumns() {
+		JSONArray result = new JSONArray();
 		Connection conn = null;
+		try {
+			conn = getQueryConnection();
+			Map<String, Column> columns = loadColumns(conn, false);
+			if (columns.isEmpty()) {
+				// no statistics for datasets that have been loaded before the column catalog existed
+				for (String name : getColumnNames()) {
+					result.put(new JSONObject().put("name", name));
+				}
+			}
+			for (Column column : columns.values()) {
+				JSONObject c = new JSONObject();
+				c.put("name", column.name);
+				c.put("type", ColumnType.toString(column.types));
+				c.put("maxLength", column.maxLength);
+				c.put("nullCount", column.nullCount);
+				result.put(c);
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Loads the dataset's columns from the column catalog.
+	 *
+	 * @param forUpdate Whether the rows should be locked until the end of the transaction.
+	 * @return Returns the columns in the order of the CSV header.
+	 */
+	private Map<String, Column> loadColumns(Connection conn, boolean forUpdate) throws SQLException {
+		Map<String, Column> result = new LinkedHashMap<>();
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		try {
-			conn = rowstore.getConnection();
-			stmt = conn.prepareStatement("SELECT * FROM " + PgDatasets.DATASETS_TABLE_NAME + " WHERE id = ?");
+			stmt = conn.prepareStatement("SELECT name, max_length, null_count, type FROM " + PgDatasets.COLUMNS_TABLE_NAME +
+					" WHERE dataset_id = ? ORDER BY position" + (forUpdate ? " FOR UPDATE" : ""));
 			PGobject uuid = new PGobject();
 			uuid.setType("uuid");
-			uuid.setValue(getId());
+			uuid.setValue(id);
 			stmt.setObject(1, uuid);
-			log.debug("Loading dataset " + getId() + " from database");
 			log.debug("Executing: " + stmt);
 			rs = stmt.executeQuery();
-			if (rs.next()) {
-				this.status = rs.getInt("status");
-				this.created = rs.getTimestamp("created");
-				this.dataTable = rs.getString("data_table");
-			} else {
-				throw new IllegalStateException("Unable to initialize Dataset object from database");
-			}
-		} catch (SQLException e) {
-			// We ignore SQL Exceptions due to wrong UUID input format
-			if (!"22P02".equalsIgnoreCase(e.getSQLState())) {
-				SqlExceptionLogUtil.error(log, e);
-			} else {
-				// hack to avoid text "ERROR:" in log message
-				log.info(e.getMessage().replaceFirst("ERROR: ", ""));
+			while (rs.next()) {
+				String name = rs.getString("name");
+				result.put(name, new Column(name, rs.getInt("max_length"), rs.getLong("null_count"), ColumnType.fromString(rs.getString("type"))));
 			}
-			throw new IllegalArgumentException(e);
 		} finally {
 			if (rs != null) {
-				try {
-					rs.close();
-				} catch (SQLException e) {
-					SqlExceptionLogUtil.error(log, e);
-				}
+				rs.close();
 			}
 			DatasetUtil.closeStatement(stmt);
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-					SqlExceptionLogUtil.error(log, e);
-				}
+		}
+		return result;
+	}
+
+	/**
+	 * Records the columns of the current load together with their statistics in the column catalog.
+	 * When appending, the statistics are merged with the existing ones. Does not commit.
+	 *
+	 * @param conn The connection of the populating transaction.
+	 * @param labels The column labels in the order of the CSV header.
+	 * @param append Whether the data has been appended to existing data.
+	 */
+	private void writeColumns(Connection conn, String[] labels, boolean append) throws SQLException {
+		Map<String, Column> existing = append ? loadColumns(conn, true) : Collections.emptyMap();
+		// when appending, the header may have a different order; we keep the original one
+		List<String> names = new ArrayList<>(existing.keySet());
+		for (String label : labels) {
+			if (!existing.containsKey(label)) {
+				names.add(label);
 			}
+		}
+
+		PGobject uuid = new PGobject();
+		uuid.setType("uuid");
+		uuid.setValue(id);
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement("DELETE FROM " + PgDatasets.COLUMNS_TABLE_NAME + " WHERE dataset_id = ?");
+			stmt.setObject(1, uuid);
+			log.debug("Executing: " + stmt);
+			stmt.executeUpdate();
+			DatasetUtil.closeStatement(stmt);
 
-			log.debug("Loading dataset took {} ms", System.currentTimeMillis() - before);
+			stmt = conn.prepareStatement("INSERT INTO " + PgDatasets.COLUMNS_TABLE_NAME + " (dataset_id, position, name, max_length, null_count, type) VALUES (?, ?, ?, ?, ?, ?)");
+			synchronized (this) {
+				for (int i = 0; i < names.size(); i++) {
+					String name = names.get(i);
+					Column previous = existing.get(name);
+					int maxLength = Math.max(columnSize.getOrDefault(name, 0), previous != null ? previous.maxLength : 0);
+					long nullCount = columnNullCount.getOrDefault(name, 0L) + (previous != null ? previous.nullCount : 0);
+					int types = columnTypes.getOrDefault(name, ColumnType.EMPTY) | (previous != null ? previous.types : ColumnType.EMPTY);
+					stmt.setObject(1, uuid);
+					stmt.setInt(2, i);
+					stmt.setString(3, name);
+					stmt.setInt(4, maxLength);
+					stmt.setLong(5, nullCount);
+					stmt.setString(6, ColumnType.toString(types));
+					stmt.addBatch();
+				}
+			}
+			log.debug("Executing batch: " + stmt);
+			stmt.executeBatch();
+		} finally {
+			DatasetUtil.closeStatement(stmt);
 		}
 	}
 
+	/**
+	 * Initializes the object from the metadata registry.
+	 */
+	private void initFromRegistry(PgDatasetRegistry.Entry entry) {
+		this.status = entry.status;
+		this.created = entry.created;
+		this.dataTable = entry.dataTable;
+		this.dataVersion = entry.dataVersion;
+		this.modified = entry.modified;
+	}
+
+	/**
+	 * @return Returns a connection to a query database that has caught up with the most recent load of the dataset.
+	 */
+	private Connection getQueryConnection() throws SQLException {
+		PgDatasetRegistry.Entry entry = getRegistry().get(getId());
+		return ((PgRowStore) rowstore).getQueryConnection(entry != null ? entry.loadLsn : 0);
+	}
+
+	private PgDatasetRegistry getRegistry() {
+		return ((PgDatasets) rowstore.getDatasets()).getRegistry();
+	}
+
 	/**
 	 * @see Dataset#getRowCount()
 	 */
@@ -742,7 +1855,7 @@ public class PgDataset implements Dataset {
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		try {
-			conn = rowstore.getQueryConnection();
+			conn = getQueryConnection();
 			stmt = conn.prepareStatement("SELECT COUNT(rownr)::BIGINT AS rowcount FROM " + getDataTable());
 			log.debug("Executing: " + stmt);
 			rs = stmt.executeQuery();
@@ -780,6 +1893,10 @@ public class PgDataset implements Dataset {
 	 */
 	@Override
 	public Set<String> getAliases() {
+		PgDatasetRegistry.Entry entry = getRegistry().get(getId());
+		if (entry != null) {
+			return new HashSet<>(entry.aliases);
+		}
 		return this.getAliases(true);
 	}
 
@@ -791,7 +1908,7 @@ public class PgDataset implements Dataset {
 		ResultSet rs = null;
 		try {
 			if (useQueryDatabase) {
-				conn = rowstore.getQueryConnection();
+				conn = getQueryConnection();
 			} else {
 				conn = rowstore.getConnection();
 			}
@@ -873,7 +1990,15 @@ public class PgDataset implements Dataset {
 			log.debug("Executing and committing batch");
 			ps.executeBatch();
 			DatasetUtil.closeStatement(ps);
+
+			ps = conn.prepareStatement("UPDATE " + PgDatasets.DATASETS_TABLE_NAME + " SET modified = clock_timestamp() WHERE id = ?");
+			ps.setObject(1, uuid);
+			log.debug("Executing: " + ps);
+			ps.execute();
+			DatasetUtil.closeStatement(ps);
+			PgDatasetRegistry.notifyChange(conn, getId());
 			conn.commit();
+			getRegistry().refresh(getId());
 		} catch (SQLException e) {
 			try {
 				conn.rollback();
@@ -955,65 +2080,57 @@ public class PgDataset implements Dataset {
 	}
 
 	/**
-	 * Converts a CSV row to a JSON object.
-	 *
-	 * @param line The row consisting of its cells' values.
-	 * @param labels The column labels.
-	 * @return Returns a JSON object consisting of key (labels) - value (line/cell values) pairs.
-	 * @throws JSONException
+	 * @return Returns the smallest string that is larger than all strings starting with the prefix, or null if
+	 * there is no such string or the prefix is empty.
 	 */
-	private JSONObject csvLineToJsonObject(String[] line, Set<String> labels) throws JSONException {
-		if (line.length > labels.size()) {
-			throw new IllegalArgumentException("Amount of values per row must not be higher than amount of labels in first row of CSV file");
+	private static String getUpperBound(String prefix) {
+		if (prefix.isEmpty()) {
+			return null;
 		}
-
-		JSONObject result = new JSONObject();
-		String[] labelArr = labels.toArray(new String[0]);
-		for (int i = 0; i < line.length; i++) {
-			// we skip empty strings as this would result in empty key names in the JSON result
-			if (labelArr[i].trim().isEmpty()) {
-				continue;
-			}
-			result.put(labelArr[i], line[i]);
-			putAndRetainLargestValue(labelArr[i], line[i].length());
+		char last = prefix.charAt(prefix.length() - 1);
+		if (Character.isSurrogate(last) || Character.isSurrogate((char) (last + 1)) || last == Character.MAX_VALUE) {
+			return null;
 		}
+		return prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+	}
 
-		return result;
+	/**
+	 * @see Dataset#getIndexing()
+	 */
+	@Override
+	public JSONObject getIndexing() {
+		return getIndexAdvisor().getConfiguration(getId());
 	}
 
-	private void putAndRetainLargestValue(String key, int length) {
-		Integer existing = columnSize.get(key);
-		if (existing == null || (existing < length)) {
-			columnSize.put(key, length);
-		}
+	/**
+	 * @see Dataset#setIndexing(JSONObject)
+	 */
+	@Override
+	public boolean setIndexing(JSONObject settings) {
+		return getIndexAdvisor().setConfiguration(getId(), settings);
 	}
 
-	private char detectSeparator(File csvFile) {
-		char result = ',';
-		BufferedReader br = null;
-		try {
-			br = Files.newBufferedReader(csvFile.toPath(), DatasetUtil.detectCharset(csvFile));
-			String line1 = br.readLine();
-			String line2 = br.readLine();
-			int semiCount1 = StringUtils.countMatches(line1, ";");
-			if ((semiCount1 > 0) && (semiCount1 == StringUtils.countMatches(line2, ";"))) {
-				result = ';';
-				log.debug("Detected use of semicolon as CSV separator");
-			} else {
-				log.debug("No semicolon detected, defaulting to comma as CSV separator");
-			}
-		} catch (IOException e) {
-			log.info(e.getMessage());
-		} finally {
-			if (br != null) {
-				try {
-					br.close();
-				} catch (IOException e) {
-					log.error(e.getMessage());
-				}
-			}
+	/**
+	 * @see Dataset#getIndexStatus()
+	 */
+	@Override
+	public JSONArray getIndexStatus() {
+		return getIndexBuilder().getStatus(getId());
+	}
+
+	/**
+	 * Merges the column statistics of a batch into the statistics of the current load. Batches of
+	 * parallel chunks are merged concurrently.
+	 */
+	private synchronized void updateColumnStatistics(String[] labels, RowBatch batch) {
+		int[] sizes = batch.getColumnSizes();
+		long[] nullCounts = batch.getEmptyCounts();
+		int[] types = batch.getColumnTypes();
+		for (int i = 0; i < labels.length; i++) {
+			columnSize.merge(labels[i], sizes[i], Math::max);
+			columnNullCount.merge(labels[i], nullCounts[i], Long::sum);
+			columnTypes.merge(labels[i], types[i], (a, b) -> a | b);
 		}
-		return result;
 	}
 
 }
\ No newline at end of file
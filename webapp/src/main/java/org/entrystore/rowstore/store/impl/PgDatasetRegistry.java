@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store.impl;
+
+import org.entrystore.rowstore.util.DatasetUtil;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.postgresql.util.PGobject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the metadata of all datasets in memory so that requests do not have to load it from the database.
+ *
+ * <p>All changes of the <code>datasets</code> and <code>aliases</code> tables are announced with
+ * <code>NOTIFY</code> in the transaction that makes them. Every instance listens on a dedicated connection and
+ * reloads the metadata of the changed dataset, so that instances sharing a database stay consistent. The
+ * instance that made a change refreshes its registry directly after committing, without waiting for the
+ * notification. If the listening connection is lost, all metadata is reloaded once it is re-established as
+ * notifications may have been missed.</p>
+ *
+ * <p>Metadata of datasets that are not (yet) known is loaded on demand. IDs of datasets that do not exist
+ * are remembered for a short time, so that repeated requests for them do not each cost a round-trip.</p>
+ *
+ * @author Hannes Ebner
+ */
+class PgDatasetRegistry {
+
+	private static final Logger log = LoggerFactory.getLogger(PgDatasetRegistry.class);
+
+	static final String CHANNEL = "rowstore_datasets";
+
+	private static final int LISTEN_TIMEOUT = 10000;
+
+	private static final int RECONNECT_DELAY = 5000;
+
+	/**
+	 * Milliseconds during which an ID is known not to belong to a dataset.
+	 */
+	private static final long MISSING_TTL = 5000;
+
+	private static final int MISSING_MAX_SIZE = 10000;
+
+	/**
+	 * Attempts to refresh an entry without holding the lock during the round-trip, before it is loaded
+	 * with the lock held.
+	 */
+	private static final int REFRESH_ATTEMPTS = 3;
+
+	private final PgRowStore rowstore;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final Map<String, String> aliases = new ConcurrentHashMap<>();
+
+	/**
+	 * IDs that do not belong to a dataset, mapped to the time until which this is assumed.
+	 */
+	private final Map<String, Long> missing = new ConcurrentHashMap<>();
+
+	/**
+	 * Increased with every change of the entries, so that refresh() can detect changes that
+	 * happened while it was loading.
+	 */
+	private volatile long changeCount;
+
+	private volatile boolean running;
+
+	private Thread listener;
+
+	/**
+	 * Immutable snapshot of a dataset's metadata. Column names are determined lazily.
+	 */
+	static final class Entry {
+
+		final String id;
+
+		final int status;
+
+		final Date created;
+
+		final String dataTable;
+
+		final long dataVersion;
+
+		final Date modified;
+
+		final Set<String> aliases;
+
+		/**
+		 * The WAL position (in bytes) of the primary database after the most recent load, 0 if unknown.
+		 */
+		final long loadLsn;
+
+		volatile Set<String> columnNames;
+
+		Entry(String id, int status, Date created, String dataTable, long dataVersion, Date modified, Set<String> aliases, long loadLsn) {
+			this.id = id;
+			this.status = status;
+			this.created = created;
+			this.dataTable = dataTable;
+			this.dataVersion = dataVersion;
+			this.modified = modified;
+			this.aliases = aliases;
+			this.loadLsn = loadLsn;
+		}
+
+		/**
+		 * @return Returns true if the entry describes the same data, i.e., column names are still valid,
+		 * and the data is read from the same databases.
+		 */
+		boolean hasSameData(Entry other) {
+			return other != null && dataVersion == other.dataVersion && loadLsn == other.loadLsn && Objects.equals(dataTable, other.dataTable);
+		}
+
+	}
+
+	PgDatasetRegistry(PgRowStore rowstore) {
+		this.rowstore = rowstore;
+	}
+
+	/**
+	 * Starts listening for changes. The metadata of all datasets is loaded as soon as the listening
+	 * connection has been established.
+	 */
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		listener = new Thread(this::listen, "rowstore-dataset-listener");
+		listener.setDaemon(true);
+		listener.start();
+	}
+
+	synchronized void shutdown() {
+		running = false;
+		if (listener != null) {
+			listener.interrupt();
+			listener = null;
+		}
+	}
+
+	/**
+	 * @param id A dataset ID.
+	 * @return Returns the metadata of the dataset or null if it does not exist.
+	 */
+	Entry get(String id) {
+		if (id == null || !DatasetUtil.isUUID(id)) {
+			return null;
+		}
+		Entry entry = entries.get(id);
+		if (entry == null) {
+			Long missingUntil = missing.get(id);
+			if (missingUntil != null && missingUntil > System.currentTimeMillis()) {
+				return null;
+			}
+			entry = refresh(id, true);
+		}
+		return entry;
+	}
+
+	private void rememberMissing(String id) {
+		long now = System.currentTimeMillis();
+		if (missing.size() >= MISSING_MAX_SIZE) {
+			missing.values().removeIf(until -> until <= now);
+			if (missing.size() >= MISSING_MAX_SIZE) {
+				return;
+			}
+		}
+		missing.put(id, now + MISSING_TTL);
+	}
+
+	/**
+	 * @param idOrAlias A dataset ID or alias.
+	 * @return Returns the metadata of the dataset or null if it does not exist.
+	 */
+	Entry resolve(String idOrAlias) {
+		if (idOrAlias == null) {
+			return null;
+		}
+		String id = aliases.get(idOrAlias);
+		if (id == null && !DatasetUtil.isUUID(idOrAlias)) {
+			id = loadAliasTarget(idOrAlias);
+		}
+		return get(id != null ? id : idOrAlias);
+	}
+
+	/**
+	 * Reloads the metadata of a dataset. Must be called after a committed change, in addition to
+	 * {@link #notifyChange(Connection, String)} in the changing transaction.
+	 *
+	 * @param id A dataset ID.
+	 * @return Returns the current metadata or null if the dataset does not exist (anymore).
+	 */
+	Entry refresh(String id) {
+		return refresh(id, false);
+	}
+
+	/**
+	 * @param rememberMissing If true, the ID is remembered for a short time if there is no such dataset.
+	 */
+	private Entry refresh(String id, boolean rememberMissing) {
+		Entry entry = null;
+		Connection conn = null;
+		try {
+			conn = rowstore.getConnection();
+			// The metadata is loaded without holding the lock, so that lookups of different datasets do not
+			// wait for each other. A load that overlaps with a change may be outdated and is repeated.
+			boolean updated = false;
+			for (int attempt = 1; attempt < REFRESH_ATTEMPTS && !updated; attempt++) {
+				long before = changeCount;
+				entry = load(conn, id).get(id);
+				synchronized (this) {
+					if (changeCount == before) {
+						update(id, entry);
+						updated = true;
+					}
+				}
+			}
+			if (!updated) {
+				synchronized (this) {
+					entry = load(conn, id).get(id);
+					update(id, entry);
+				}
+			}
+			if (entry == null && rememberMissing) {
+				rememberMissing(id);
+			}
+			return entry;
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			return entries.get(id);
+		} finally {
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Announces a change of a dataset's metadata to all instances, including this one. The notification
+	 * is delivered when the transaction of the connection commits.
+	 */
+	static void notifyChange(Connection conn, String id) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement("SELECT pg_notify(?, ?)");
+			stmt.setString(1, CHANNEL);
+			stmt.setString(2, id);
+			log.debug("Executing: " + stmt);
+			stmt.execute();
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+		}
+	}
+
+	private void update(String id, Entry entry) {
+		Entry previous = entry != null ? entries.put(id, entry) : entries.remove(id);
+		if (previous == null && entry == null) {
+			return;
+		}
+		changeCount++;
+		if (entry != null) {
+			missing.remove(id);
+		}
+		if (previous != null) {
+			previous.aliases.forEach(a -> aliases.remove(a, id));
+		}
+		if (entry != null) {
+			entry.aliases.forEach(a -> aliases.put(a, id));
+			if (entry.hasSameData(previous)) {
+				entry.columnNames = previous.columnNames;
+			}
+		}
+		if (previous != null && !previous.hasSameData(entry)) {
+			// the data has been changed, possibly by another instance
+			rowstore.getQueryCache().bumpLoadGeneration(id);
+		}
+	}
+
+	private void reloadAll(Connection conn) throws SQLException {
+		Map<String, Entry> loaded = load(conn, null);
+		for (String id : new HashSet<>(entries.keySet())) {
+			if (!loaded.containsKey(id)) {
+				update(id, null);
+			}
+		}
+		for (Map.Entry<String, Entry> e : loaded.entrySet()) {
+			update(e.getKey(), e.getValue());
+		}
+		log.info("Loaded metadata of {} datasets", loaded.size());
+	}
+
+	/**
+	 * Loads the metadata of one or all datasets together with their aliases in one query.
+	 *
+	 * @param id A dataset ID or null to load all datasets.
+	 */
+	private Map<String, Entry> load(Connection conn, String id) throws SQLException {
+		Map<String, Entry> result = new HashMap<>();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			String query = "SELECT d.*, ARRAY(SELECT a.alias FROM " + PgDatasets.ALIAS_TABLE_NAME + " a WHERE a.dataset_id = d.id) AS alias_list " +
+					"FROM " + PgDatasets.DATASETS_TABLE_NAME + " d";
+			if (id != null) {
+				query += " WHERE d.id = ?";
+			}
+			stmt = conn.prepareStatement(query);
+			if (id != null) {
+				PGobject uuid = new PGobject();
+				uuid.setType("uuid");
+				uuid.setValue(id);
+				stmt.setObject(1, uuid);
+			}
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				String datasetId = rs.getObject("id").toString();
+				Timestamp created = rs.getTimestamp("created");
+				Timestamp modified = rs.getTimestamp("modified");
+				String dataTable = rs.getString("data_table");
+				Array aliasArray = rs.getArray("alias_list");
+				Set<String> aliasSet = aliasArray != null ?
+						new HashSet<>(Arrays.asList((String[]) aliasArray.getArray())) : new HashSet<>();
+				result.put(datasetId, new Entry(datasetId, rs.getInt("status"), created,
+						dataTable != null ? dataTable.trim() : null, rs.getLong("data_version"),
+						modified != null ? modified : created, Collections.unmodifiableSet(aliasSet), rs.getLong("load_lsn")));
+			}
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			DatasetUtil.closeStatement(stmt);
+		}
+		return result;
+	}
+
+	private String loadAliasTarget(String alias) {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			stmt = conn.prepareStatement("SELECT dataset_id FROM " + PgDatasets.ALIAS_TABLE_NAME + " WHERE alias = ?");
+			stmt.setString(1, alias);
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			if (rs.next()) {
+				return rs.getObject("dataset_id").toString();
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+			DatasetUtil.closeStatement(stmt);
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+		return null;
+	}
+
+	private void listen() {
+		while (running) {
+			Connection conn = null;
+			Statement stmt = null;
+			try {
+				// not pooled, the connection is held permanently and the LISTEN must not outlive it
+				conn = rowstore.getDirectConnection();
+				conn.setAutoCommit(true);
+				stmt = conn.createStatement();
+				stmt.execute("LISTEN " + CHANNEL);
+				// notifications may have been missed while not listening
+				synchronized (this) {
+					reloadAll(conn);
+				}
+				PGConnection pgConn = conn.unwrap(PGConnection.class);
+				while (running) {
+					PGNotification[] notifications = pgConn.getNotifications(LISTEN_TIMEOUT);
+					if (notifications == null) {
+						continue;
+					}
+					Set<String> changed = new HashSet<>();
+					for (PGNotification notification : notifications) {
+						changed.add(notification.getParameter());
+					}
+					// loading and updating is serialized with refresh(), otherwise
+					// an outdated load could overwrite a more recent one
+					synchronized (this) {
+						for (String id : changed) {
+							log.debug("Reloading metadata of dataset {} after notification", id);
+							update(id, load(conn, id).get(id));
+						}
+					}
+				}
+			} catch (SQLException e) {
+				if (running) {
+					SqlExceptionLogUtil.error(log, e);
+					log.warn("Lost connection for dataset notifications, reconnecting in {} ms", RECONNECT_DELAY);
+					try {
+						Thread.sleep(RECONNECT_DELAY);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			} finally {
+				DatasetUtil.closeStatement(stmt);
+				if (conn != null) {
+					try {
+						conn.close();
+					} catch (SQLException e) {
+						SqlExceptionLogUtil.error(log, e);
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -29,9 +29,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A PostgreSQL-specific implementation of the Datasets interface.
@@ -47,12 +50,27 @@ public class PgDatasets implements Datasets {
 
 	protected static String ALIAS_TABLE_NAME = "aliases";
 
+	protected static String COLUMNS_TABLE_NAME = "dataset_columns";
+
 	PgRowStore rowstore;
 
+	final PgDatasetRegistry registry;
+
 	protected PgDatasets(PgRowStore rowstore) {
 		this.rowstore = rowstore;
 		createDatasetTableIfNotExists();
 		createAliasTableIfNotExists();
+		createColumnsTableIfNotExists();
+		this.registry = new PgDatasetRegistry(rowstore);
+		registry.start();
+		rowstore.getMaintenanceExecutor().execute(this::dropOrphanedDataTables);
+	}
+
+	/**
+	 * @return Returns the in-memory registry of dataset metadata.
+	 */
+	PgDatasetRegistry getRegistry() {
+		return registry;
 	}
 
 	/**
@@ -76,7 +94,9 @@ public class PgDatasets implements Datasets {
 				int status = rs.getInt("status");
 				Timestamp created = rs.getTimestamp("created");
 				String dataTable = rs.getString("data_table");
-				result.add(new PgDataset(rowstore, id.toString(), status, created, dataTable));
+				long dataVersion = rs.getLong("data_version");
+				Timestamp modified = rs.getTimestamp("modified");
+				result.add(new PgDataset(rowstore, id.toString(), status, created, dataTable, dataVersion, modified != null ? modified : created));
 			}
 			rs.close();
 		} catch (SQLException e) {
@@ -130,14 +150,13 @@ public class PgDatasets implements Datasets {
 			ps.execute();
 			DatasetUtil.closeStatement(ps);
 
-			ps = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + dataTable + " (rownr SERIAL PRIMARY KEY, data JSONB NOT NULL)");
-			log.debug("Executing: " + ps);
-			ps.execute();
-			DatasetUtil.closeStatement(ps);
+			createDataTable(conn, dataTable);
+			PgDatasetRegistry.notifyChange(conn, id);
 
 			conn.commit();
 			log.info("Created dataset " + id);
-			return new PgDataset(getRowStore(), id, EtlStatus.CREATED, created, dataTable);
+			registry.refresh(id);
+			return new PgDataset(getRowStore(), id, EtlStatus.CREATED, created, dataTable, 0, created);
 		} catch (SQLException e) {
 			if (conn != null) {
 				try {
@@ -175,22 +194,49 @@ public class PgDatasets implements Datasets {
 			conn = getRowStore().getConnection();
 			conn.setAutoCommit(false);
 
-			PreparedStatement ps = conn.prepareStatement("DROP TABLE " + constructDataTableName(id));
+			PGobject uuid = new PGobject();
+			uuid.setType("uuid");
+			uuid.setValue(id);
+
+			// the data table may have been replaced, so we cannot derive its name from the ID
+			String dataTable = constructDataTableName(id);
+			PreparedStatement ps = conn.prepareStatement("SELECT data_table FROM " + DATASETS_TABLE_NAME + " WHERE id = ? FOR UPDATE");
+			ps.setObject(1, uuid);
+			log.debug("Executing: " + ps);
+			ResultSet rs = ps.executeQuery();
+			if (rs.next() && rs.getString("data_table") != null) {
+				dataTable = rs.getString("data_table").trim();
+			}
+			rs.close();
+			DatasetUtil.closeStatement(ps);
+
+			ps = conn.prepareStatement("DROP TABLE " + dataTable);
 			log.debug("Executing: " + ps);
 			ps.execute();
 			DatasetUtil.closeStatement(ps);
 
+			ps = conn.prepareStatement("DELETE FROM " + COLUMNS_TABLE_NAME + " WHERE dataset_id = ?");
+			ps.setObject(1, uuid);
+			log.debug("Executing: " + ps);
+			ps.execute();
+			DatasetUtil.closeStatement(ps);
+
+			// queued data would otherwise be loaded into a dataset that does not exist anymore
+			PgEtlJobQueue.removeJobs(conn, uuid);
+
 			ps = conn.prepareStatement("DELETE FROM " + DATASETS_TABLE_NAME + " WHERE id = ?");
-			PGobject uuid = new PGobject();
-			uuid.setType("uuid");
-			uuid.setValue(id);
 			ps.setObject(1, uuid);
 			log.debug("Executing: " + ps);
 			ps.execute();
 			DatasetUtil.closeStatement(ps);
+			PgDatasetRegistry.notifyChange(conn, id);
 
 			conn.commit();
 			log.info("Purged dataset " + id);
+			registry.refresh(id);
+			rowstore.getIndexAdvisor().removeUsage(id);
+			rowstore.getQueryCache().bumpLoadGeneration(id);
+			rowstore.getExportSnapshots().remove(id);
 			return true;
 		} catch (SQLException e) {
 			if (conn != null) {
@@ -235,37 +281,44 @@ public class PgDatasets implements Datasets {
 	 */
 	@Override
 	public boolean hasDataset(String id) {
-		long before = System.currentTimeMillis();
+		return registry.get(id) != null;
+	}
+
+	/**
+	 * Makes sure the table for keeping track of datasets exists.
+	 */
+	private void createDatasetTableIfNotExists() {
 		Connection conn = null;
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
 		try {
-			conn = rowstore.getConnection();
-			stmt = conn.prepareStatement("SELECT * FROM " + PgDatasets.DATASETS_TABLE_NAME + " WHERE id = ?");
-			PGobject uuid = new PGobject();
-			uuid.setType("uuid");
-			uuid.setValue(id);
-			stmt.setObject(1, uuid);
-			log.debug("Executing: " + stmt);
-			rs = stmt.executeQuery();
-			if (rs.next()) {
-				return true;
-			}
+			conn = getRowStore().getConnection();
+			PreparedStatement ps = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + DATASETS_TABLE_NAME + " (id UUID PRIMARY KEY, status INT NOT NULL, created TIMESTAMP NOT NULL, data_table CHAR(" + getDataTableNameLength() + "))");
+			log.debug("Executing: " + ps);
+			ps.execute();
+			DatasetUtil.closeStatement(ps);
+
+			// added in a later version, the table may already exist without it
+			ps = conn.prepareStatement("ALTER TABLE " + DATASETS_TABLE_NAME + " ADD COLUMN IF NOT EXISTS indexing TEXT");
+			log.debug("Executing: " + ps);
+			ps.execute();
+			DatasetUtil.closeStatement(ps);
+
+			ps = conn.prepareStatement("ALTER TABLE " + DATASETS_TABLE_NAME + " ADD COLUMN IF NOT EXISTS data_version BIGINT NOT NULL DEFAULT 0, ADD COLUMN IF NOT EXISTS modified TIMESTAMP");
+			log.debug("Executing: " + ps);
+			ps.execute();
+			DatasetUtil.closeStatement(ps);
+
+			ps = conn.prepareStatement("ALTER TABLE " + DATASETS_TABLE_NAME + " ADD COLUMN IF NOT EXISTS load_lsn BIGINT NOT NULL DEFAULT 0");
+			log.debug("Executing: " + ps);
+			ps.execute();
+			DatasetUtil.closeStatement(ps);
+
+			ps = conn.prepareStatement("ALTER TABLE " + DATASETS_TABLE_NAME + " ADD COLUMN IF NOT EXISTS pending_table CHAR(" + getDataTableNameLength() + ")");
+			log.debug("Executing: " + ps);
+			ps.execute();
+			DatasetUtil.closeStatement(ps);
 		} catch (SQLException e) {
-			if ("22P02".equals(e.getSQLState())) {
-				log.debug("Probable alias detected: {}", e.getMessage());
-			} else {
-				SqlExceptionLogUtil.error(log, e);
-			}
+			SqlExceptionLogUtil.error(log, e);
 		} finally {
-			if (rs != null) {
-				try {
-					rs.close();
-				} catch (SQLException e) {
-					SqlExceptionLogUtil.error(log, e);
-				}
-			}
-			DatasetUtil.closeStatement(stmt);
 			if (conn != null) {
 				try {
 					conn.close();
@@ -273,20 +326,17 @@ public class PgDatasets implements Datasets {
 					SqlExceptionLogUtil.error(log, e);
 				}
 			}
-			log.debug("Checking for dataset existance took {} ms", System.currentTimeMillis() - before);
 		}
-
-		return false;
 	}
 
 	/**
 	 * Makes sure the table for keeping track of datasets exists.
 	 */
-	private void createDatasetTableIfNotExists() {
+	private void createAliasTableIfNotExists() {
 		Connection conn = null;
 		try {
 			conn = getRowStore().getConnection();
-			PreparedStatement ps = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + DATASETS_TABLE_NAME + " (id UUID PRIMARY KEY, status INT NOT NULL, created TIMESTAMP NOT NULL, data_table CHAR(" + getDataTableNameLength() + "))");
+			PreparedStatement ps = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + ALIAS_TABLE_NAME + " (id SERIAL PRIMARY KEY, dataset_id UUID NOT NULL, alias TEXT NOT NULL)");
 			log.debug("Executing: " + ps);
 			ps.execute();
 			DatasetUtil.closeStatement(ps);
@@ -304,13 +354,15 @@ public class PgDatasets implements Datasets {
 	}
 
 	/**
-	 * Makes sure the table for keeping track of datasets exists.
+	 * Creates the catalog of the datasets' columns. The columns are recorded in the order of the
+	 * CSV header together with statistics that are gathered while loading.
 	 */
-	private void createAliasTableIfNotExists() {
+	private void createColumnsTableIfNotExists() {
 		Connection conn = null;
 		try {
 			conn = getRowStore().getConnection();
-			PreparedStatement ps = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + ALIAS_TABLE_NAME + " (id SERIAL PRIMARY KEY, dataset_id UUID NOT NULL, alias TEXT NOT NULL)");
+			PreparedStatement ps = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + COLUMNS_TABLE_NAME + " (dataset_id UUID NOT NULL, position INT NOT NULL, " +
+					"name TEXT NOT NULL, max_length INT NOT NULL, null_count BIGINT NOT NULL, type TEXT NOT NULL, PRIMARY KEY (dataset_id, position))");
 			log.debug("Executing: " + ps);
 			ps.execute();
 			DatasetUtil.closeStatement(ps);
@@ -389,12 +441,155 @@ public class PgDatasets implements Datasets {
 		return uuid;
 	}
 
+	/**
+	 * Creates a data table. Does not commit.
+	 *
+	 * @param conn The connection to use.
+	 * @param dataTable The name of the table.
+	 * @throws SQLException
+	 */
+	static void createDataTable(Connection conn, String dataTable) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + dataTable + " (rownr SERIAL PRIMARY KEY, data JSONB NOT NULL)");
+		log.debug("Executing: " + ps);
+		try {
+			ps.execute();
+		} finally {
+			DatasetUtil.closeStatement(ps);
+		}
+	}
+
+	/**
+	 * Drops a data table after the configured delay, so that queries which were started
+	 * before the table has been replaced can finish.
+	 *
+	 * @param dataTable The name of the table.
+	 */
+	void dropDataTableDelayed(String dataTable) {
+		int delay = Math.max(0, rowstore.getConfig().getDropTableDelay());
+		log.info("Dropping data table " + dataTable + " in " + delay + " seconds");
+		rowstore.getMaintenanceExecutor().schedule(() -> dropDataTable(dataTable), delay, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Drops a data table unless it is referenced by a dataset, either as its current or as its
+	 * pending data table. The references are checked in the transaction that drops the table,
+	 * with the referencing rows locked, so that a table cannot become referenced in between.
+	 */
+	private void dropDataTable(String dataTable) {
+		Connection conn = null;
+		PreparedStatement ps = null;
+		try {
+			conn = getRowStore().getConnection();
+			conn.setAutoCommit(false);
+			ps = conn.prepareStatement("SELECT id FROM " + DATASETS_TABLE_NAME + " WHERE trim(data_table) = ? OR trim(pending_table) = ? FOR UPDATE");
+			ps.setString(1, dataTable);
+			ps.setString(2, dataTable);
+			log.debug("Executing: " + ps);
+			ResultSet rs = ps.executeQuery();
+			if (rs.next()) {
+				log.warn("Not dropping data table " + dataTable + ", it is referenced by dataset " + rs.getString("id"));
+				rs.close();
+				conn.rollback();
+				return;
+			}
+			rs.close();
+			DatasetUtil.closeStatement(ps);
+
+			ps = conn.prepareStatement("DROP TABLE IF EXISTS " + dataTable);
+			log.debug("Executing: " + ps);
+			ps.execute();
+			conn.commit();
+			log.info("Dropped data table " + dataTable);
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			if (conn != null) {
+				try {
+					conn.rollback();
+				} catch (SQLException e1) {
+					SqlExceptionLogUtil.error(log, e1);
+				}
+			}
+		} finally {
+			DatasetUtil.closeStatement(ps);
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops data tables that are not referenced by any dataset, e.g. replaced tables
+	 * whose delayed removal did not happen because of a shutdown. Tables that are still
+	 * being loaded are registered as pending data tables and are therefore skipped.
+	 *
+	 * <p>Also drops the staging tables of parallel loads that have been aborted, e.g. by a
+	 * crash. A staging table carries the ID of its dataset as comment and is in use as long
+	 * as an ETL job of the dataset is being processed. Staging tables are not dropped with a
+	 * delay, as a later load of the same dataset may create a table with the same name.</p>
+	 */
+	private void dropOrphanedDataTables() {
+		Set<String> orphans = new HashSet<>();
+		Connection conn = null;
+		PreparedStatement ps = null;
+		try {
+			conn = getRowStore().getConnection();
+			ps = conn.prepareStatement("SELECT tablename FROM pg_tables WHERE schemaname = current_schema() AND tablename ~ '^data_[0-9a-f]{32}$' " +
+					"AND tablename NOT IN (SELECT trim(data_table) FROM " + DATASETS_TABLE_NAME + " WHERE data_table IS NOT NULL " +
+					"UNION ALL SELECT trim(pending_table) FROM " + DATASETS_TABLE_NAME + " WHERE pending_table IS NOT NULL)");
+			log.debug("Executing: " + ps);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				orphans.add(rs.getString("tablename"));
+			}
+			rs.close();
+			DatasetUtil.closeStatement(ps);
+
+			ps = conn.prepareStatement("SELECT t.tablename FROM (SELECT tablename, obj_description(format('%I.%I', schemaname, tablename)::regclass, 'pg_class') AS dataset_id " +
+					"FROM pg_tables WHERE schemaname = current_schema() AND tablename ~ '^data_[0-9a-f]{32}_chunk[0-9]+$') t " +
+					"WHERE NOT EXISTS (SELECT 1 FROM " + PgEtlJobQueue.JOBS_TABLE_NAME + " j WHERE j.status = ? AND j.dataset_id::text = t.dataset_id)");
+			ps.setString(1, PgEtlJobQueue.STATUS_PROCESSING);
+			log.debug("Executing: " + ps);
+			rs = ps.executeQuery();
+			List<String> stagingTables = new ArrayList<>();
+			while (rs.next()) {
+				stagingTables.add(rs.getString("tablename"));
+			}
+			rs.close();
+			for (String stagingTable : stagingTables) {
+				log.info("Dropping orphaned staging table " + stagingTable);
+				DatasetUtil.closeStatement(ps);
+				ps = conn.prepareStatement("DROP TABLE IF EXISTS " + stagingTable);
+				log.debug("Executing: " + ps);
+				ps.execute();
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			DatasetUtil.closeStatement(ps);
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+		for (String orphan : orphans) {
+			log.info("Found orphaned data table " + orphan);
+			dropDataTableDelayed(orphan);
+		}
+	}
+
 	/**
 	 * Constructs a name for a DB data table based on a supplied ID.
 	 * @param id The ID to be used for constructing the table name.
 	 * @return Returns a table name for storing a dataset's data.
 	 */
-	private String constructDataTableName(String id) {
+	static String constructDataTableName(String id) {
 		return "data_" + id.replaceAll("-", "");
 	}
 
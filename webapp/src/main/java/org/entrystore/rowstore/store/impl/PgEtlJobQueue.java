@@ -0,0 +1,607 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.entrystore.rowstore.RowStoreApplication;
+import org.entrystore.rowstore.etl.EtlJob;
+import org.entrystore.rowstore.etl.EtlJobQueue;
+import org.entrystore.rowstore.etl.EtlStatus;
+import org.entrystore.rowstore.store.Dataset;
+import org.entrystore.rowstore.util.DatasetUtil;
+import org.postgresql.PGConnection;
+import org.postgresql.largeobject.LargeObject;
+import org.postgresql.largeobject.LargeObjectManager;
+import org.postgresql.util.PGobject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A PostgreSQL-specific implementation of the EtlJobQueue interface.
+ *
+ * <p>Jobs are stored in the table <code>etl_jobs</code>, their data in large objects. Instances claim jobs
+ * with <code>SELECT ... FOR UPDATE SKIP LOCKED</code>, so that every job is processed by one instance only.
+ * A job is only claimed if there is no earlier job of the same dataset that is queued or being processed,
+ * which keeps the jobs of a dataset in order across instances.</p>
+ *
+ * <p>Jobs whose data is streamed directly into a dataset (see {@link #begin(String, boolean)}) are stored
+ * without data. They are only registered if the dataset has no pending jobs, and they are claimed right
+ * away, so that subsequent jobs of the dataset wait for them. Registering and queueing jobs is serialized
+ * per dataset with an advisory lock.</p>
+ *
+ * <p>Instances regularly update the heartbeat of the jobs they process. Jobs whose heartbeat has timed out,
+ * e.g. because the instance has crashed or has been restarted, are queued again by any instance, starting
+ * right after startup. Failed jobs are retried with exponentially increasing delays until the maximum
+ * number of attempts is reached.</p>
+ *
+ * <p>Updates of a claimed job are fenced with the claiming instance and the attempt, so that an instance
+ * which has missed its heartbeats cannot finish a job that has been taken over by another instance. The
+ * processing of such a job is aborted as soon as a heartbeat finds it lost.</p>
+ *
+ * @author Hannes Ebner
+ * @see EtlJobQueue
+ */
+class PgEtlJobQueue implements EtlJobQueue {
+
+	private static final Logger log = LoggerFactory.getLogger(PgEtlJobQueue.class);
+
+	static final String JOBS_TABLE_NAME = "etl_jobs";
+
+	static final String STATUS_QUEUED = "queued";
+
+	static final String STATUS_PROCESSING = "processing";
+
+	static final String STATUS_FAILED = "failed";
+
+	private final PgRowStore rowstore;
+
+	/**
+	 * The claim token of this instance, stored in the claimed_by column of the jobs it processes. Together
+	 * with the number of attempts it fences out instances that have lost a job, so it must be unique: the
+	 * runtime name (pid@host) alone is not, as containers may reuse both, hence the random suffix.
+	 */
+	private final String instanceName;
+
+	private final Map<Long, EtlJob> claimed = new ConcurrentHashMap<>();
+
+	/**
+	 * Heartbeats have their own thread, so that they are not delayed by maintenance tasks.
+	 */
+	private final ScheduledExecutorService heartbeatExecutor;
+
+	PgEtlJobQueue(PgRowStore rowstore) {
+		this.rowstore = rowstore;
+		this.instanceName = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+		createJobTableIfNotExists();
+
+		int timeout = Math.max(10, rowstore.getConfig().getEtlJobTimeout());
+		heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("rowstore-etl-heartbeat").setDaemon(true).build());
+		heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, timeout / 4, timeout / 4, TimeUnit.SECONDS);
+		rowstore.getMaintenanceExecutor().scheduleWithFixedDelay(this::recoverOrphanedJobs, 0, timeout / 2, TimeUnit.SECONDS);
+	}
+
+	void shutdown() {
+		heartbeatExecutor.shutdownNow();
+	}
+
+	/**
+	 * @see EtlJobQueue#enqueue(String, File, boolean)
+	 */
+	@Override
+	public EtlJob enqueue(String datasetId, File data, boolean append) throws IOException {
+		long before = System.currentTimeMillis();
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(false);
+			lockDataset(conn, datasetId);
+
+			LargeObjectManager lom = conn.unwrap(PGConnection.class).getLargeObjectAPI();
+			long oid = lom.createLO(LargeObjectManager.READWRITE);
+			LargeObject lo = lom.open(oid, LargeObjectManager.WRITE);
+			try (OutputStream out = lo.getOutputStream()) {
+				Files.copy(data.toPath(), out);
+			} finally {
+				lo.close();
+			}
+
+			stmt = conn.prepareStatement("INSERT INTO " + JOBS_TABLE_NAME + " (dataset_id, append, data_oid, status) VALUES (?, ?, ?, ?) RETURNING id");
+			stmt.setObject(1, toUUID(datasetId));
+			stmt.setBoolean(2, append);
+			stmt.setLong(3, oid);
+			stmt.setString(4, STATUS_QUEUED);
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			rs.next();
+			EtlJob job = new EtlJob(rs.getLong("id"), datasetId, append, 0);
+			conn.commit();
+			log.info("Queued {} with {} bytes of data in {} ms", job, data.length(), System.currentTimeMillis() - before);
+			return job;
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			rollback(conn);
+			throw new IOException("Unable to queue ETL job: " + e.getMessage(), e);
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * @see EtlJobQueue#begin(String, boolean)
+	 */
+	@Override
+	public EtlJob begin(String datasetId, boolean append) throws IOException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(false);
+			lockDataset(conn, datasetId);
+			stmt = conn.prepareStatement("INSERT INTO " + JOBS_TABLE_NAME + " (dataset_id, append, status, attempts, claimed_by, heartbeat) " +
+					"SELECT ?, ?, ?, 1, ?, now() WHERE NOT EXISTS (SELECT 1 FROM " + JOBS_TABLE_NAME + " WHERE dataset_id = ? AND status IN (?, ?)) RETURNING id");
+			PGobject uuid = toUUID(datasetId);
+			stmt.setObject(1, uuid);
+			stmt.setBoolean(2, append);
+			stmt.setString(3, STATUS_PROCESSING);
+			stmt.setString(4, instanceName);
+			stmt.setObject(5, uuid);
+			stmt.setString(6, STATUS_QUEUED);
+			stmt.setString(7, STATUS_PROCESSING);
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			EtlJob job = null;
+			if (rs.next()) {
+				job = new EtlJob(rs.getLong("id"), datasetId, append, 1);
+				claimed.put(job.getId(), job);
+				log.info("Started {} with streamed data", job);
+			}
+			conn.commit();
+			return job;
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			rollback(conn);
+			throw new IOException("Unable to register ETL job: " + e.getMessage(), e);
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * @see EtlJobQueue#claim()
+	 */
+	@Override
+	public EtlJob claim() {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(true);
+			stmt = conn.prepareStatement("UPDATE " + JOBS_TABLE_NAME + " SET status = ?, attempts = attempts + 1, claimed_by = ?, heartbeat = now() " +
+					"WHERE id = (SELECT j.id FROM " + JOBS_TABLE_NAME + " j WHERE j.status = ? AND j.next_attempt <= now() " +
+					"AND NOT EXISTS (SELECT 1 FROM " + JOBS_TABLE_NAME + " p WHERE p.dataset_id = j.dataset_id AND p.id < j.id AND p.status IN (?, ?)) " +
+					"ORDER BY j.id LIMIT 1 FOR UPDATE SKIP LOCKED) " +
+					"RETURNING id, dataset_id, append, attempts");
+			stmt.setString(1, STATUS_PROCESSING);
+			stmt.setString(2, instanceName);
+			stmt.setString(3, STATUS_QUEUED);
+			stmt.setString(4, STATUS_QUEUED);
+			stmt.setString(5, STATUS_PROCESSING);
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			if (rs.next()) {
+				EtlJob job = new EtlJob(rs.getLong("id"), rs.getObject("dataset_id").toString(), rs.getBoolean("append"), rs.getInt("attempts"));
+				claimed.put(job.getId(), job);
+				log.info("Claimed {}, attempt {}", job, job.getAttempt());
+				return job;
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+		return null;
+	}
+
+	/**
+	 * @see EtlJobQueue#fetchData(EtlJob)
+	 */
+	@Override
+	public File fetchData(EtlJob job) throws IOException {
+		Path tmpPath = Files.createTempFile(RowStoreApplication.NAME, ".csv");
+		tmpPath.toFile().deleteOnExit();
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(false);
+			stmt = conn.prepareStatement("SELECT data_oid FROM " + JOBS_TABLE_NAME + " WHERE id = ?");
+			stmt.setLong(1, job.getId());
+			rs = stmt.executeQuery();
+			if (!rs.next() || rs.getObject("data_oid") == null) {
+				throw new IOException("Data of " + job + " does not exist anymore");
+			}
+			LargeObject lo = conn.unwrap(PGConnection.class).getLargeObjectAPI().open(rs.getLong("data_oid"), LargeObjectManager.READ);
+			try (InputStream in = lo.getInputStream()) {
+				Files.copy(in, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				lo.close();
+			}
+			conn.commit();
+			log.debug("Fetched data of {} to temporary file at {}", job, tmpPath);
+			return tmpPath.toFile();
+		} catch (SQLException | IOException e) {
+			rollback(conn);
+			Files.deleteIfExists(tmpPath);
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			}
+			throw new IOException("Unable to fetch data of " + job + ": " + e.getMessage(), e);
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * @see EtlJobQueue#complete(EtlJob)
+	 */
+	@Override
+	public void complete(EtlJob job) {
+		claimed.remove(job.getId());
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(true);
+			stmt = conn.prepareStatement("WITH job AS (DELETE FROM " + JOBS_TABLE_NAME + " WHERE id = ? AND claimed_by = ? AND attempts = ? RETURNING data_oid) " +
+					"SELECT CASE WHEN data_oid IS NOT NULL THEN lo_unlink(data_oid) END FROM job");
+			stmt.setLong(1, job.getId());
+			stmt.setString(2, instanceName);
+			stmt.setInt(3, job.getAttempt());
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			if (!rs.next()) {
+				log.warn("{} has been taken over by another instance, not completing it", job);
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * @see EtlJobQueue#fail(EtlJob, String, boolean)
+	 */
+	@Override
+	public boolean fail(EtlJob job, String error, boolean retry) {
+		claimed.remove(job.getId());
+		int maxAttempts = rowstore.getConfig().getEtlMaxAttempts();
+		boolean retried = false;
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(false);
+			if (retry && job.getAttempt() < maxAttempts) {
+				// the delay doubles with every attempt; jobs without stored data cannot be retried
+				long delay = rowstore.getConfig().getEtlRetryDelay() * (1L << Math.min(job.getAttempt() - 1, 16));
+				stmt = conn.prepareStatement("UPDATE " + JOBS_TABLE_NAME + " SET status = ?, claimed_by = NULL, error = ?, " +
+						"next_attempt = now() + make_interval(secs => ?) WHERE id = ? AND claimed_by = ? AND attempts = ? AND data_oid IS NOT NULL");
+				stmt.setString(1, STATUS_QUEUED);
+				stmt.setString(2, error);
+				stmt.setLong(3, delay);
+				stmt.setLong(4, job.getId());
+				stmt.setString(5, instanceName);
+				stmt.setInt(6, job.getAttempt());
+				log.debug("Executing: " + stmt);
+				retried = stmt.executeUpdate() > 0;
+				DatasetUtil.closeStatement(stmt);
+				stmt = null;
+				if (retried) {
+					log.warn("{} failed in attempt {} of {}, retrying in {} seconds: {}", job, job.getAttempt(), maxAttempts, delay, error);
+				}
+			}
+			if (!retried) {
+				// the job is kept for inspection, its data is removed
+				stmt = conn.prepareStatement("UPDATE " + JOBS_TABLE_NAME + " j SET status = ?, claimed_by = NULL, error = ?, data_oid = NULL " +
+						"FROM (SELECT id, data_oid FROM " + JOBS_TABLE_NAME + " WHERE id = ? AND claimed_by = ? AND attempts = ? FOR UPDATE) o " +
+						"WHERE j.id = o.id RETURNING o.data_oid");
+				stmt.setString(1, STATUS_FAILED);
+				stmt.setString(2, error);
+				stmt.setLong(3, job.getId());
+				stmt.setString(4, instanceName);
+				stmt.setInt(5, job.getAttempt());
+				log.debug("Executing: " + stmt);
+				rs = stmt.executeQuery();
+				if (!rs.next()) {
+					log.warn("{} has been taken over by another instance, not failing it", job);
+				} else {
+					if (rs.getObject(1) != null) {
+						unlink(conn, rs.getLong(1));
+					}
+					log.warn("{} failed permanently: {}", job, error);
+				}
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			rollback(conn);
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+		return retried;
+	}
+
+	/**
+	 * @see EtlJobQueue#getPendingJobs()
+	 */
+	@Override
+	public int getPendingJobs() {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			stmt = conn.prepareStatement("SELECT count(*) FROM " + JOBS_TABLE_NAME + " WHERE status IN (?, ?)");
+			stmt.setString(1, STATUS_QUEUED);
+			stmt.setString(2, STATUS_PROCESSING);
+			rs = stmt.executeQuery();
+			rs.next();
+			return rs.getInt(1);
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			return -1;
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * Removes all jobs of a dataset together with their data. Does not commit.
+	 */
+	static void removeJobs(Connection conn, PGobject datasetId) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement("WITH job AS (DELETE FROM " + JOBS_TABLE_NAME + " WHERE dataset_id = ? RETURNING data_oid) " +
+					"SELECT lo_unlink(data_oid) FROM job WHERE data_oid IS NOT NULL");
+			stmt.setObject(1, datasetId);
+			log.debug("Executing: " + stmt);
+			stmt.execute();
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+		}
+	}
+
+	/**
+	 * Tells other instances that the jobs claimed by this instance are still being processed. Jobs that
+	 * have been taken over by another instance in the meantime are aborted.
+	 */
+	private void heartbeat() {
+		List<EtlJob> jobs = List.copyOf(claimed.values());
+		if (jobs.isEmpty()) {
+			return;
+		}
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(true);
+			Array ids = conn.createArrayOf("bigint", jobs.stream().map(EtlJob::getId).toArray());
+			Array attempts = conn.createArrayOf("integer", jobs.stream().map(EtlJob::getAttempt).toArray());
+			stmt = conn.prepareStatement("UPDATE " + JOBS_TABLE_NAME + " j SET heartbeat = now() FROM unnest(?, ?) AS c(id, attempts) " +
+					"WHERE j.id = c.id AND j.attempts = c.attempts AND j.claimed_by = ? AND j.status = ? RETURNING j.id");
+			stmt.setArray(1, ids);
+			stmt.setArray(2, attempts);
+			stmt.setString(3, instanceName);
+			stmt.setString(4, STATUS_PROCESSING);
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			Set<Long> alive = new HashSet<>();
+			while (rs.next()) {
+				alive.add(rs.getLong(1));
+			}
+			for (EtlJob job : jobs) {
+				// jobs that have been finished meanwhile are not in the claimed jobs anymore
+				if (!alive.contains(job.getId()) && claimed.remove(job.getId(), job)) {
+					log.error("{} has been taken over by another instance, aborting it", job);
+					job.abort();
+				}
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * Queues jobs again whose heartbeat has timed out, or fails them if they have reached the maximum
+	 * number of attempts.
+	 */
+	private void recoverOrphanedJobs() {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(true);
+			// the data of streamed jobs is lost with the instance, so they cannot be queued again
+			stmt = conn.prepareStatement("UPDATE " + JOBS_TABLE_NAME + " j SET status = CASE WHEN j.attempts >= ? OR j.data_oid IS NULL THEN ? ELSE ? END, " +
+					"claimed_by = NULL, error = ?, next_attempt = now(), " +
+					"data_oid = CASE WHEN j.attempts >= ? THEN NULL ELSE j.data_oid END " +
+					"FROM (SELECT id, data_oid FROM " + JOBS_TABLE_NAME + " WHERE status = ? AND heartbeat < now() - make_interval(secs => ?) FOR UPDATE SKIP LOCKED) o " +
+					"WHERE j.id = o.id RETURNING j.id, j.dataset_id, j.status, o.data_oid AS old_oid, j.data_oid");
+			stmt.setInt(1, rowstore.getConfig().getEtlMaxAttempts());
+			stmt.setString(2, STATUS_FAILED);
+			stmt.setString(3, STATUS_QUEUED);
+			stmt.setString(4, "Processing instance stopped responding");
+			stmt.setInt(5, rowstore.getConfig().getEtlMaxAttempts());
+			stmt.setString(6, STATUS_PROCESSING);
+			stmt.setInt(7, rowstore.getConfig().getEtlJobTimeout());
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				String datasetId = rs.getObject("dataset_id").toString();
+				boolean failed = STATUS_FAILED.equals(rs.getString("status"));
+				log.warn("Recovered orphaned ETL job {} of dataset {}, {}", rs.getLong("id"), datasetId, failed ? "failed" : "queued again");
+				if (rs.getObject("old_oid") != null && rs.getObject("data_oid") == null) {
+					unlink(conn, rs.getLong("old_oid"));
+				}
+				Dataset dataset = rowstore.getDatasets().getDataset(datasetId);
+				if (dataset != null) {
+					dataset.setStatus(failed ? EtlStatus.ERROR : EtlStatus.ACCEPTED_DATA);
+				}
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} catch (RuntimeException e) {
+			log.error("Unable to recover orphaned ETL jobs: " + e.getMessage());
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * Serializes the registration of jobs of the same dataset until the end of the transaction.
+	 */
+	private void lockDataset(Connection conn, String datasetId) throws SQLException {
+		try (PreparedStatement stmt = conn.prepareStatement("SELECT pg_advisory_xact_lock(hashtext(?))")) {
+			stmt.setString(1, JOBS_TABLE_NAME + ":" + datasetId);
+			stmt.execute();
+		}
+	}
+
+	private void unlink(Connection conn, long oid) throws SQLException {
+		try (PreparedStatement stmt = conn.prepareStatement("SELECT lo_unlink(?)")) {
+			stmt.setLong(1, oid);
+			log.debug("Executing: " + stmt);
+			stmt.execute();
+		}
+	}
+
+	private void createJobTableIfNotExists() {
+		Connection conn = null;
+		Statement stmt = null;
+		try {
+			conn = rowstore.getConnection();
+			stmt = conn.createStatement();
+			String sql = "CREATE TABLE IF NOT EXISTS " + JOBS_TABLE_NAME + " (id BIGSERIAL PRIMARY KEY, dataset_id UUID NOT NULL, append BOOLEAN NOT NULL, " +
+					"data_oid OID, status TEXT NOT NULL, attempts INT NOT NULL DEFAULT 0, next_attempt TIMESTAMP NOT NULL DEFAULT now(), " +
+					"claimed_by TEXT, heartbeat TIMESTAMP, error TEXT, created TIMESTAMP NOT NULL DEFAULT now())";
+			log.debug("Executing: " + sql);
+			stmt.execute(sql);
+			sql = "CREATE INDEX IF NOT EXISTS " + JOBS_TABLE_NAME + "_pending_idx ON " + JOBS_TABLE_NAME + " (dataset_id, id) WHERE status IN ('" +
+					STATUS_QUEUED + "', '" + STATUS_PROCESSING + "')";
+			log.debug("Executing: " + sql);
+			stmt.execute(sql);
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	private PGobject toUUID(String id) throws SQLException {
+		PGobject uuid = new PGobject();
+		uuid.setType("uuid");
+		uuid.setValue(id);
+		return uuid;
+	}
+
+	private void rollback(Connection conn) {
+		if (conn != null) {
+			try {
+				conn.rollback();
+			} catch (SQLException e) {
+				SqlExceptionLogUtil.error(log, e);
+			}
+		}
+	}
+
+	private void close(ResultSet rs) {
+		if (rs != null) {
+			try {
+				rs.close();
+			} catch (SQLException e) {
+				SqlExceptionLogUtil.error(log, e);
+			}
+		}
+	}
+
+	private void close(Connection conn) {
+		if (conn != null) {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				SqlExceptionLogUtil.error(log, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,749 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store.impl;
+
+import org.entrystore.rowstore.etl.EtlStatus;
+import org.entrystore.rowstore.store.Dataset;
+import org.entrystore.rowstore.store.RowStoreConfig;
+import org.entrystore.rowstore.store.impl.PgIndexBuilder.IndexDefinition;
+import org.entrystore.rowstore.store.impl.PgIndexBuilder.IndexType;
+import org.entrystore.rowstore.util.DatasetUtil;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.postgresql.util.PGobject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which indexes are built on the JSON fields of a dataset.
+ *
+ * <p>In mode <code>all</code> every column gets an index for equality and prefix queries when the data is
+ * loaded. In mode <code>adaptive</code> only columns that are actually queried get an index of the type that
+ * matches the used operator; indexes of columns that have not been queried for some time are dropped. The
+ * usage is counted in memory, flushed to the database regularly (so that it is shared between instances),
+ * and evaluated by a scheduled task. Both the mode and columns that are always indexed can be configured
+ * per dataset.</p>
+ *
+ * @author Hannes Ebner
+ */
+class PgIndexAdvisor {
+
+	private static final Logger log = LoggerFactory.getLogger(PgIndexAdvisor.class);
+
+	static final String USAGE_TABLE_NAME = "column_usage";
+
+	static final String MODE_ALL = "all";
+
+	static final String MODE_ADAPTIVE = "adaptive";
+
+	static final String TRIGRAM_NONE = "none";
+
+	static final String TRIGRAM_ALL = "all";
+
+	/**
+	 * Longer values cannot be indexed with a B-tree, the limit is conservative.
+	 */
+	private static final int MAX_SIZE_FOR_PATTERN_INDEX = 256;
+
+	/**
+	 * The operators of a query that are tracked.
+	 */
+	enum Operator {
+
+		EQUALITY(IndexType.PATTERN),
+
+		/**
+		 * Left-anchored regular expression.
+		 */
+		PREFIX(IndexType.PATTERN),
+
+		REGEXP(IndexType.TRIGRAM);
+
+		private final IndexType indexType;
+
+		Operator(IndexType indexType) {
+			this.indexType = indexType;
+		}
+
+	}
+
+	private final PgRowStore rowstore;
+
+	private final Map<UsageKey, Usage> usage = new ConcurrentHashMap<>();
+
+	/**
+	 * Table and field of columns whose values are too large for a B-tree index.
+	 */
+	private final Set<String> oversizedColumns = ConcurrentHashMap.newKeySet();
+
+	private final boolean trigramAvailable;
+
+	PgIndexAdvisor(PgRowStore rowstore) {
+		this.rowstore = rowstore;
+		createUsageTableIfNotExists();
+		trigramAvailable = createTrigramExtension();
+
+		int interval = Math.max(1, rowstore.getConfig().getIndexAdvisorInterval());
+		rowstore.getMaintenanceExecutor().scheduleWithFixedDelay(this::flushUsage, 1, 1, TimeUnit.MINUTES);
+		rowstore.getMaintenanceExecutor().scheduleWithFixedDelay(this::adviseAll, interval, interval, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Counts the use of an operator on a column of a dataset.
+	 */
+	void recordUsage(String datasetId, String column, Operator operator) {
+		Usage u = usage.computeIfAbsent(new UsageKey(datasetId, column, operator), k -> new Usage());
+		u.count.increment();
+		u.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Removes all usage information of a dataset, e.g. after it has been purged.
+	 */
+	void removeUsage(String datasetId) {
+		usage.keySet().removeIf(k -> k.datasetId.equals(datasetId));
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(true);
+			stmt = conn.prepareStatement("DELETE FROM " + USAGE_TABLE_NAME + " WHERE dataset_id = ?");
+			stmt.setObject(1, toUUID(datasetId));
+			log.debug("Executing: " + stmt);
+			stmt.executeUpdate();
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * Determines the indexes that are built after data has been loaded into a dataset.
+	 *
+	 * @param datasetId The ID of the dataset.
+	 * @param columns The columns of the loaded data.
+	 * @param columnSizes The maximum length of the values per column.
+	 * @return Returns the indexes to build.
+	 */
+	List<IndexDefinition> getIndexesForLoad(String datasetId, Set<String> columns, Map<String, Integer> columnSizes) {
+		JSONObject settings = getSettings(datasetId);
+		Set<IndexDefinition> candidates = new LinkedHashSet<>();
+		if (MODE_ALL.equals(getMode(settings))) {
+			boolean trigram = TRIGRAM_ALL.equals(rowstore.getConfig().getTrigramIndexes());
+			for (String column : columns) {
+				candidates.add(new IndexDefinition(column, IndexType.PATTERN));
+				if (trigram) {
+					candidates.add(new IndexDefinition(column, IndexType.TRIGRAM));
+				}
+			}
+		} else {
+			candidates.addAll(getUsedIndexes(datasetId));
+		}
+		candidates.addAll(getPinnedIndexes(settings));
+
+		Set<IndexDefinition> result = new LinkedHashSet<>();
+		for (IndexDefinition index : candidates) {
+			if (!columns.contains(index.field)) {
+				continue;
+			}
+			// We do not try to build B-tree indexes on fields that are too large as we would get an error from PostgreSQL
+			Integer fieldSize = columnSizes.get(index.field);
+			if (index.type == IndexType.PATTERN && fieldSize != null && fieldSize > MAX_SIZE_FOR_PATTERN_INDEX) {
+				String field = index.field;
+				index = getIndexForLargeValues(field);
+				if (index == null) {
+					log.warn("Skipping index creation for field \"" + field + "\"; the configured max field size is " + MAX_SIZE_FOR_PATTERN_INDEX + ", but the actual size is " + fieldSize);
+				} else {
+					log.info("Field \"" + field + "\" exceeds the max field size of " + MAX_SIZE_FOR_PATTERN_INDEX + " for B-tree indexes, creating trigram index instead");
+				}
+			}
+			if (index != null && isSupported(index)) {
+				result.add(index);
+			}
+		}
+		return new ArrayList<>(result);
+	}
+
+	/**
+	 * @return Returns the indexing settings of a dataset together with the effective mode and the tracked usage.
+	 */
+	JSONObject getConfiguration(String datasetId) {
+		JSONObject settings = getSettings(datasetId);
+		JSONObject result = new JSONObject();
+		try {
+			result.put("mode", getMode(settings));
+			result.put("inherited", !settings.has("mode"));
+			result.put("columns", settings.optJSONObject("columns") != null ? settings.getJSONObject("columns") : new JSONObject());
+
+			JSONArray usageArray = new JSONArray();
+			SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+			for (Map.Entry<UsageKey, long[]> entry : loadUsage(datasetId, 0).entrySet()) {
+				JSONObject u = new JSONObject();
+				u.put("column", entry.getKey().column);
+				u.put("operator", entry.getKey().operator.name().toLowerCase());
+				u.put("count", entry.getValue()[0]);
+				u.put("lastused", dateFormat.format(new java.util.Date(entry.getValue()[1])));
+				usageArray.put(u);
+			}
+			result.put("usage", usageArray);
+		} catch (JSONException e) {
+			log.error(e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Sets the indexing settings of a dataset and adjusts its indexes in the background.
+	 *
+	 * @param settings A JSON object with an optional <code>mode</code> and an optional object <code>columns</code>
+	 *                 that maps column names to arrays of index types which are always built.
+	 * @return Returns false if the settings are invalid or could not be stored.
+	 */
+	boolean setConfiguration(String datasetId, JSONObject settings) {
+		JSONObject normalized = new JSONObject();
+		try {
+			if (settings.has("mode")) {
+				String mode = settings.getString("mode").toLowerCase();
+				if (!MODE_ALL.equals(mode) && !MODE_ADAPTIVE.equals(mode)) {
+					return false;
+				}
+				normalized.put("mode", mode);
+			}
+			JSONObject columns = settings.optJSONObject("columns");
+			if (columns != null) {
+				JSONObject normalizedColumns = new JSONObject();
+				for (Iterator<String> it = columns.keys(); it.hasNext(); ) {
+					String column = it.next();
+					JSONArray types = columns.getJSONArray(column);
+					JSONArray normalizedTypes = new JSONArray();
+					for (int i = 0; i < types.length(); i++) {
+						IndexType type = IndexType.fromName(types.getString(i));
+						if (type == null) {
+							return false;
+						}
+						normalizedTypes.put(type.name().toLowerCase());
+					}
+					normalizedColumns.put(column.trim().toLowerCase(), normalizedTypes);
+				}
+				normalized.put("columns", normalizedColumns);
+			}
+		} catch (JSONException e) {
+			log.debug(e.getMessage());
+			return false;
+		}
+
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(true);
+			stmt = conn.prepareStatement("UPDATE " + PgDatasets.DATASETS_TABLE_NAME + " SET indexing = ? WHERE id = ?");
+			stmt.setString(1, normalized.length() > 0 ? normalized.toString() : null);
+			stmt.setObject(2, toUUID(datasetId));
+			log.debug("Executing: " + stmt);
+			if (stmt.executeUpdate() != 1) {
+				return false;
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			return false;
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+
+		rowstore.getMaintenanceExecutor().execute(() -> advise(datasetId));
+		return true;
+	}
+
+	/**
+	 * Writes the usage that has been counted since the last flush to the database.
+	 */
+	void flushUsage() {
+		if (usage.isEmpty()) {
+			return;
+		}
+		Map<UsageKey, Usage> flushed = new HashMap<>();
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(false);
+			stmt = conn.prepareStatement("INSERT INTO " + USAGE_TABLE_NAME + " (dataset_id, column_name, operator, query_count, last_used) VALUES (?, ?, ?, ?, ?) " +
+					"ON CONFLICT (dataset_id, column_name, operator) DO UPDATE SET " +
+					"query_count = " + USAGE_TABLE_NAME + ".query_count + EXCLUDED.query_count, " +
+					"last_used = GREATEST(" + USAGE_TABLE_NAME + ".last_used, EXCLUDED.last_used)");
+			for (UsageKey key : usage.keySet()) {
+				Usage u = usage.remove(key);
+				if (u == null) {
+					continue;
+				}
+				flushed.put(key, u);
+				stmt.setObject(1, toUUID(key.datasetId));
+				stmt.setString(2, key.column);
+				stmt.setString(3, key.operator.name());
+				stmt.setLong(4, u.count.sum());
+				stmt.setTimestamp(5, new Timestamp(u.lastUsed));
+				stmt.addBatch();
+			}
+			log.debug("Flushing usage of {} columns", flushed.size());
+			stmt.executeBatch();
+			conn.commit();
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			if (conn != null) {
+				try {
+					conn.rollback();
+				} catch (SQLException e1) {
+					SqlExceptionLogUtil.error(log, e1);
+				}
+			}
+			// the usage is counted again with the next flush
+			restoreUsage(flushed);
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * Merges usage that could not be flushed with the usage that has been counted in the meantime.
+	 */
+	private void restoreUsage(Map<UsageKey, Usage> flushed) {
+		flushed.forEach((key, u) -> usage.merge(key, u, (current, restored) -> {
+			current.count.add(restored.count.sum());
+			current.lastUsed = Math.max(current.lastUsed, restored.lastUsed);
+			return current;
+		}));
+	}
+
+	/**
+	 * Adjusts the indexes of all available datasets and discards outdated usage information.
+	 */
+	void adviseAll() {
+		long before = System.currentTimeMillis();
+		flushUsage();
+		removeOutdatedUsage();
+
+		Map<String, JSONObject> datasets = new HashMap<>();
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			stmt = conn.prepareStatement("SELECT id, indexing FROM " + PgDatasets.DATASETS_TABLE_NAME + " WHERE status = ?");
+			stmt.setInt(1, EtlStatus.AVAILABLE);
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				datasets.put(rs.getObject("id").toString(), parseSettings(rs.getString("indexing")));
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			return;
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+
+		for (Map.Entry<String, JSONObject> dataset : datasets.entrySet()) {
+			// datasets that are fully indexed when loaded do not need any adjustments, except for pinned indexes
+			if (MODE_ALL.equals(getMode(dataset.getValue())) && getPinnedIndexes(dataset.getValue()).isEmpty()) {
+				continue;
+			}
+			try {
+				advise(dataset.getKey());
+			} catch (RuntimeException e) {
+				log.error("Unable to adjust indexes of dataset " + dataset.getKey() + ": " + e.getMessage());
+			}
+		}
+
+		log.debug("Adjusting indexes took {} ms", System.currentTimeMillis() - before);
+	}
+
+	/**
+	 * Builds missing indexes of a dataset and, in adaptive mode, drops indexes that are not used anymore.
+	 */
+	private void advise(String datasetId) {
+		PgIndexBuilder builder = rowstore.getIndexBuilder();
+		if (builder.isBuilding(datasetId)) {
+			log.debug("Indexes of dataset {} are being built, not adjusting indexes", datasetId);
+			return;
+		}
+		Dataset dataset = rowstore.getDatasets().getDataset(datasetId);
+		if (dataset == null || dataset.getStatus() != EtlStatus.AVAILABLE) {
+			return;
+		}
+		String dataTable = ((PgDataset) dataset).getDataTable();
+		Set<String> columns = dataset.getColumnNames();
+
+		JSONObject settings = getSettings(datasetId);
+		boolean adaptive = MODE_ADAPTIVE.equals(getMode(settings));
+		Set<IndexDefinition> desired = new LinkedHashSet<>(getPinnedIndexes(settings));
+		if (adaptive) {
+			desired.addAll(getUsedIndexes(datasetId));
+		}
+		desired.removeIf(index -> !columns.contains(index.field) || !isSupported(index));
+
+		Set<String> existing = builder.getIndexNames(dataTable);
+		Set<String> desiredNames = new HashSet<>();
+		Set<IndexDefinition> missing = new LinkedHashSet<>();
+		for (IndexDefinition index : desired) {
+			if (!existing.contains(index.getName(dataTable)) && index.type == IndexType.PATTERN && exceedsPatternIndexSize(dataTable, index.field)) {
+				index = getIndexForLargeValues(index.field);
+				if (index == null || !isSupported(index)) {
+					continue;
+				}
+			}
+			String name = index.getName(dataTable);
+			desiredNames.add(name);
+			if (!existing.contains(name)) {
+				missing.add(index);
+			}
+		}
+		if (!missing.isEmpty()) {
+			log.info("Building " + missing.size() + " missing indexes for dataset " + datasetId);
+			builder.build(datasetId, dataTable, new ArrayList<>(missing), rowstore.getConfig().isIndexConcurrently());
+		}
+
+		if (adaptive) {
+			existing.removeAll(desiredNames);
+			if (!existing.isEmpty()) {
+				log.info("Dropping " + existing.size() + " unused indexes of dataset " + datasetId);
+				builder.dropIndexes(existing);
+			}
+		}
+	}
+
+	/**
+	 * @return Returns the indexes that match the operators that have been used often enough and recently enough.
+	 */
+	private Set<IndexDefinition> getUsedIndexes(String datasetId) {
+		RowStoreConfig config = rowstore.getConfig();
+		long since = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(config.getIndexUnusedDays());
+		Map<IndexDefinition, Long> counts = new HashMap<>();
+		for (Map.Entry<UsageKey, long[]> entry : loadUsage(datasetId, since).entrySet()) {
+			IndexDefinition index = new IndexDefinition(entry.getKey().column, entry.getKey().operator.indexType);
+			counts.merge(index, entry.getValue()[0], Long::sum);
+		}
+		Set<IndexDefinition> result = new LinkedHashSet<>();
+		for (Map.Entry<IndexDefinition, Long> entry : counts.entrySet()) {
+			if (entry.getValue() >= config.getIndexMinQueries()) {
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Returns the query count and the time of the last use per column and operator, as stored in the database.
+	 */
+	private Map<UsageKey, long[]> loadUsage(String datasetId, long since) {
+		Map<UsageKey, long[]> result = new HashMap<>();
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			stmt = conn.prepareStatement("SELECT column_name, operator, query_count, last_used FROM " + USAGE_TABLE_NAME + " WHERE dataset_id = ? AND last_used >= ?");
+			stmt.setObject(1, toUUID(datasetId));
+			stmt.setTimestamp(2, new Timestamp(since));
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				Operator operator;
+				try {
+					operator = Operator.valueOf(rs.getString("operator"));
+				} catch (IllegalArgumentException e) {
+					continue;
+				}
+				result.put(new UsageKey(datasetId, rs.getString("column_name"), operator),
+						new long[] {rs.getLong("query_count"), rs.getTimestamp("last_used").getTime()});
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes usage that is older than the configured amount of days, so that the counting starts anew.
+	 */
+	private void removeOutdatedUsage() {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(true);
+			stmt = conn.prepareStatement("DELETE FROM " + USAGE_TABLE_NAME + " WHERE last_used < ?");
+			stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(rowstore.getConfig().getIndexUnusedDays())));
+			log.debug("Executing: " + stmt);
+			stmt.executeUpdate();
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * @return Returns true if the column contains values that are too large for a B-tree index.
+	 */
+	private boolean exceedsPatternIndexSize(String table, String column) {
+		String key = table + "." + column;
+		if (oversizedColumns.contains(key)) {
+			return true;
+		}
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			stmt = conn.prepareStatement("SELECT 1 FROM " + table + " WHERE length(data->>?) > ? LIMIT 1");
+			stmt.setString(1, column);
+			stmt.setInt(2, MAX_SIZE_FOR_PATTERN_INDEX);
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			if (rs.next()) {
+				log.warn("Skipping index creation for field \"" + column + "\" of " + table + "; values exceed the max field size of " + MAX_SIZE_FOR_PATTERN_INDEX);
+				oversizedColumns.add(key);
+				return true;
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			return true;
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+		return false;
+	}
+
+	/**
+	 * @return Returns the index that replaces a B-tree index on a column whose values are too large for it,
+	 * or null if such columns are not indexed.
+	 */
+	private IndexDefinition getIndexForLargeValues(String column) {
+		if (TRIGRAM_NONE.equals(rowstore.getConfig().getTrigramIndexes())) {
+			return null;
+		}
+		return new IndexDefinition(column, IndexType.TRIGRAM);
+	}
+
+	private boolean isSupported(IndexDefinition index) {
+		return index.type != IndexType.TRIGRAM || trigramAvailable;
+	}
+
+	private String getMode(JSONObject settings) {
+		return settings.optString("mode", rowstore.getConfig().getIndexing());
+	}
+
+	private Set<IndexDefinition> getPinnedIndexes(JSONObject settings) {
+		Set<IndexDefinition> result = new LinkedHashSet<>();
+		JSONObject columns = settings.optJSONObject("columns");
+		if (columns == null) {
+			return result;
+		}
+		for (Iterator<String> it = columns.keys(); it.hasNext(); ) {
+			String column = it.next();
+			JSONArray types = columns.optJSONArray(column);
+			for (int i = 0; types != null && i < types.length(); i++) {
+				IndexType type = IndexType.fromName(types.optString(i));
+				if (type != null) {
+					result.add(new IndexDefinition(column, type));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Returns the stored indexing settings of a dataset, or an empty object if there are none.
+	 */
+	private JSONObject getSettings(String datasetId) {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			stmt = conn.prepareStatement("SELECT indexing FROM " + PgDatasets.DATASETS_TABLE_NAME + " WHERE id = ?");
+			stmt.setObject(1, toUUID(datasetId));
+			log.debug("Executing: " + stmt);
+			rs = stmt.executeQuery();
+			if (rs.next()) {
+				return parseSettings(rs.getString("indexing"));
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			close(rs);
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+		return new JSONObject();
+	}
+
+	private JSONObject parseSettings(String settings) {
+		if (settings == null) {
+			return new JSONObject();
+		}
+		try {
+			return new JSONObject(settings);
+		} catch (JSONException e) {
+			log.error("Invalid indexing settings: " + e.getMessage());
+			return new JSONObject();
+		}
+	}
+
+	private void createUsageTableIfNotExists() {
+		Connection conn = null;
+		Statement stmt = null;
+		try {
+			conn = rowstore.getConnection();
+			stmt = conn.createStatement();
+			String sql = "CREATE TABLE IF NOT EXISTS " + USAGE_TABLE_NAME + " (dataset_id UUID NOT NULL, column_name TEXT NOT NULL, operator TEXT NOT NULL, " +
+					"query_count BIGINT NOT NULL, last_used TIMESTAMP NOT NULL, PRIMARY KEY (dataset_id, column_name, operator))";
+			log.debug("Executing: " + sql);
+			stmt.execute(sql);
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * Makes sure the pg_trgm extension is installed.
+	 *
+	 * @return Returns false if the extension is not available, e.g. because of missing privileges.
+	 */
+	private boolean createTrigramExtension() {
+		Connection conn = null;
+		Statement stmt = null;
+		try {
+			conn = rowstore.getConnection();
+			stmt = conn.createStatement();
+			String sql = "CREATE EXTENSION IF NOT EXISTS pg_trgm";
+			log.debug("Executing: " + sql);
+			stmt.execute(sql);
+			return true;
+		} catch (SQLException e) {
+			log.warn("Extension pg_trgm is not available, regular expression queries cannot be indexed: " + e.getMessage());
+			return false;
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+			close(conn);
+		}
+	}
+
+	private PGobject toUUID(String id) throws SQLException {
+		PGobject uuid = new PGobject();
+		uuid.setType("uuid");
+		uuid.setValue(id);
+		return uuid;
+	}
+
+	private void close(ResultSet rs) {
+		if (rs != null) {
+			try {
+				rs.close();
+			} catch (SQLException e) {
+				SqlExceptionLogUtil.error(log, e);
+			}
+		}
+	}
+
+	private void close(Connection conn) {
+		if (conn != null) {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				SqlExceptionLogUtil.error(log, e);
+			}
+		}
+	}
+
+	private static final class UsageKey {
+
+		private final String datasetId;
+
+		private final String column;
+
+		private final Operator operator;
+
+		private UsageKey(String datasetId, String column, Operator operator) {
+			this.datasetId = datasetId;
+			this.column = column;
+			this.operator = operator;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof UsageKey)) {
+				return false;
+			}
+			UsageKey other = (UsageKey) o;
+			return datasetId.equals(other.datasetId) && column.equals(other.column) && operator == other.operator;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(datasetId, column, operator);
+		}
+
+	}
+
+	private static final class Usage {
+
+		private final LongAdder count = new LongAdder();
+
+		private volatile long lastUsed;
+
+	}
+
+}
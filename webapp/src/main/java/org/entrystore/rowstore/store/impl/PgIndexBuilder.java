@@ -0,0 +1,524 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.entrystore.rowstore.util.DatasetUtil;
+import org.entrystore.rowstore.util.Hashing;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.postgresql.core.BaseConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the indexes of data tables after the data has been loaded.
+ *
+ * <p>Every index is built over its own connection in auto-commit mode, so that several indexes of a
+ * table can be built in parallel and outside of the transaction that loaded the data. The builds are
+ * tracked per dataset until some time after they have finished, the progress of running builds is
+ * taken from PostgreSQL's <code>pg_stat_progress_create_index</code> view.</p>
+ *
+ * @author Hannes Ebner
+ */
+class PgIndexBuilder {
+
+	private static final Logger log = LoggerFactory.getLogger(PgIndexBuilder.class);
+
+	/**
+	 * Minutes after which the information about a finished build is discarded.
+	 */
+	private static final int FINISHED_BUILD_RETENTION = 60;
+
+	enum State { PENDING, BUILDING, DONE, FAILED }
+
+	/**
+	 * The types of indexes that can be built on a JSON field.
+	 */
+	enum IndexType {
+
+		/**
+		 * B-tree with text_pattern_ops, serves equality and left-anchored pattern matching.
+		 */
+		PATTERN("jsonidx", "btree", "text_pattern_ops"),
+
+		/**
+		 * GIN with trigrams, serves regular expressions. Requires the pg_trgm extension.
+		 */
+		TRIGRAM("trgmidx", "gin", "gin_trgm_ops");
+
+		private final String suffix;
+
+		private final String method;
+
+		private final String operatorClass;
+
+		IndexType(String suffix, String method, String operatorClass) {
+			this.suffix = suffix;
+			this.method = method;
+			this.operatorClass = operatorClass;
+		}
+
+		/**
+		 * @return Returns the type with the given (case-insensitive) name, or null if there is no such type.
+		 */
+		static IndexType fromName(String name) {
+			for (IndexType type : values()) {
+				if (type.name().equalsIgnoreCase(name)) {
+					return type;
+				}
+			}
+			return null;
+		}
+
+	}
+
+	private final PgRowStore rowstore;
+
+	private final ExecutorService executor;
+
+	private final Map<String, Build> builds = new ConcurrentHashMap<>();
+
+	PgIndexBuilder(PgRowStore rowstore) {
+		this.rowstore = rowstore;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, rowstore.getConfig().getIndexBuilders()),
+				new ThreadFactoryBuilder().setNameFormat("rowstore-index-builder-%d").setDaemon(true).build());
+	}
+
+	/**
+	 * @return Returns the name of an index of a JSON field.
+	 */
+	static String getIndexName(String table, String field, IndexType type) {
+		return table + "_" + type.suffix + "_" + Hashing.md5(field).substring(0, 8);
+	}
+
+	/**
+	 * Starts building indexes on JSON fields of a table and returns immediately.
+	 *
+	 * @param datasetId The ID of the dataset the table belongs to.
+	 * @param table The table to build the indexes on.
+	 * @param indexes The indexes to build.
+	 * @param concurrently If true, the indexes are built using CREATE INDEX CONCURRENTLY, which does not block
+	 *                     writes to the table. Such builds wait for each other, so they are run one after another.
+	 * @return Returns the build.
+	 */
+	Build build(String datasetId, String table, List<IndexDefinition> indexes, boolean concurrently) {
+		Build build = new Build(table, indexes);
+		if (!indexes.isEmpty()) {
+			log.info("Building " + indexes.size() + " indexes on " + table + (concurrently ? " concurrently" : ""));
+		}
+
+		List<CompletableFuture<Void>> tasks = new ArrayList<>();
+		if (concurrently) {
+			tasks.add(CompletableFuture.runAsync(() -> {
+				for (Index index : build.indexes) {
+					createIndex(table, index, true);
+				}
+			}, executor));
+		} else {
+			for (Index index : build.indexes) {
+				tasks.add(CompletableFuture.runAsync(() -> createIndex(table, index, false), executor));
+			}
+		}
+		build.done = CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).whenComplete((result, t) -> {
+			log.debug("Building indexes on {} took {} ms", table, System.currentTimeMillis() - build.started);
+			rowstore.getMaintenanceExecutor().schedule(() -> builds.remove(datasetId, build), FINISHED_BUILD_RETENTION, TimeUnit.MINUTES);
+		});
+		builds.put(datasetId, build);
+		return build;
+	}
+
+	/**
+	 * @return Returns true if indexes of the dataset are currently being built.
+	 */
+	boolean isBuilding(String datasetId) {
+		Build build = builds.get(datasetId);
+		return build != null && !build.done.isDone();
+	}
+
+	/**
+	 * Waits until the current index build of a dataset (if any) has finished.
+	 */
+	void awaitBuild(String datasetId) throws InterruptedException, ExecutionException {
+		Build build = builds.get(datasetId);
+		if (build != null && !build.done.isDone()) {
+			log.info("Waiting for index build on " + build.table + " to finish");
+			build.await();
+		}
+	}
+
+	/**
+	 * @return Returns the state of every index of the current or last index build of a dataset,
+	 * or an empty array if there is no such build on this instance.
+	 */
+	JSONArray getStatus(String datasetId) {
+		JSONArray result = new JSONArray();
+		Build build = builds.get(datasetId);
+		if (build == null) {
+			return result;
+		}
+
+		Map<Integer, JSONObject> progress = build.done.isDone() ? new HashMap<>() : getProgress();
+		try {
+			for (Index index : build.indexes) {
+				JSONObject status = new JSONObject();
+				status.put("column", index.definition.field);
+				status.put("type", index.definition.type.name().toLowerCase());
+				status.put("index", index.name);
+				status.put("status", index.state.name().toLowerCase());
+				if (index.state == State.BUILDING && progress.containsKey(index.pid)) {
+					JSONObject p = progress.get(index.pid);
+					status.put("phase", p.get("phase"));
+					status.put("progress", p.get("progress"));
+				} else if (index.state == State.FAILED) {
+					status.put("error", index.error);
+				}
+				result.put(status);
+			}
+		} catch (JSONException e) {
+			log.error(e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * @return Returns the names of all valid JSON field indexes of a table.
+	 */
+	Set<String> getIndexNames(String table) {
+		long before = System.currentTimeMillis();
+		Set<String> result = new HashSet<>();
+		Connection conn = null;
+		ResultSet rs = null;
+		Statement stmnt = null;
+		try {
+			conn = rowstore.getConnection();
+			StringBuilder sql = new StringBuilder("SELECT ci.relname AS indexname ").
+					append("FROM pg_index i,pg_class ci,pg_class ct ").
+					append("WHERE i.indexrelid=ci.oid AND ").
+					append("i.indrelid=ct.oid AND ").
+					append("i.indisvalid AND ").
+					append("ct.relname='").append(table).append("' AND (");
+			// we only want our own indexes (no primary keys etc), so we filter for the suffixes in the index name
+			for (IndexType type : IndexType.values()) {
+				if (type.ordinal() > 0) {
+					sql.append(" OR ");
+				}
+				sql.append("ci.relname LIKE '%\\_").append(type.suffix).append("\\_%'");
+			}
+			sql.append(")");
+			String sqlStr = sql.toString();
+			stmnt = conn.createStatement();
+			log.debug("Executing: " + sqlStr);
+			rs = stmnt.executeQuery(sqlStr);
+			while (rs.next()) {
+				result.add(rs.getString("indexname"));
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+			DatasetUtil.closeStatement(stmnt);
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+
+			log.debug("Fetching index names took {} ms", System.currentTimeMillis() - before);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Drops indexes using DROP INDEX CONCURRENTLY, so that running queries are not blocked.
+	 */
+	void dropIndexes(Collection<String> indexNames) {
+		if (indexNames.isEmpty()) {
+			return;
+		}
+		Connection conn = null;
+		Statement stmt = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(true);
+			stmt = conn.createStatement();
+			for (String indexName : indexNames) {
+				dropIndex(stmt, indexName, true);
+				log.info("Dropped index " + indexName);
+			}
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void createIndex(String table, Index index, boolean concurrently) {
+		long before = System.currentTimeMillis();
+		index.state = State.BUILDING;
+		Connection conn = null;
+		Statement stmt = null;
+		try {
+			conn = rowstore.getConnection();
+			conn.setAutoCommit(true);
+			stmt = conn.createStatement();
+			// we need the backend PID to find the build in pg_stat_progress_create_index
+			ResultSet rs = stmt.executeQuery("SELECT pg_backend_pid()");
+			rs.next();
+			index.pid = rs.getInt(1);
+			rs.close();
+
+			// an invalid index may be left over from an interrupted build
+			dropIndex(stmt, index.name, concurrently);
+
+			// We cannot use prepared statements for CREATE INDEX with parametrized fields:
+			// the type to be used with setObject() is not known and setString() does not work.
+			// It should be safe to run BaseConnection.escapeString() to avoid SQL-injection
+			String sql = new StringBuilder("CREATE INDEX ").
+					append(concurrently ? "CONCURRENTLY " : "").
+					append(index.name).
+					append(" ON ").
+					append(table).
+					append(" USING ").
+					append(index.definition.type.method).
+					append(" ((data->>'").
+					append(conn.unwrap(BaseConnection.class).escapeString(index.definition.field)).
+					append("') ").
+					append(index.definition.type.operatorClass).
+					append(")").
+					toString();
+			log.debug("Executing: " + sql);
+			stmt.execute(sql);
+			index.state = State.DONE;
+			log.debug("Creating index {} took {} ms", index.name, System.currentTimeMillis() - before);
+		} catch (SQLException e) {
+			SqlExceptionLogUtil.error(log, e);
+			index.error = e.getMessage();
+			index.state = State.FAILED;
+			if (concurrently && stmt != null) {
+				// a failed concurrent build leaves an invalid index behind which would slow down writes
+				try {
+					dropIndex(stmt, index.name, true);
+				} catch (SQLException e1) {
+					SqlExceptionLogUtil.error(log, e1);
+				}
+			}
+		} finally {
+			DatasetUtil.closeStatement(stmt);
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+
+	}
+
+	private void dropIndex(Statement stmt, String indexName, boolean concurrently) throws SQLException {
+		String sql = "DROP INDEX " + (concurrently ? "CONCURRENTLY " : "") + "IF EXISTS " + indexName;
+		log.debug("Executing: " + sql);
+		stmt.execute(sql);
+	}
+
+	/**
+	 * @return Returns the phase and progress (between 0 and 1) of all running index builds, mapped by backend PID.
+	 */
+	private Map<Integer, JSONObject> getProgress() {
+		Map<Integer, JSONObject> result = new HashMap<>();
+		Connection conn = null;
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = rowstore.getConnection();
+			stmt = conn.createStatement();
+			String sql = "SELECT pid, phase, blocks_total, blocks_done, tuples_total, tuples_done FROM pg_stat_progress_create_index";
+			log.debug("Executing: " + sql);
+			rs = stmt.executeQuery(sql);
+			while (rs.next()) {
+				long blocksTotal = rs.getLong("blocks_total");
+				long tuplesTotal = rs.getLong("tuples_total");
+				double progress = 0;
+				// the table is scanned first, then the sorted tuples are loaded into the index
+				if (tuplesTotal > 0) {
+					progress = 0.5 + 0.5 * rs.getLong("tuples_done") / tuplesTotal;
+				} else if (blocksTotal > 0) {
+					progress = 0.5 * rs.getLong("blocks_done") / blocksTotal;
+				}
+				JSONObject p = new JSONObject();
+				p.put("phase", rs.getString("phase"));
+				p.put("progress", Math.round(progress * 100) / 100.0);
+				result.put(rs.getInt("pid"), p);
+			}
+		} catch (SQLException e) {
+			// the view is only available from PostgreSQL 12 on
+			log.debug("Unable to fetch progress of index builds: " + e.getMessage());
+		} catch (JSONException e) {
+			log.error(e.getMessage());
+		} finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+			DatasetUtil.closeStatement(stmt);
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The indexes that are built on a table after a load.
+	 */
+	static class Build {
+
+		private final String table;
+
+		private final List<Index> indexes = new ArrayList<>();
+
+		private final long started = System.currentTimeMillis();
+
+		private CompletableFuture<Void> done;
+
+		private Build(String table, List<IndexDefinition> definitions) {
+			this.table = table;
+			for (IndexDefinition definition : definitions) {
+				indexes.add(new Index(definition, definition.getName(table)));
+			}
+		}
+
+		/**
+		 * Waits until all indexes have been built.
+		 *
+		 * @return Returns the amount of indexes that could not be built.
+		 */
+		int await() throws InterruptedException, ExecutionException {
+			done.get();
+			int failed = 0;
+			for (Index index : indexes) {
+				if (index.state == State.FAILED) {
+					failed++;
+				}
+			}
+			return failed;
+		}
+
+	}
+
+	/**
+	 * An index of a certain type on a JSON field.
+	 */
+	static final class IndexDefinition {
+
+		final String field;
+
+		final IndexType type;
+
+		IndexDefinition(String field, IndexType type) {
+			this.field = field;
+			this.type = type;
+		}
+
+		String getName(String table) {
+			return getIndexName(table, field, type);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof IndexDefinition)) {
+				return false;
+			}
+			IndexDefinition other = (IndexDefinition) o;
+			return field.equals(other.field) && type == other.type;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(field, type);
+		}
+
+	}
+
+	private static class Index {
+
+		private final IndexDefinition definition;
+
+		private final String name;
+
+		private volatile State state = State.PENDING;
+
+		private volatile int pid;
+
+		private volatile String error;
+
+		private Index(IndexDefinition definition, String name) {
+			this.definition = definition;
+			this.name = name;
+		}
+
+	}
+
+}
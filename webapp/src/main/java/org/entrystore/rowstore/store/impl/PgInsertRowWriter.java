@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store.impl;
+
+import org.entrystore.rowstore.util.DatasetUtil;
+import org.postgresql.util.PGobject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Writes rows using batched INSERT statements.
+ *
+ * @author Hannes Ebner
+ */
+class PgInsertRowWriter implements RowWriter {
+
+	private static final Logger log = LoggerFactory.getLogger(PgInsertRowWriter.class);
+
+	private static final int BATCH_SIZE = 200;
+
+	private PreparedStatement stmt;
+
+	private long rowCount = 0;
+
+	PgInsertRowWriter(Connection conn, String dataTable) throws SQLException {
+		stmt = conn.prepareStatement("INSERT INTO " + dataTable + " (data) VALUES (?)");
+	}
+
+	@Override
+	public void write(byte[] json, int offset, int length) throws SQLException {
+		PGobject jsonb = new PGobject();
+		jsonb.setType("jsonb");
+		jsonb.setValue(new String(json, offset, length, StandardCharsets.UTF_8));
+		stmt.setObject(1, jsonb);
+		log.debug("Adding to batch: " + stmt);
+		stmt.addBatch();
+		// we execute the batch every 200th row
+		if ((++rowCount % BATCH_SIZE) == 0) {
+			log.debug("Executing: " + stmt);
+			stmt.executeBatch();
+		}
+	}
+
+	@Override
+	public long finish() throws SQLException {
+		// in case there are some inserts left to be sent (i.e.
+		// the batch was not full when the last row was written)
+		log.debug("Executing: " + stmt);
+		stmt.executeBatch();
+		DatasetUtil.closeStatement(stmt);
+		stmt = null;
+		return rowCount;
+	}
+
+	@Override
+	public void abort() {
+		DatasetUtil.closeStatement(stmt);
+		stmt = null;
+	}
+
+}
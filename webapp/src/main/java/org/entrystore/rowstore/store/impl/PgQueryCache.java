@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.entrystore.rowstore.store.QueryResult;
+import org.entrystore.rowstore.store.RowStoreConfig;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches query results and exact result counts in memory.
+ *
+ * <p>Every dataset has a load generation which is part of all cache keys and which is increased whenever
+ * the data of the dataset changes. Cached entries of earlier generations can therefore not be returned
+ * anymore, not even if they were added by a query that ran concurrently to a load. Such entries are
+ * removed when the generation is increased or evicted eventually.</p>
+ *
+ * <p>Query results are evicted in least-recently-used order when their estimated total size exceeds
+ * the configured limit.</p>
+ *
+ * @author Hannes Ebner
+ */
+class PgQueryCache {
+
+	private final Cache<String, CachedResult> results;
+
+	private final Cache<String, Long> counts;
+
+	private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+	private final boolean enabled;
+
+	private static final class CachedResult {
+
+		final QueryResult result;
+
+		final int weight;
+
+		CachedResult(QueryResult result, int weight) {
+			this.result = result;
+			this.weight = weight;
+		}
+
+	}
+
+	PgQueryCache(RowStoreConfig config) {
+		this.enabled = config.getQueryCacheSize() > 0;
+		this.results = CacheBuilder.newBuilder().
+				maximumWeight(Math.max(config.getQueryCacheSize(), 0) * 1024L * 1024L).
+				weigher((String k, CachedResult v) -> v.weight).
+				recordStats().
+				build();
+		this.counts = CacheBuilder.newBuilder().maximumSize(config.getQueryCountCacheSize()).recordStats().build();
+	}
+
+	/**
+	 * @return Returns the current load generation of a dataset, to be used as part of cache keys.
+	 */
+	long getLoadGeneration(String datasetId) {
+		return generations.computeIfAbsent(datasetId, k -> new AtomicLong()).get();
+	}
+
+	/**
+	 * Increases the load generation of a dataset and removes its cached results and counts. Must be
+	 * called whenever the data of a dataset changes.
+	 *
+	 * @param datasetId The ID of the dataset.
+	 */
+	void bumpLoadGeneration(String datasetId) {
+		generations.computeIfAbsent(datasetId, k -> new AtomicLong()).incrementAndGet();
+		String prefix = datasetId + "\n";
+		results.asMap().keySet().removeIf(k -> k.startsWith(prefix));
+		counts.asMap().keySet().removeIf(k -> k.startsWith(prefix));
+	}
+
+	/**
+	 * @return Returns the cached result or null if there is none.
+	 */
+	QueryResult getResult(String key) {
+		if (!enabled) {
+			return null;
+		}
+		CachedResult cached = results.getIfPresent(key);
+		return cached != null ? cached.result : null;
+	}
+
+	/**
+	 * @param key Must start with the dataset ID followed by a newline and contain the load generation.
+	 * @param result The result to be cached.
+	 * @param size The size of the result's rows in characters, used to estimate its memory usage.
+	 */
+	void putResult(String key, QueryResult result, long size) {
+		if (!enabled) {
+			return;
+		}
+		// strings take two bytes per character and the parsed JSON objects roughly as much again
+		results.put(key, new CachedResult(result, (int) Math.min(Integer.MAX_VALUE, 256 + 2L * key.length() + 4L * size)));
+	}
+
+	/**
+	 * @return Returns the cached count or null if there is none.
+	 */
+	Long getCount(String key) {
+		return counts.getIfPresent(key);
+	}
+
+	/**
+	 * @param key Must start with the dataset ID followed by a newline and contain the load generation.
+	 */
+	void putCount(String key, long count) {
+		counts.put(key, count);
+	}
+
+	/**
+	 * @return Returns hit and miss statistics of the caches.
+	 */
+	JSONObject getStatistics() {
+		JSONObject queryCache = toJson(results.stats(), results.size());
+		queryCache.put("enabled", enabled);
+		JSONObject result = new JSONObject();
+		result.put("queryCache", queryCache);
+		result.put("countCache", toJson(counts.stats(), counts.size()));
+		return result;
+	}
+
+	private JSONObject toJson(CacheStats stats, long size) {
+		JSONObject result = new JSONObject();
+		result.put("entries", size);
+		result.put("hits", stats.hitCount());
+		result.put("misses", stats.missCount());
+		result.put("hitRate", stats.hitRate());
+		result.put("evictions", stats.evictionCount());
+		return result;
+	}
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store.impl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.entrystore.rowstore.util.DatasetUtil;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Distributes query connections over the query databases (read replicas).
+ *
+ * <p>A connection is taken from the replica with the fewest connections in use or waited for. The replicas
+ * are checked periodically: replicas that cannot be reached or whose replication lag exceeds the configured
+ * maximum are not used until they have recovered. The lag is zero if a replica has replayed the WAL up to
+ * the position the primary had at the beginning of the check, otherwise it is the time since the last
+ * replayed transaction.</p>
+ *
+ * <p>Queries of a dataset that has just been loaded are only routed to replicas that have replayed the WAL
+ * up to the position recorded after the load, see {@link #getConnection(long)}. If there is no suitable
+ * replica, the primary database is used.</p>
+ *
+ * @author Hannes Ebner
+ */
+class PgQueryRouter {
+
+	private static final Logger log = LoggerFactory.getLogger(PgQueryRouter.class);
+
+	private final HikariDataSource primary;
+
+	private final List<Replica> replicas;
+
+	private final long maxLag;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	static final class Replica {
+
+		final String name;
+
+		final HikariDataSource pool;
+
+		volatile boolean healthy;
+
+		/**
+		 * The replayed WAL position in bytes.
+		 */
+		volatile long replayedLsn = -1;
+
+		/**
+		 * The replication lag in milliseconds.
+		 */
+		volatile long lag = -1;
+
+		Replica(String name, HikariDataSource pool) {
+			this.name = name;
+			this.pool = pool;
+		}
+
+		int getLoad() {
+			HikariPoolMXBean mxBean = pool.getHikariPoolMXBean();
+			return mxBean != null ? mxBean.getActiveConnections() + mxBean.getThreadsAwaitingConnection() : 0;
+		}
+
+	}
+
+	/**
+	 * @param primary The pool of the primary database.
+	 * @param replicas The query databases, may be empty.
+	 * @param maxLag The maximum replication lag in seconds.
+	 */
+	PgQueryRouter(HikariDataSource primary, List<Replica> replicas, int maxLag) {
+		this.primary = primary;
+		this.replicas = replicas;
+		this.maxLag = TimeUnit.SECONDS.toMillis(maxLag);
+	}
+
+	/**
+	 * Starts the periodic health checks. Until the first check has completed, the primary database is used.
+	 */
+	void start(ScheduledExecutorService executor, int interval) {
+		if (!replicas.isEmpty()) {
+			executor.scheduleWithFixedDelay(this::checkReplicas, 0, Math.max(interval, 1), TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * @return Returns true if there are query databases in addition to the primary database.
+	 */
+	boolean hasReplicas() {
+		return !replicas.isEmpty();
+	}
+
+	/**
+	 * @param minLsn The WAL position (in bytes) the replica must have replayed, 0 if any healthy replica may be used.
+	 * @return Returns a connection to the least busy healthy replica that has replayed the given position,
+	 * or to the primary database.
+	 */
+	Connection getConnection(long minLsn) throws SQLException {
+		Replica replica = select(minLsn);
+		if (replica != null) {
+			try {
+				return replica.pool.getConnection();
+			} catch (SQLException e) {
+				log.warn("Unable to get connection to query database {}, using primary database: {}", replica.name, e.getMessage());
+				replica.healthy = false;
+			}
+		}
+		return primary.getConnection();
+	}
+
+	private Replica select(long minLsn) {
+		int size = replicas.size();
+		if (size == 0) {
+			return null;
+		}
+		// we start at a rotating position, so that replicas with the same load take turns
+		int start = Math.floorMod(next.getAndIncrement(), size);
+		Replica result = null;
+		int resultLoad = Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			Replica replica = replicas.get((start + i) % size);
+			if (!replica.healthy || replica.replayedLsn < minLsn) {
+				continue;
+			}
+			int load = replica.getLoad();
+			if (load < resultLoad) {
+				result = replica;
+				resultLoad = load;
+			}
+		}
+		return result;
+	}
+
+	private void checkReplicas() {
+		long primaryLsn;
+		try {
+			primaryLsn = queryLong(primary, "SELECT pg_wal_lsn_diff(pg_current_wal_lsn(), '0/0')::bigint");
+		} catch (SQLException e) {
+			log.warn("Unable to determine WAL position of primary database: {}", e.getMessage());
+			primaryLsn = Long.MAX_VALUE;
+		}
+		for (Replica replica : replicas) {
+			check(replica, primaryLsn);
+		}
+	}
+
+	private void check(Replica replica, long primaryLsn) {
+		boolean wasHealthy = replica.healthy;
+		Connection conn = null;
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = replica.pool.getConnection();
+			stmt = conn.createStatement();
+			stmt.setQueryTimeout(10);
+			// a query database that is not a streaming replica is treated as always up to date
+			rs = stmt.executeQuery("SELECT pg_is_in_recovery() AS recovery, " +
+					"pg_wal_lsn_diff(pg_last_wal_replay_lsn(), '0/0')::bigint AS replayed, " +
+					"(EXTRACT(EPOCH FROM (clock_timestamp() - pg_last_xact_replay_timestamp())) * 1000)::bigint AS replay_age");
+			rs.next();
+			if (!rs.getBoolean("recovery")) {
+				replica.replayedLsn = Long.MAX_VALUE;
+				replica.lag = 0;
+			} else {
+				long replayed = rs.getLong("replayed");
+				replica.replayedLsn = replayed;
+				replica.lag = replayed >= primaryLsn ? 0 : Math.max(0, rs.getLong("replay_age"));
+			}
+			replica.healthy = replica.lag <= maxLag;
+			if (!replica.healthy && wasHealthy) {
+				log.warn("Not using query database {}, replication lag is {} ms", replica.name, replica.lag);
+			}
+		} catch (SQLException e) {
+			replica.healthy = false;
+			replica.lag = -1;
+			if (wasHealthy) {
+				log.warn("Not using query database {}: {}", replica.name, e.getMessage());
+			}
+		} finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+			DatasetUtil.closeStatement(stmt);
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					SqlExceptionLogUtil.error(log, e);
+				}
+			}
+		}
+		if (replica.healthy && !wasHealthy) {
+			log.info("Using query database {}, replication lag is {} ms", replica.name, replica.lag);
+		}
+	}
+
+	private long queryLong(HikariDataSource dataSource, String query) throws SQLException {
+		try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+
+	/**
+	 * @return Returns state and replication lag of the query databases.
+	 */
+	JSONArray getStatus() {
+		JSONArray result = new JSONArray();
+		for (Replica replica : replicas) {
+			JSONObject r = new JSONObject();
+			r.put("name", replica.name);
+			r.put("healthy", replica.healthy);
+			r.put("lag", replica.lag);
+			result.put(r);
+		}
+		return result;
+	}
+
+	HikariDataSource getPool(int replica) {
+		return replicas.get(replica).pool;
+	}
+
+	void shutdown() {
+		for (Replica replica : replicas) {
+			replica.pool.close();
+		}
+	}
+
+}
@@ -16,21 +16,33 @@
 
 package org.entrystore.rowstore.store.impl;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.entrystore.rowstore.etl.EtlJobQueue;
 import org.entrystore.rowstore.etl.EtlProcessor;
 import org.entrystore.rowstore.store.Datasets;
+import org.entrystore.rowstore.store.ExportSnapshots;
 import org.entrystore.rowstore.store.RowStore;
 import org.entrystore.rowstore.store.RowStoreConfig;
-import org.postgresql.ds.PGPoolingDataSource;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.postgresql.ds.PGSimpleDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A PostgreSQL-specific implementation of the RowStore interface.
@@ -42,21 +54,51 @@ public class PgRowStore implements RowStore {
 
 	private final static Logger log = LoggerFactory.getLogger(PgRowStore.class);
 
-	final DataSource datasource;
+	final HikariDataSource datasource;
 
-	DataSource queryDatasource;
+	final PgQueryRouter queryRouter;
+
+	/**
+	 * Unpooled access to the primary database for connections that are held for a long time and
+	 * keep session state, e.g. for listening to notifications.
+	 */
+	final PGSimpleDataSource directDatasource;
+
+	private static final int DEFAULT_POOL_MAX = 20;
+
+	private static final int DEFAULT_POOL_MIN_IDLE = 2;
 
 	Datasets datasets;
 
 	EtlProcessor etlProcessor;
 
+	EtlJobQueue etlJobQueue;
+
+	ExportSnapshots exportSnapshots;
+
 	RowStoreConfig config;
 
+	final ScheduledExecutorService maintenanceExecutor;
+
+	final ExecutorService exportExecutor;
+
+	final PgIndexBuilder indexBuilder;
+
+	final PgIndexAdvisor indexAdvisor;
+
+	final PgQueryCache queryCache;
+
 	public PgRowStore(RowStoreConfig config) {
 		if (config == null) {
 			throw new IllegalArgumentException("Configuration must not be null");
 		}
 		this.config = config;
+		this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("rowstore-maintenance-%d").setDaemon(true).build());
+		this.exportExecutor = Executors.newFixedThreadPool(Math.max(1, config.getExportConverterThreads()),
+				new ThreadFactoryBuilder().setNameFormat("rowstore-export-converter-%d").setDaemon(true).build());
+		this.indexBuilder = new PgIndexBuilder(this);
+		this.queryCache = new PgQueryCache(config);
 
 		try {
 			Class.forName("org.postgresql.Driver");
@@ -64,63 +106,68 @@ public class PgRowStore implements RowStore {
 			log.error(e.getMessage());
 		}
 
-		datasource = initializeDataSource(new PGSimpleDataSource(), config.getDatabase());
-		/* if (config.getDatabase().getConnectionPoolInit() > 0 && config.getDatabase().getConnectionPoolMax() > 0) {
-			datasource = initializeDataSource(new PGPoolingDataSource(), config.getDatabase());
-		} else {
-			datasource = initializeDataSource(new PGSimpleDataSource(), config.getDatabase());
-		} */
-
-		if (config.getDatabase() == config.getQueryDatabase()) {
-			queryDatasource = datasource;
-		} else {
-			if (config.getQueryDatabase().getConnectionPoolInit() > 0 && config.getQueryDatabase().getConnectionPoolMax() > 0) {
-				queryDatasource = initializeDataSource(new PGPoolingDataSource(), config.getQueryDatabase());
-				((PGPoolingDataSource) queryDatasource).setReadOnly(true);
-			} else {
-				queryDatasource = initializeDataSource(new PGSimpleDataSource(), config.getQueryDatabase());
-				((PGSimpleDataSource) queryDatasource).setReadOnly(true);
-			}
+		directDatasource = initializeDataSource(new PGSimpleDataSource(), config.getDatabase());
+		datasource = initializeConnectionPool("rowstore-primary", config.getDatabase(), false);
+		List<PgQueryRouter.Replica> replicas = new ArrayList<>();
+		for (RowStoreConfig.Database queryDatabase : config.getQueryDatabases()) {
+			String name = queryDatabase.getHost() + ":" + queryDatabase.getPort() + "/" + queryDatabase.getName();
+			replicas.add(new PgQueryRouter.Replica(name, initializeConnectionPool("rowstore-query-" + (replicas.size() + 1), queryDatabase, true)));
 		}
+		queryRouter = new PgQueryRouter(datasource, replicas, config.getReplicaMaxLag());
+		queryRouter.start(maintenanceExecutor, config.getReplicaCheckInterval());
 
+		etlJobQueue = new PgEtlJobQueue(this);
+		exportSnapshots = new ExportSnapshots(this);
 		etlProcessor = new EtlProcessor(this);
+		indexAdvisor = new PgIndexAdvisor(this);
 	}
 
-	private DataSource initializeDataSource(DataSource dataSource, RowStoreConfig.Database dbConfig) {
-		if (dataSource == null || dbConfig == null) {
+	private PGSimpleDataSource initializeDataSource(PGSimpleDataSource ds, RowStoreConfig.Database dbConfig) {
+		if (ds == null || dbConfig == null) {
 			throw new IllegalArgumentException("Parameters must not be null");
 		}
 
-		if (dataSource instanceof  PGSimpleDataSource) {
-			PGSimpleDataSource ds = (PGSimpleDataSource) dataSource;
-			ds.setUser(dbConfig.getUser());
-			ds.setPassword(dbConfig.getPassword());
-			ds.setServerName(dbConfig.getHost());
-			ds.setDatabaseName(dbConfig.getName());
-			ds.setPortNumber(dbConfig.getPort());
-			ds.setSsl(dbConfig.getSsl());
-			if (ds.getSsl()) {
-				ds.setSslMode("require");
-			}
-			ds.setLogUnclosedConnections(log.isDebugEnabled());
-		} else if (dataSource instanceof  PGPoolingDataSource) {
-			PGPoolingDataSource ds = (PGPoolingDataSource) dataSource;
-			ds.setPreparedStatementCacheQueries(100);
-			ds.setInitialConnections(dbConfig.getConnectionPoolInit());
-			ds.setMaxConnections(dbConfig.getConnectionPoolMax());
-			ds.setUser(dbConfig.getUser());
-			ds.setPassword(dbConfig.getPassword());
-			ds.setServerName(dbConfig.getHost());
-			ds.setDatabaseName(dbConfig.getName());
-			ds.setPortNumber(dbConfig.getPort());
-			ds.setSsl(dbConfig.getSsl());
-			if (ds.getSsl()) {
-				ds.setSslMode("require");
-			}
-			ds.setLogUnclosedConnections(log.isDebugEnabled());
+		ds.setUser(dbConfig.getUser());
+		ds.setPassword(dbConfig.getPassword());
+		ds.setServerName(dbConfig.getHost());
+		ds.setDatabaseName(dbConfig.getName());
+		ds.setPortNumber(dbConfig.getPort());
+		ds.setSsl(dbConfig.getSsl());
+		if (ds.getSsl()) {
+			ds.setSslMode("require");
 		}
+		ds.setLogUnclosedConnections(log.isDebugEnabled());
 
-		return dataSource;
+		return ds;
+	}
+
+	/**
+	 * Creates a bounded connection pool. Connections are validated before they are handed out, idle
+	 * connections above the minimum are closed after the idle timeout, and connections that are not
+	 * returned within the leak detection threshold are logged together with the stack trace of the
+	 * code that borrowed them.
+	 */
+	private HikariDataSource initializeConnectionPool(String name, RowStoreConfig.Database dbConfig, boolean readOnly) {
+		int max = dbConfig.getConnectionPoolMax() > 0 ? dbConfig.getConnectionPoolMax() : DEFAULT_POOL_MAX;
+		int minIdle = dbConfig.getConnectionPoolInit() >= 0 ? Math.min(dbConfig.getConnectionPoolInit(), max) : Math.min(DEFAULT_POOL_MIN_IDLE, max);
+
+		HikariConfig poolConfig = new HikariConfig();
+		poolConfig.setPoolName(name);
+		poolConfig.setDataSource(initializeDataSource(new PGSimpleDataSource(), dbConfig));
+		poolConfig.setMaximumPoolSize(max);
+		poolConfig.setMinimumIdle(minIdle);
+		if (dbConfig.getConnectionIdleTimeout() > 0) {
+			poolConfig.setIdleTimeout(TimeUnit.SECONDS.toMillis(dbConfig.getConnectionIdleTimeout()));
+		}
+		if (dbConfig.getConnectionLeakDetection() > 0) {
+			poolConfig.setLeakDetectionThreshold(TimeUnit.SECONDS.toMillis(dbConfig.getConnectionLeakDetection()));
+		}
+		poolConfig.setValidationTimeout(TimeUnit.SECONDS.toMillis(5));
+		poolConfig.setReadOnly(readOnly);
+		// the pool is started even if the database is not reachable yet
+		poolConfig.setInitializationFailTimeout(-1);
+		log.info("Initializing connection pool {} with {} to {} connections", name, minIdle, max);
+		return new HikariDataSource(poolConfig);
 	}
 
 	/**
@@ -136,7 +183,32 @@ public class PgRowStore implements RowStore {
 	 */
 	@Override
 	public Connection getQueryConnection() throws SQLException {
-		return queryDatasource.getConnection();
+		return queryRouter.getConnection(0);
+	}
+
+	/**
+	 * @param minLsn The WAL position (in bytes) a query database must have replayed to be used, e.g. the
+	 *               position after the most recent load of a dataset.
+	 * @return Returns a connection to a query database that is up to date with the given position, or to the
+	 * primary database.
+	 */
+	Connection getQueryConnection(long minLsn) throws SQLException {
+		return queryRouter.getConnection(minLsn);
+	}
+
+	/**
+	 * @return Returns the router for query connections.
+	 */
+	PgQueryRouter getQueryRouter() {
+		return queryRouter;
+	}
+
+	/**
+	 * @return Returns an unpooled connection to the primary database, to be used for connections that
+	 * are held for a long time or that keep session state.
+	 */
+	Connection getDirectConnection() throws SQLException {
+		return directDatasource.getConnection();
 	}
 
 	/**
@@ -147,6 +219,96 @@ public class PgRowStore implements RowStore {
 		return etlProcessor;
 	}
 
+	/**
+	 * @see RowStore#getEtlJobQueue()
+	 */
+	@Override
+	public EtlJobQueue getEtlJobQueue() {
+		return etlJobQueue;
+	}
+
+	/**
+	 * @see RowStore#getExportSnapshots()
+	 */
+	@Override
+	public ExportSnapshots getExportSnapshots() {
+		return exportSnapshots;
+	}
+
+	/**
+	 * @return Returns the executor for background maintenance tasks.
+	 */
+	ScheduledExecutorService getMaintenanceExecutor() {
+		return maintenanceExecutor;
+	}
+
+	/**
+	 * @return Returns the executor that is shared by all exports for converting rows to CSV.
+	 */
+	ExecutorService getExportExecutor() {
+		return exportExecutor;
+	}
+
+	/**
+	 * @return Returns the builder for indexes of data tables.
+	 */
+	PgIndexBuilder getIndexBuilder() {
+		return indexBuilder;
+	}
+
+	/**
+	 * @return Returns the component that decides which indexes are built.
+	 */
+	PgIndexAdvisor getIndexAdvisor() {
+		return indexAdvisor;
+	}
+
+	/**
+	 * @return Returns the cache for query results and result counts.
+	 */
+	PgQueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * @see RowStore#getCacheStatistics()
+	 */
+	@Override
+	public JSONObject getCacheStatistics() {
+		return queryCache.getStatistics();
+	}
+
+	/**
+	 * @see RowStore#getConnectionPoolStatistics()
+	 */
+	@Override
+	public JSONObject getConnectionPoolStatistics() {
+		JSONObject result = new JSONObject();
+		result.put("primary", getPoolStatistics(datasource));
+		if (queryRouter.hasReplicas()) {
+			JSONArray queryDatabases = queryRouter.getStatus();
+			for (int i = 0; i < queryDatabases.length(); i++) {
+				queryDatabases.getJSONObject(i).put("pool", getPoolStatistics(queryRouter.getPool(i)));
+			}
+			result.put("query", queryDatabases);
+		}
+		return result;
+	}
+
+	private JSONObject getPoolStatistics(HikariDataSource pool) {
+		JSONObject result = new JSONObject();
+		result.put("maximum", pool.getMaximumPoolSize());
+		result.put("minimumIdle", pool.getMinimumIdle());
+		HikariPoolMXBean mxBean = pool.getHikariPoolMXBean();
+		if (mxBean != null) {
+			result.put("active", mxBean.getActiveConnections());
+			result.put("idle", mxBean.getIdleConnections());
+			result.put("total", mxBean.getTotalConnections());
+			result.put("waiting", mxBean.getThreadsAwaitingConnection());
+		}
+		return result;
+	}
+
 	public Datasets getDatasets() {
 		synchronized (datasource) {
 			if (datasets == null) {
@@ -171,6 +333,16 @@ public class PgRowStore implements RowStore {
 	public void shutdown() {
 		log.info("Shutting down RowStore");
 		etlProcessor.shutdown();
+		((PgEtlJobQueue) etlJobQueue).shutdown();
+		indexBuilder.shutdown();
+		exportSnapshots.shutdown();
+		if (datasets != null) {
+			((PgDatasets) datasets).getRegistry().shutdown();
+		}
+		maintenanceExecutor.shutdownNow();
+		exportExecutor.shutdownNow();
+		queryRouter.shutdown();
+		datasource.close();
 
 		// Deregister JDBC driver that were loaded by this webapp
 		ClassLoader cl = Thread.currentThread().getContextClassLoader();
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.store.impl;
+
+import java.sql.SQLException;
+
+/**
+ * Writes converted rows into the data table of a dataset.
+ *
+ * <p>Implementations operate on a connection that is owned by the caller. They neither commit
+ * nor roll back, transaction handling remains the responsibility of the caller.</p>
+ *
+ * @author Hannes Ebner
+ */
+interface RowWriter {
+
+	/**
+	 * Writes a row.
+	 *
+	 * @param json Buffer containing the row as UTF-8 serialized JSON object.
+	 * @param offset The offset of the row within the buffer.
+	 * @param length The length of the row in bytes.
+	 * @throws SQLException
+	 */
+	void write(byte[] json, int offset, int length) throws SQLException;
+
+	/**
+	 * Sends rows that may still be buffered to the database.
+	 *
+	 * @return Returns the amount of rows written by this writer.
+	 * @throws SQLException
+	 */
+	long finish() throws SQLException;
+
+	/**
+	 * Discards buffered rows and releases all resources. Must be called before rolling back
+	 * the transaction if finish() has not been called or has failed. May be called more than once.
+	 */
+	void abort();
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.util;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.entrystore.rowstore.store.Dataset;
+import org.restlet.data.MediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exports datasets in the Apache Arrow IPC streaming format.
+ *
+ * <p>Every column is a nullable UTF-8 string column, as the values are stored as strings. Rows are written
+ * in record batches of a fixed amount of rows, so that only one batch is held in memory at a time and clients
+ * can process the stream while it is received.</p>
+ *
+ * @author Hannes Ebner
+ */
+public class ArrowExport {
+
+	private static final Logger log = LoggerFactory.getLogger(ArrowExport.class);
+
+	public static final MediaType APPLICATION_ARROW_STREAM = new MediaType("application/vnd.apache.arrow.stream", "Apache Arrow IPC stream");
+
+	/**
+	 * The amount of rows per record batch.
+	 */
+	public static final int BATCH_SIZE = 8192;
+
+	/**
+	 * Shared by all exports, every export allocates its buffers from a child allocator.
+	 */
+	private static final BufferAllocator ROOT_ALLOCATOR = new RootAllocator();
+
+	private ArrowExport() {
+	}
+
+	/**
+	 * Writes all rows of a dataset as an Arrow IPC stream.
+	 *
+	 * @param dataset The dataset to export.
+	 * @param out The stream to write to; it is flushed, but not closed.
+	 * @return Returns the amount of written rows.
+	 * @throws IOException If the data could not be read or written. The end of the stream has not been
+	 * written in that case, so that the output cannot be mistaken for a complete export.
+	 */
+	public static long write(Dataset dataset, OutputStream out) throws IOException {
+		long before = System.currentTimeMillis();
+		String[] columns = dataset.getColumnNames().toArray(new String[0]);
+		List<Field> fields = new ArrayList<>(columns.length);
+		for (String column : columns) {
+			fields.add(Field.nullable(column, ArrowType.Utf8.INSTANCE));
+		}
+
+		long rowCount;
+		UnclosableOutputStream stream = new UnclosableOutputStream(out);
+		try (BufferAllocator allocator = ROOT_ALLOCATOR.newChildAllocator("export-" + dataset.getId(), 0, Long.MAX_VALUE);
+			 VectorSchemaRoot root = VectorSchemaRoot.create(new Schema(fields), allocator);
+			 ArrowStreamWriter writer = new ArrowStreamWriter(root, new DictionaryProvider.MapDictionaryProvider(), stream)) {
+			try {
+				writer.start();
+				rowCount = dataset.readRows(BATCH_SIZE, rows -> {
+					root.allocateNew();
+					for (int c = 0; c < columns.length; c++) {
+						VarCharVector vector = (VarCharVector) root.getVector(c);
+						for (int r = 0; r < rows.size(); r++) {
+							String value = rows.get(r).optString(columns[c], null);
+							if (value != null) {
+								vector.setSafe(r, value.getBytes(StandardCharsets.UTF_8));
+							} else {
+								vector.setNull(r);
+							}
+						}
+					}
+					root.setRowCount(rows.size());
+					writer.writeBatch();
+				});
+				writer.end();
+			} catch (IOException | RuntimeException e) {
+				// closing the writer would write the end of the stream
+				stream.abort();
+				throw e;
+			}
+		}
+		out.flush();
+		log.debug("Exported {} rows of dataset {} as Arrow stream in {} ms", rowCount, dataset.getId(), System.currentTimeMillis() - before);
+		return rowCount;
+	}
+
+	/**
+	 * Prevents the Arrow writer from closing the stream, which belongs to the caller, and discards
+	 * everything that is written after the export has been aborted.
+	 */
+	private static final class UnclosableOutputStream extends FilterOutputStream {
+
+		private boolean aborted;
+
+		UnclosableOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		void abort() {
+			aborted = true;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!aborted) {
+				out.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!aborted) {
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (!aborted) {
+				out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+	}
+
+}
@@ -26,10 +26,15 @@ import org.restlet.representation.Representation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
@@ -46,6 +51,11 @@ public class DatasetUtil {
 
 	static Logger log = LoggerFactory.getLogger(DatasetUtil.class);
 
+	/**
+	 * The amount of bytes that are looked at for detecting the charset.
+	 */
+	public static final int CHARSET_DETECTION_LIMIT = 524288;
+
 	public static String buildDatasetURL(String baseURL, String datasetId) {
 		if (baseURL == null || datasetId == null) {
 			throw new IllegalArgumentException("Arguments must not be null");
@@ -80,6 +90,40 @@ public class DatasetUtil {
 		return StringUtils.indexOfAny(s, indicators) > -1;
 	}
 
+	/**
+	 * Determines the literal prefix of a left-anchored regular expression, i.e., a string that every match
+	 * starts with.
+	 *
+	 * @param regexp The regular expression.
+	 * @return Returns the literal prefix or an empty string if the expression is not left-anchored or starts with a non-literal.
+	 */
+	public static String getLiteralPrefix(String regexp) {
+		// alternatives may not be anchored, so we do not try to find a prefix
+		if (!regexp.startsWith("^") || regexp.indexOf('|') > -1) {
+			return "";
+		}
+		StringBuilder prefix = new StringBuilder();
+		int i = 1;
+		while (i < regexp.length()) {
+			char c = regexp.charAt(i);
+			if (c == '\\' && i + 1 < regexp.length() && !Character.isLetterOrDigit(regexp.charAt(i + 1))) {
+				// escaped literal, e.g. \.
+				prefix.append(regexp.charAt(i + 1));
+				i += 2;
+			} else if (".[](){}\\*+?^$".indexOf(c) > -1) {
+				// the last literal is optional if it is followed by one of these quantifiers
+				if ((c == '?' || c == '*' || c == '{') && prefix.length() > 0) {
+					prefix.setLength(prefix.length() - 1);
+				}
+				break;
+			} else {
+				prefix.append(c);
+				i++;
+			}
+		}
+		return prefix.toString();
+	}
+
 	public static boolean isUUID(String string) {
 		try {
 			UUID.fromString(string);
@@ -92,12 +136,37 @@ public class DatasetUtil {
 	public static Charset detectCharset(File f) throws IOException {
 		byte[] data;
 		try (InputStream is = Files.newInputStream(f.toPath())) {
-			byte[] tmpData = new byte[524288]; // we try to read up to 512 kB
+			byte[] tmpData = new byte[CHARSET_DETECTION_LIMIT]; // we try to read up to 512 kB
 			int byteCount = is.read(tmpData);
-			data = Arrays.copyOf(tmpData, byteCount);
+			data = Arrays.copyOf(tmpData, Math.max(byteCount, 0));
 			log.debug("Read " + byteCount + " bytes from " + f.getAbsolutePath() + " to detect charset");
 		}
+		return detectCharset(data, f.getAbsolutePath());
+	}
+
+	/**
+	 * Detects the charset of a stream from its first 512 kB and converts the stream to UTF-8 if necessary.
+	 * Nothing is written to disk.
+	 *
+	 * @param in The stream to convert.
+	 * @return Returns a UTF-8 encoded stream that supports mark and reset for up to 512 kB.
+	 */
+	public static InputStream toUTF8(InputStream in) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in, CHARSET_DETECTION_LIMIT);
+		buffered.mark(CHARSET_DETECTION_LIMIT);
+		byte[] data = buffered.readNBytes(CHARSET_DETECTION_LIMIT);
+		buffered.reset();
+		log.debug("Read " + data.length + " bytes from stream to detect charset");
+
+		Charset charset = detectCharset(data, "stream");
+		if (StandardCharsets.UTF_8.equals(charset) || StandardCharsets.US_ASCII.equals(charset)) {
+			return buffered;
+		}
+		log.info("Converting stream from " + charset + " to UTF-8");
+		return new BufferedInputStream(new Utf8TranscodingInputStream(new InputStreamReader(buffered, charset)), CHARSET_DETECTION_LIMIT);
+	}
 
+	private static Charset detectCharset(byte[] data, String source) {
 		UniversalDetector detector = new UniversalDetector(null);
 		detector.handleData(data, 0, data.length);
 		detector.dataEnd();
@@ -105,25 +174,49 @@ public class DatasetUtil {
 		detector.reset();
 
 		if (name != null) {
-			log.debug("Detected charset " + name + " for file " + f.getAbsolutePath() + " using juniversalchardet");
+			log.debug("Detected charset " + name + " for " + source + " using juniversalchardet");
 		} else {
 			CharsetDetector icuDetector = new CharsetDetector();
 			icuDetector.setText(data);
 			CharsetMatch match = icuDetector.detect();
 			if (match != null) {
 				name = match.getName();
-				log.debug("Detected charset " + name + " for file " + f.getAbsolutePath() + " using ICU");
+				log.debug("Detected charset " + name + " for " + source + " using ICU");
 			}
 		}
 
 		if (name == null) {
-			log.debug("Unable to detect charset for " + f.getAbsolutePath() + ", falling back to UTF-8");
+			log.debug("Unable to detect charset for " + source + ", falling back to UTF-8");
 			name = "UTF-8";
 		}
 
 		return Charset.forName(name);
 	}
 
+	/**
+	 * Converts a file to UTF-8 unless it already is encoded in UTF-8 or in US-ASCII.
+	 *
+	 * @param f The file to convert.
+	 * @param charset The charset of the file.
+	 * @return Returns a temporary file with the converted content, or the original file if no conversion was necessary.
+	 */
+	public static File convertToUTF8(File f, Charset charset) throws IOException {
+		if (StandardCharsets.UTF_8.equals(charset) || StandardCharsets.US_ASCII.equals(charset)) {
+			return f;
+		}
+		Path tmpPath = Files.createTempFile(RowStoreApplication.NAME, ".csv");
+		tmpPath.toFile().deleteOnExit();
+		log.info("Converting " + f.getAbsolutePath() + " from " + charset + " to UTF-8 at " + tmpPath);
+		try (Reader reader = Files.newBufferedReader(f.toPath(), charset);
+			 Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+			reader.transferTo(writer);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmpPath);
+			throw e;
+		}
+		return tmpPath.toFile();
+	}
+
 	public static void closeStatement(Statement stmt) {
 		if (stmt == null) {
 			return;
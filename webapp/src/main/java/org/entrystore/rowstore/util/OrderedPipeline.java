@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a producer and a consumer through a pool of parallel workers while preserving the order
+ * in which tasks were submitted.
+ *
+ * <p>The producer submits tasks which are executed by the executor, the consumer takes the results in
+ * submission order. The amount of tasks in flight is bounded: the producer blocks when the consumer
+ * falls behind, i.e., the pipeline applies backpressure.</p>
+ *
+ * @param <T> The result type of the tasks.
+ * @author Hannes Ebner
+ */
+public class OrderedPipeline<T> {
+
+	private final Future<T> endOfInput = CompletableFuture.completedFuture(null);
+
+	private final ExecutorService executor;
+
+	private final BlockingQueue<Future<T>> inFlight;
+
+	private volatile boolean cancelled = false;
+
+	/**
+	 * @param executor The executor to run the tasks.
+	 * @param maxInFlight The maximum number of submitted tasks whose results have not been taken yet.
+	 */
+	public OrderedPipeline(ExecutorService executor, int maxInFlight) {
+		if (executor == null || maxInFlight < 1) {
+			throw new IllegalArgumentException("Executor must not be null and at least one task must be allowed in flight");
+		}
+		this.executor = executor;
+		this.inFlight = new ArrayBlockingQueue<>(maxInFlight);
+	}
+
+	/**
+	 * Submits a task. Blocks if the maximum amount of tasks is in flight.
+	 *
+	 * @throws CancellationException If the consumer has cancelled the pipeline.
+	 */
+	public void submit(Callable<T> task) throws InterruptedException {
+		if (cancelled) {
+			throw new CancellationException("Pipeline has been cancelled");
+		}
+		if (!enqueue(executor.submit(task))) {
+			throw new CancellationException("Pipeline has been cancelled");
+		}
+	}
+
+	/**
+	 * Signals that the producer has submitted all tasks.
+	 */
+	public void complete() throws InterruptedException {
+		enqueue(endOfInput);
+	}
+
+	/**
+	 * Signals that the producer has failed. The consumer receives the error after the results of all
+	 * previously submitted tasks.
+	 */
+	public void fail(Throwable t) throws InterruptedException {
+		enqueue(CompletableFuture.failedFuture(t));
+	}
+
+	/**
+	 * Returns the result of the next task in submission order. Blocks until the result is available.
+	 *
+	 * @return The result or null if the producer has completed and all results have been taken.
+	 * @throws ExecutionException If a task or the producer has failed.
+	 */
+	public T take() throws InterruptedException, ExecutionException {
+		Future<T> next = inFlight.take();
+		if (next == endOfInput) {
+			return null;
+		}
+		return next.get();
+	}
+
+	/**
+	 * Cancels the pipeline. Tasks in flight are cancelled and a blocked producer is released.
+	 */
+	public void cancel() {
+		cancelled = true;
+		Future<T> f;
+		while ((f = inFlight.poll()) != null) {
+			f.cancel(true);
+		}
+	}
+
+	private boolean enqueue(Future<T> future) throws InterruptedException {
+		while (!inFlight.offer(future, 100, TimeUnit.MILLISECONDS)) {
+			if (cancelled) {
+				future.cancel(true);
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
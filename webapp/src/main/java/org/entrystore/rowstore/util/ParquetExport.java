@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.util;
+
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.apache.parquet.schema.Types;
+import org.entrystore.rowstore.store.Dataset;
+import org.json.JSONObject;
+import org.restlet.data.MediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Exports datasets as Parquet files.
+ *
+ * <p>Every column is an optional UTF-8 string column, as the values are stored as strings. Parquet files are
+ * written sequentially, with the file metadata at the end, so the file is streamed to the client while it is
+ * written instead of being created on disk first. Each row group is held in memory until it is complete.</p>
+ *
+ * @author Hannes Ebner
+ */
+public class ParquetExport {
+
+	private static final Logger log = LoggerFactory.getLogger(ParquetExport.class);
+
+	public static final MediaType APPLICATION_PARQUET = new MediaType("application/vnd.apache.parquet", "Apache Parquet");
+
+	/**
+	 * The size of a row group in bytes, limits the memory used per export.
+	 */
+	private static final long ROW_GROUP_SIZE = 32 * 1024 * 1024;
+
+	private static final int BATCH_SIZE = 1000;
+
+	private ParquetExport() {
+	}
+
+	/**
+	 * Writes all rows of a dataset as a Snappy-compressed Parquet file.
+	 *
+	 * @param dataset The dataset to export.
+	 * @param out The stream to write to; it is flushed, but not closed.
+	 * @return Returns the amount of written rows.
+	 * @throws IOException If the data could not be read or written. The file metadata has not been
+	 * written in that case, so that the output cannot be mistaken for a complete file.
+	 */
+	public static long write(Dataset dataset, OutputStream out) throws IOException {
+		long before = System.currentTimeMillis();
+		String[] columns = dataset.getColumnNames().toArray(new String[0]);
+		Types.MessageTypeBuilder schemaBuilder = Types.buildMessage();
+		for (String column : columns) {
+			schemaBuilder.optional(PrimitiveType.PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named(column);
+		}
+		MessageType schema = schemaBuilder.named("row");
+		SimpleGroupFactory groupFactory = new SimpleGroupFactory(schema);
+
+		long rowCount;
+		StreamOutputFile outputFile = new StreamOutputFile(out);
+		try (ParquetWriter<Group> writer = ExampleParquetWriter.builder(outputFile)
+				.withType(schema)
+				.withCompressionCodec(CompressionCodecName.SNAPPY)
+				.withRowGroupSize(ROW_GROUP_SIZE)
+				.build()) {
+			try {
+				rowCount = dataset.readRows(BATCH_SIZE, rows -> {
+					for (JSONObject row : rows) {
+						Group group = groupFactory.newGroup();
+						for (int c = 0; c < columns.length; c++) {
+							String value = row.optString(columns[c], null);
+							if (value != null) {
+								group.add(c, value);
+							}
+						}
+						writer.write(group);
+					}
+				});
+			} catch (IOException | RuntimeException e) {
+				// closing the writer would write the last row group and the file metadata
+				outputFile.abort();
+				throw e;
+			}
+		}
+		out.flush();
+		log.debug("Exported {} rows of dataset {} as Parquet in {} ms", rowCount, dataset.getId(), System.currentTimeMillis() - before);
+		return rowCount;
+	}
+
+	/**
+	 * A Parquet output file that writes to a stream. Parquet only needs to know the current position, since
+	 * it does not seek while writing. Everything that is written after the export has been aborted is discarded.
+	 */
+	private static final class StreamOutputFile implements OutputFile {
+
+		private final OutputStream out;
+
+		private boolean aborted;
+
+		StreamOutputFile(OutputStream out) {
+			this.out = out;
+		}
+
+		void abort() {
+			aborted = true;
+		}
+
+		@Override
+		public PositionOutputStream create(long blockSizeHint) {
+			return new PositionOutputStream() {
+
+				private long position;
+
+				@Override
+				public long getPos() {
+					return position;
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					if (!aborted) {
+						out.write(b);
+					}
+					position++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if (!aborted) {
+						out.write(b, off, len);
+					}
+					position += len;
+				}
+
+				@Override
+				public void flush() throws IOException {
+					if (!aborted) {
+						out.flush();
+					}
+				}
+
+				@Override
+				public void close() throws IOException {
+					// the stream belongs to the caller
+					flush();
+				}
+
+			};
+		}
+
+		@Override
+		public PositionOutputStream createOrOverwrite(long blockSizeHint) {
+			return create(blockSizeHint);
+		}
+
+		@Override
+		public boolean supportsBlockSize() {
+			return false;
+		}
+
+		@Override
+		public long defaultBlockSize() {
+			return 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2011-2024 MetaSolutions AB <info@metasolutions.se>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.entrystore.rowstore.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the characters of a reader in UTF-8 while they are read, so that data in other charsets can
+ * be processed as a stream instead of being converted into a temporary file first.
+ *
+ * @author Hannes Ebner
+ */
+public class Utf8TranscodingInputStream extends InputStream {
+
+	private final Reader reader;
+
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	// a character is encoded with at most three bytes, so the encoded chars always fit into the byte buffer
+	private final CharBuffer chars = CharBuffer.allocate(8192).flip();
+
+	private final ByteBuffer bytes = ByteBuffer.allocate(8192 * 3).flip();
+
+	private boolean endOfInput;
+
+	private boolean finished;
+
+	public Utf8TranscodingInputStream(Reader reader) {
+		this.reader = reader;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (!bytes.hasRemaining()) {
+			if (finished) {
+				return -1;
+			}
+			encode();
+		}
+		int count = Math.min(len, bytes.remaining());
+		bytes.get(b, off, count);
+		return count;
+	}
+
+	private void encode() throws IOException {
+		bytes.clear();
+		if (!endOfInput) {
+			// an unpaired high surrogate may be left over from the previous call
+			chars.compact();
+			if (reader.read(chars) == -1) {
+				endOfInput = true;
+			}
+			chars.flip();
+		}
+		encoder.encode(chars, bytes, endOfInput);
+		if (endOfInput) {
+			encoder.flush(bytes);
+			finished = true;
+		}
+		bytes.flip();
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}